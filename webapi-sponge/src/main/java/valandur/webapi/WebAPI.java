@@ -43,6 +43,7 @@ import valandur.webapi.link.internal.InternalHttpRequest;
 import valandur.webapi.link.internal.InternalHttpResponse;
 import valandur.webapi.link.message.RequestMessage;
 import valandur.webapi.link.message.ResponseMessage;
+import valandur.webapi.map.MapService;
 import valandur.webapi.message.InteractiveMessageService;
 import valandur.webapi.security.PermissionStruct;
 import valandur.webapi.security.PermissionStructSerializer;
@@ -57,11 +58,13 @@ import valandur.webapi.user.UserPermissionStructSerializer;
 import valandur.webapi.user.UserService;
 import valandur.webapi.util.Constants;
 import valandur.webapi.util.JettyLogger;
+import valandur.webapi.util.MainThreadQueue;
 import valandur.webapi.util.Timings;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.servlet.http.HttpServletResponse;
 import javax.ws.rs.InternalServerErrorException;
+import javax.ws.rs.ServiceUnavailableException;
 import javax.ws.rs.WebApplicationException;
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -75,7 +78,10 @@ import java.util.HashMap;
 import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
@@ -96,7 +102,6 @@ public class WebAPI {
         return WebAPI.instance;
     }
 
-    private static SpongeExecutorService syncExecutor;
     private static SpongeExecutorService asyncExecutor;
     public static SpongeExecutorService getAsyncExecutor() {
         return WebAPI.asyncExecutor;
@@ -112,6 +117,23 @@ public class WebAPI {
         return WebAPI.getInstance().adminPanelEnabled;
     }
 
+    private int mainThreadTimeout = 30000;
+    public static int getMainThreadTimeout() {
+        return WebAPI.getInstance().mainThreadTimeout;
+    }
+
+    private int maxPendingMainTasks = 1000;
+
+    private int maxPageSize = 1000;
+    public static int getMaxPageSize() {
+        return WebAPI.getInstance().maxPageSize;
+    }
+
+    private static MainThreadQueue mainThreadQueue;
+    public static MainThreadQueue getMainThreadQueue() {
+        return WebAPI.mainThreadQueue;
+    }
+
     private static String spongeApi;
     private static String spongeGame;
     private static String spongeImpl;
@@ -172,6 +194,11 @@ public class WebAPI {
         return WebAPI.getInstance().linkService;
     }
 
+    private MapService mapService;
+    public static MapService getMapService() {
+        return WebAPI.getInstance().mapService;
+    }
+
     private SecurityService securityService;
     public static SecurityService getSecurityService() {
         return WebAPI.getInstance().securityService;
@@ -229,10 +256,13 @@ public class WebAPI {
             }
         }
 
-        // Reusable sync executor to run code on main server thread
-        syncExecutor = Sponge.getScheduler().createSyncExecutor(this);
+        // Reusable async executor to run code off the main server thread
         asyncExecutor = Sponge.getScheduler().createAsyncExecutor(this);
 
+        // Queue which runs all our main thread work once per tick
+        mainThreadQueue = new MainThreadQueue();
+        mainThreadQueue.start(this);
+
         // Register custom serializers
         TypeSerializers.getDefaultSerializers().registerType(
                 TypeToken.of(WebHook.class), new WebHookSerializer());
@@ -245,6 +275,7 @@ public class WebAPI {
         this.blockService = new BlockService();
         this.cacheService = new CacheService();
         this.linkService = new LinkService();
+        this.mapService = new MapService();
         this.messageService = new InteractiveMessageService();
         this.securityService = new SecurityService();
         this.serializeService = new SerializeService();
@@ -258,6 +289,7 @@ public class WebAPI {
         serviceMan.setProvider(this, BlockService.class, blockService);
         serviceMan.setProvider(this, CacheService.class, cacheService);
         serviceMan.setProvider(this, LinkService.class, linkService);
+        serviceMan.setProvider(this, MapService.class, mapService);
         serviceMan.setProvider(this, InteractiveMessageService.class, messageService);
         serviceMan.setProvider(this, SecurityService.class, securityService);
         serviceMan.setProvider(this, SerializeService.class, serializeService);
@@ -270,6 +302,7 @@ public class WebAPI {
         EventManager evenMan = Sponge.getEventManager();
         evenMan.registerListeners(this, cacheService);
         evenMan.registerListeners(this, linkService);
+        evenMan.registerListeners(this, mapService);
         evenMan.registerListeners(this, webHookService);
 
         // Swagger setup stuff
@@ -318,6 +351,10 @@ public class WebAPI {
         devMode = mainConfig.devMode;
         reportErrors = mainConfig.reportErrors;
         adminPanelEnabled = mainConfig.adminPanel;
+        mainThreadTimeout = mainConfig.mainThreadTimeout;
+        maxPendingMainTasks = mainConfig.maxPendingMainTasks;
+        maxPageSize = Math.max(1, mainConfig.maxPageSize);
+        mainThreadQueue.setBudget(mainConfig.mainThreadBudget, TimeUnit.MILLISECONDS);
 
         // Create our WebServer
         server = new WebServer(logger, mainConfig);
@@ -343,6 +380,8 @@ public class WebAPI {
 
         linkService.init();
 
+        mapService.init();
+
         securityService.init();
 
         serializeService.init();
@@ -440,6 +479,8 @@ public class WebAPI {
     public void onServerStart(GameStartedServerEvent event) {
         server.start(null);
 
+        blockService.loadOperations();
+
         checkForUpdates();
 
         // Add custom bstats metrics
@@ -468,6 +509,10 @@ public class WebAPI {
     @Listener
     public void onServerStop(GameStoppedServerEvent event) {
         server.stop();
+        webHookService.stop();
+        serverService.stop();
+        blockService.stop();
+        mapService.stop();
     }
     @Listener
     public void onReload(GameReloadEvent event) {
@@ -523,23 +568,10 @@ public class WebAPI {
 
     // Run functions on the main server thread
     public static void runOnMain(Runnable runnable) throws WebApplicationException {
-        if (Sponge.getServer().isMainThread()) {
+        runOnMain(() -> {
             runnable.run();
-        } else {
-            CompletableFuture future = CompletableFuture.runAsync(runnable, WebAPI.syncExecutor);
-            try {
-                future.get();
-            } catch (InterruptedException ignored) {
-            } catch (ExecutionException e) {
-                // Rethrow any web application exceptions we get, because they're handled by the servlets
-                if (e.getCause() instanceof WebApplicationException)
-                    throw (WebApplicationException)e.getCause();
-
-                e.printStackTrace();
-                WebAPI.sentryCapture(e);
-                throw new InternalServerErrorException(e.getMessage());
-            }
-        }
+            return null;
+        });
     }
     public static <T> T runOnMain(Supplier<T> supplier) throws WebApplicationException {
         if (Sponge.getServer().isMainThread()) {
@@ -548,21 +580,83 @@ public class WebAPI {
             Timings.RUN_ON_MAIN.stopTiming();
             return obj;
         } else {
-            CompletableFuture<T> future = CompletableFuture.supplyAsync(supplier, WebAPI.syncExecutor);
+            CompletableFuture<T> future = runOnMainAsync(supplier);
             try {
-                return future.get();
+                return future.get(WebAPI.getMainThreadTimeout(), TimeUnit.MILLISECONDS);
             } catch (InterruptedException e) {
+                future.cancel(false);
                 throw new InternalServerErrorException(e.getMessage());
+            } catch (TimeoutException e) {
+                future.cancel(false);
+                throw new ServiceUnavailableException("Timed out waiting for the main server thread");
             } catch (ExecutionException e) {
-                // Rethrow any web application exceptions we get, because they're handled by the servlets
-                if (e.getCause() instanceof WebApplicationException)
-                    throw (WebApplicationException)e.getCause();
+                throw WebAPI.asWebApplicationException(e.getCause());
+            }
+        }
+    }
 
-                e.printStackTrace();
-                WebAPI.sentryCapture(e);
-                throw new InternalServerErrorException(e.getMessage());
+    /**
+     * Runs the supplier on the main server thread without blocking the calling thread. The returned future
+     * fails with a {@link ServiceUnavailableException} if too many tasks are already waiting for the main thread.
+     * Cancelling the future before the task started prevents the supplier from running.
+     * @param supplier The supplier to run on the main server thread.
+     * @param <T> The type of the result.
+     * @return A future that completes with the result of the supplier.
+     */
+    public static <T> CompletableFuture<T> runOnMainAsync(Supplier<T> supplier) {
+        return runOnMainAsync(null, supplier);
+    }
+
+    /**
+     * Runs the supplier on the main server thread without blocking the calling thread. Concurrent calls with an
+     * equal key share one execution of the supplier (and therefore the same result object), so the key has
+     * to describe the result completely.
+     * @param key The key identifying the result, or null if the result must not be shared.
+     * @param supplier The supplier to run on the main server thread.
+     * @param <T> The type of the result.
+     * @return A future that completes with the result of the supplier.
+     * @see #runOnMainAsync(Supplier)
+     */
+    public static <T> CompletableFuture<T> runOnMainAsync(Object key, Supplier<T> supplier) {
+        if (Sponge.getServer().isMainThread()) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            Timings.RUN_ON_MAIN.startTiming();
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
             }
+            Timings.RUN_ON_MAIN.stopTiming();
+            return future;
+        }
+
+        int max = WebAPI.getInstance().maxPendingMainTasks;
+        if (max > 0 && mainThreadQueue.getSize() >= max) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(new ServiceUnavailableException("The main server thread is overloaded", 1L));
+            return future;
+        }
+
+        return mainThreadQueue.submit(key, supplier);
+    }
+
+    /**
+     * Converts an error that happened while running a task into an exception that can be returned to the client.
+     * @param t The error that occurred.
+     * @return The matching web application exception.
+     */
+    public static WebApplicationException asWebApplicationException(Throwable t) {
+        if (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
         }
+
+        // Rethrow any web application exceptions we get, because they're handled by the servlets
+        if (t instanceof WebApplicationException)
+            return (WebApplicationException)t;
+
+        t.printStackTrace();
+        WebAPI.sentryCapture(t);
+        return new InternalServerErrorException(t.getMessage());
     }
 
     // Emulate HTTP requests from sockets
@@ -571,6 +665,11 @@ public class WebAPI {
             InternalHttpRequest req = new InternalHttpRequest(message);
             InternalHttpResponse res = new InternalHttpResponse();
             server.handle(message.getPath(), req, req, res);
+            // Wait for requests that were suspended by the servlet
+            if (!req.awaitAsyncComplete(getMainThreadTimeout() + 1000, TimeUnit.MILLISECONDS)) {
+                return new ResponseMessage(message.getId(), HttpServletResponse.SC_SERVICE_UNAVAILABLE,
+                        new HashMap<>(), "Timed out waiting for the response");
+            }
             return new ResponseMessage(message.getId(), res.getStatus(), res.getHeaders(), res.getOuput());
         } catch (Exception e) {
             e.printStackTrace();
@@ -23,6 +23,7 @@ import org.spongepowered.api.text.format.TextColors;
 import valandur.webapi.config.MainConfig;
 import valandur.webapi.handler.AssetHandler;
 import valandur.webapi.handler.ErrorHandler;
+import valandur.webapi.hook.stream.EventStreamServlet;
 import valandur.webapi.serialize.SerializationFeature;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.util.Constants;
@@ -238,10 +239,15 @@ public class WebServer {
             // Jersey servlet
             ServletHolder jerseyServlet = new ServletHolder(new ServletContainer(conf));
             jerseyServlet.setInitOrder(1);
+            // Required so that servlets can suspend requests while they wait for the main server thread
+            jerseyServlet.setAsyncSupported(true);
             // This if for Swagger 3.0
             // jerseyServlet.setInitParameter("openApi.configuration.location", assets/webapi/swagger/config.json");                                    // This is for Swagger 3.0
             servletsContext.addServlet(jerseyServlet, "/*");
 
+            // WebSocket endpoint to subscribe to events
+            servletsContext.addServlet(new ServletHolder(new EventStreamServlet()), "/events");
+
             // Register swagger as bean
             // TODO: We can't set scheme and host yet because Swagger 2.0 doesn't support multiple different ones
             BeanConfig beanConfig = new BeanConfig();
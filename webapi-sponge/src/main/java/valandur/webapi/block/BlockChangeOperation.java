@@ -1,37 +1,191 @@
 package valandur.webapi.block;
 
 import com.flowpowered.math.vector.Vector3i;
+import com.google.common.io.CountingInputStream;
 import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import org.spongepowered.api.Sponge;
 import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.world.BlockChangeFlags;
 import org.spongepowered.api.world.World;
+import valandur.webapi.WebAPI;
 import valandur.webapi.cache.world.CachedWorld;
+import valandur.webapi.util.PaletteArray;
 
-import java.util.Map;
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.UUID;
 
 @ApiModel(parent = BlockOperation.class)
 public class BlockChangeOperation extends BlockOperation {
 
-    Map<Vector3i, BlockState> newStates;
+    // The new block for each position of the volume, indexed by x, then y, then z. Null means unchanged.
+    private PaletteArray<BlockState> newStates;
+
+    // The blocks before they were changed, saved per chunk section so the operation can be undone
+    private final boolean undoable;
+    private final Path undoFile;
+    private long undoLength;
+    private int capturedChunk = -1;
+    private int capturedY;
 
     @Override
     public BlockOperationType getType() {
         return BlockOperationType.CHANGE;
     }
 
-    public BlockChangeOperation(CachedWorld world, Vector3i min, Vector3i max, Map<Vector3i, BlockState> blocks) {
-        super(world, min, max);
+    @ApiModelProperty(value = "True if the previous blocks are saved, so that this operation can be undone", required = true)
+    public boolean isUndoable() {
+        return undoable;
+    }
+
+
+    public BlockChangeOperation(CachedWorld world, Vector3i min, Vector3i max, PaletteArray<BlockState> blocks,
+                                boolean undoable) {
+        this(UUID.randomUUID(), world, min, max, blocks, undoable);
+    }
+    public BlockChangeOperation(UUID uuid, CachedWorld world, Vector3i min, Vector3i max,
+                                PaletteArray<BlockState> blocks, boolean undoable) {
+        super(uuid, world, min, max);
 
         this.newStates = blocks;
+        this.undoable = undoable;
+        this.undoFile = BlockService.getDataFile(uuid, ".undo");
+    }
+
+    @Override
+    protected void writeRequest(DataOutput out) throws IOException {
+        BlockSection.writeBlocks(out, newStates, BlockState::getId);
+        out.writeBoolean(undoable);
+    }
+
+    @Override
+    protected void onSectionStart(World world, int chunk, Vector3i min, Vector3i max) {
+        // When resuming we might already have saved this section, before some of its blocks were changed
+        if (!undoable || (chunk == capturedChunk && min.getY() <= capturedY)) {
+            return;
+        }
+
+        BlockSection<BlockState> section = new BlockSection<>(min, max.sub(min).add(1, 1, 1));
+
+        // Only save the blocks that are actually changed
+        for (int x = min.getX(); x <= max.getX(); x++) {
+            for (int y = min.getY(); y <= max.getY(); y++) {
+                for (int z = min.getZ(); z <= max.getZ(); z++) {
+                    Vector3i pos = new Vector3i(x, y, z);
+                    if (newStates.get(getIndex(pos)) != null) {
+                        section.set(pos, world.getBlock(pos).copy());
+                    }
+                }
+            }
+        }
+
+        BlockService blockService = WebAPI.getBlockService();
+        if (section.getBlocks().getPalette().size() > 1 || section.getBlocks().get(0) != null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try {
+                section.write(new DataOutputStream(bytes), BlockState::getId);
+            } catch (IOException e) {
+                stop("Could not save blocks for undo: " + e.getMessage());
+                return;
+            }
+
+            // The blocks are written to disk by the block data thread, before the checkpoint below
+            undoLength += bytes.size();
+            blockService.write(this, "Could not save blocks for undo", () -> {
+                Files.createDirectories(undoFile.getParent());
+                try (OutputStream out = new FileOutputStream(undoFile.toFile(), true)) {
+                    bytes.writeTo(out);
+                }
+            });
+        }
+
+        // Save right away, so that we never save the blocks of this section again after changing them
+        capturedChunk = chunk;
+        capturedY = min.getY();
+        blockService.checkpoint(this);
     }
 
     @Override
     protected void processBlock(World world, Vector3i pos) {
-        BlockState state = newStates.get(pos);
+        BlockState state = newStates.get(getIndex(pos));
 
         if (state == null)
             return;
 
         world.setBlock(pos, state, BlockChangeFlags.NONE);
     }
+
+    @Override
+    protected void writeCheckpointData(DataOutput out) throws IOException {
+        out.writeLong(undoLength);
+        out.writeInt(capturedChunk);
+        out.writeInt(capturedY);
+    }
+
+    @Override
+    protected void readCheckpointData(DataInput in) throws IOException {
+        undoLength = in.readLong();
+        capturedChunk = in.readInt();
+        capturedY = in.readInt();
+
+        // Drop the blocks that were saved after the checkpoint
+        if (Files.exists(undoFile)) {
+            try (RandomAccessFile file = new RandomAccessFile(undoFile.toFile(), "rw")) {
+                if (file.length() > undoLength) {
+                    file.setLength(undoLength);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onRemove() {
+        try {
+            Files.deleteIfExists(undoFile);
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Could not delete undo data " + undoFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Creates an operation that changes all the blocks touched by this operation back to what they were before.
+     * This operation has to be undoable and must not be running anymore, and its data has to be marked as being
+     * read with {@link #beginRead()}.
+     * @return The operation that undoes this operation. It still has to be started.
+     * @throws IOException If reading the saved blocks fails.
+     */
+    public BlockChangeOperation createUndo() throws IOException {
+        PaletteArray<BlockState> blocks = new PaletteArray<>(newStates.size());
+
+        // Blocks that were saved last might still be waiting to be written
+        WebAPI.getBlockService().awaitWrites();
+
+        if (undoLength <= 0) {
+            return new BlockChangeOperation(world, min, max, blocks, false);
+        }
+
+        try (CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(undoFile.toFile())))) {
+            DataInputStream in = new DataInputStream(counter);
+            while (counter.getCount() < undoLength) {
+                BlockSection<BlockState> section = BlockSection.read(in).map(id -> id != null ?
+                        Sponge.getRegistry().getType(BlockState.class, id).orElse(null) : null);
+                for (int x = section.getMin().getX(); x <= section.getMax().getX(); x++) {
+                    for (int y = section.getMin().getY(); y <= section.getMax().getY(); y++) {
+                        for (int z = section.getMin().getZ(); z <= section.getMax().getZ(); z++) {
+                            Vector3i pos = new Vector3i(x, y, z);
+                            BlockState state = section.get(pos);
+                            if (state != null) {
+                                blocks.set(getIndex(pos), state);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+
+        return new BlockChangeOperation(world, min, max, blocks, false);
+    }
 }
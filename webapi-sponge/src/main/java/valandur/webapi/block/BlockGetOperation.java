@@ -1,38 +1,268 @@
 package valandur.webapi.block;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.flowpowered.math.vector.Vector3i;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
 import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
 import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.extent.ImmutableBlockVolume;
+import valandur.webapi.WebAPI;
 import valandur.webapi.cache.world.CachedWorld;
-import valandur.webapi.serialize.JsonDetails;
+import valandur.webapi.util.PaletteArray;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
 
 @ApiModel(parent = BlockOperation.class)
-public class BlockGetOperation extends BlockOperation {
+public class BlockGetOperation extends BlockOperation implements SnapshotOperation {
+
+    private static final int MAGIC = 0x5741424F;    // "WABO"
+    private static final int VERSION = 1;
 
-    private BlockState[][][] blockStates;
+    // Sections that aren't complete yet. Complete sections are written to the data file and dropped.
+    private Map<Vector3i, BlockSection<BlockState>> sections = new HashMap<>();
+    private final Path dataFile;
+    // The output is only used by the block data thread, which also updates the length of the written data
+    private DataOutputStream out;
+    private volatile long dataLength;
+    // The length of the data once everything that was submitted is written
+    private long queuedLength;
+    private long chunkDataLength;
 
     @Override
     public BlockOperationType getType() {
         return BlockOperationType.GET;
     }
 
-    @JsonDetails
-    public BlockState[][][] getBlocks() {
-        return blockStates;
+    /**
+     * Gets the link at which the blocks of this operation can be streamed. The blocks aren't included
+     * in the details of the operation, because they would all have to be loaded into memory.
+     * @return The link to the data of this operation.
+     */
+    @ApiModelProperty(value = "The link at which the blocks of this operation can be retrieved", required = true)
+    public String getDataLink() {
+        return getLink() + "/data";
     }
 
 
     public BlockGetOperation(CachedWorld world, Vector3i min, Vector3i max) {
-        super(world, min, max);
-        blockStates = new  BlockState[size.getX()][size.getY()][size.getZ()];
+        this(UUID.randomUUID(), world, min, max);
+    }
+    public BlockGetOperation(UUID uuid, CachedWorld world, Vector3i min, Vector3i max) {
+        super(uuid, world, min, max);
+        this.dataFile = BlockService.getDataFile(uuid, ".dat");
     }
 
     @Override
     protected void processBlock(World world, Vector3i pos) {
-        int x = pos.getX() - min.getX();
-        int y = pos.getY() - min.getY();
-        int z = pos.getZ() - min.getZ();
-        blockStates[x][y][z] = world.getBlock(pos).copy();
+        Vector3i secPos = BlockSection.getSectionPos(pos);
+        BlockSection<BlockState> section = sections.get(secPos);
+        if (section == null) {
+            section = BlockSection.containing(pos, min, max);
+            sections.put(secPos, section);
+        }
+
+        section.set(pos, world.getBlock(pos).copy());
+
+        if (section.isComplete()) {
+            sections.remove(secPos);
+            writeSection(section);
+        }
+    }
+
+    @Override
+    public Runnable processSnapshot(ImmutableBlockVolume blocks, Vector3i min, Vector3i max) {
+        // Build and serialize the sections here, so that the main thread only has to append them
+        Map<Vector3i, BlockSection<BlockState>> chunkSections = new LinkedHashMap<>();
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int x = min.getX(); x <= max.getX(); x++) {
+                for (int z = min.getZ(); z <= max.getZ(); z++) {
+                    Vector3i pos = new Vector3i(x, y, z);
+                    BlockSection<BlockState> section = chunkSections.computeIfAbsent(
+                            BlockSection.getSectionPos(pos), p -> BlockSection.containing(pos, this.min, this.max));
+                    section.set(pos, blocks.getBlock(pos));
+                }
+            }
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            DataOutputStream data = new DataOutputStream(bytes);
+            for (BlockSection<BlockState> section : chunkSections.values()) {
+                section.write(data, BlockState::getId);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return () -> appendData(bytes);
+    }
+
+    private void writeSection(BlockSection<BlockState> section) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            section.write(new DataOutputStream(bytes), BlockState::getId);
+        } catch (IOException e) {
+            stop("Could not write block data: " + e.getMessage());
+            return;
+        }
+        appendData(bytes);
+    }
+
+    private void appendData(ByteArrayOutputStream bytes) {
+        queuedLength += bytes.size();
+        WebAPI.getBlockService().write(this, "Could not write block data", () -> {
+            if (out == null) {
+                Files.createDirectories(dataFile.getParent());
+                out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(dataFile.toFile(), true)));
+            }
+            bytes.writeTo(out);
+            out.flush();
+            dataLength += bytes.size();
+        });
+    }
+
+    @Override
+    protected void onChunkDone() {
+        chunkDataLength = queuedLength;
+    }
+
+    @Override
+    protected void writeCheckpointData(DataOutput out) throws IOException {
+        out.writeLong(chunkDataLength);
+    }
+
+    @Override
+    protected void readCheckpointData(DataInput in) throws IOException {
+        chunkDataLength = in.readLong();
+        queuedLength = chunkDataLength;
+        dataLength = chunkDataLength;
+
+        // Drop the sections of the chunk that was being processed, because it is processed again
+        if (Files.exists(dataFile)) {
+            try (RandomAccessFile file = new RandomAccessFile(dataFile.toFile(), "rw")) {
+                if (file.length() > dataLength) {
+                    file.setLength(dataLength);
+                }
+            }
+        }
+    }
+
+    @Override
+    protected void onStop() {
+        sections.clear();
+        WebAPI.getBlockService().write(this, null, () -> {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        });
+    }
+
+    @Override
+    protected void onRemove() {
+        try {
+            Files.deleteIfExists(dataFile);
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Could not delete block data " + dataFile + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the sections that are complete so far to the output stream. The binary format consists of a header
+     * (magic, version, min and max of the operation), followed by the sections as written by
+     * {@link BlockSection#write(DataOutput, java.util.function.Function)}. The json format contains the palette
+     * of each section and the palette index of each block, indexed by x, then y, then z.
+     * @param output The stream to write to.
+     * @param binary True to write the binary format, false to write json.
+     * @throws IOException If reading the data or writing to the stream fails.
+     */
+    public void writeData(OutputStream output, boolean binary) throws IOException {
+        if (binary) {
+            DataOutputStream dataOut = new DataOutputStream(output);
+            dataOut.writeInt(MAGIC);
+            dataOut.writeInt(VERSION);
+            writeVector(dataOut, min);
+            writeVector(dataOut, max);
+            if (dataLength > 0) {
+                try (InputStream in = new FileInputStream(dataFile.toFile())) {
+                    ByteStreams.copy(ByteStreams.limit(in, dataLength), dataOut);
+                }
+            }
+            dataOut.flush();
+            return;
+        }
+
+        JsonGenerator gen = new JsonFactory().createGenerator(output);
+        gen.writeStartObject();
+        gen.writeStringField("uuid", uuid.toString());
+        gen.writeFieldName("min");
+        writeVector(gen, min);
+        gen.writeFieldName("max");
+        writeVector(gen, max);
+        gen.writeArrayFieldStart("sections");
+        readSections(section -> {
+            gen.writeStartObject();
+            gen.writeFieldName("min");
+            writeVector(gen, section.getMin());
+            gen.writeFieldName("size");
+            writeVector(gen, section.getSize());
+            gen.writeArrayFieldStart("palette");
+            PaletteArray<String> blocks = section.getBlocks();
+            for (String id : blocks.getPalette()) {
+                gen.writeString(id);
+            }
+            gen.writeEndArray();
+            gen.writeArrayFieldStart("blocks");
+            for (int i = 0; i < blocks.size(); i++) {
+                gen.writeNumber(blocks.getPaletteIndex(i));
+            }
+            gen.writeEndArray();
+            gen.writeEndObject();
+        });
+        gen.writeEndArray();
+        gen.writeEndObject();
+        gen.flush();
+    }
+
+    private void readSections(SectionConsumer consumer) throws IOException {
+        long length = dataLength;
+        if (length <= 0) {
+            return;
+        }
+
+        try (CountingInputStream counter = new CountingInputStream(
+                new BufferedInputStream(new FileInputStream(dataFile.toFile())))) {
+            DataInputStream in = new DataInputStream(counter);
+            while (counter.getCount() < length) {
+                consumer.accept(BlockSection.read(in));
+            }
+        }
+    }
+
+    private static void writeVector(DataOutput out, Vector3i vec) throws IOException {
+        out.writeInt(vec.getX());
+        out.writeInt(vec.getY());
+        out.writeInt(vec.getZ());
+    }
+    private static void writeVector(JsonGenerator gen, Vector3i vec) throws IOException {
+        gen.writeStartObject();
+        gen.writeNumberField("x", vec.getX());
+        gen.writeNumberField("y", vec.getY());
+        gen.writeNumberField("z", vec.getZ());
+        gen.writeEndObject();
+    }
+
+    @FunctionalInterface
+    private interface SectionConsumer {
+        void accept(BlockSection<String> section) throws IOException;
     }
 }
@@ -9,18 +9,26 @@ import io.swagger.annotations.ApiModelProperty;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.cause.EventContext;
-import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.world.Chunk;
 import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.extent.ImmutableBlockVolume;
 import valandur.webapi.WebAPI;
 import valandur.webapi.cache.CachedObject;
 import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.serialize.JsonDetails;
 import valandur.webapi.util.Constants;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Optional;
 import java.util.UUID;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 @JsonTypeInfo(
         use = JsonTypeInfo.Id.NAME,
@@ -32,15 +40,17 @@ import java.util.concurrent.TimeUnit;
 @JsonSubTypes({
         @JsonSubTypes.Type(value = BlockGetOperation.class, name = "GET"),
         @JsonSubTypes.Type(value = BlockChangeOperation.class, name = "CHANGE"),
+        @JsonSubTypes.Type(value = BlockQueryOperation.class, name = "QUERY"),
 })
-@ApiModel(value = "BlockOperation", subTypes = { BlockGetOperation.class, BlockChangeOperation.class })
+@ApiModel(value = "BlockOperation",
+        subTypes = { BlockGetOperation.class, BlockChangeOperation.class, BlockQueryOperation.class })
 public abstract class BlockOperation extends CachedObject<BlockOperation> {
 
     /**
      * The type of block operation
      */
     public enum BlockOperationType {
-        GET, CHANGE
+        GET, CHANGE, QUERY
     }
 
     /**
@@ -54,9 +64,29 @@ public abstract class BlockOperation extends CachedObject<BlockOperation> {
     private BlockService blockService;
     private final int totalBlocks;
     private int currentBlock = 0;
-    private Task task;
-
-    protected BlockOperationStatus status = BlockOperationStatus.INIT;
+    private long runningMillis;
+    private long runningSince;
+    private long lastProgressEvent;
+    private long finishedAt;
+    private int chunksSinceCheckpoint;
+
+    // The chunk columns spanned by this operation, and the block within the current chunk
+    private final Vector3i chunkSize;
+    private final Vector3i chunkMin;
+    private final Vector3i chunkCount;
+    private final int totalChunks;
+    private int currentChunk = 0;
+    private int currentChunkBlock = 0;
+
+    // Chunk snapshots that are being processed off the main thread, in chunk order
+    private final Deque<CompletableFuture<Runnable>> pending = new ArrayDeque<>();
+    private int snapshotChunk = 0;
+
+    // The amount of requests reading the data of this operation, or -1 once the data was freed
+    private final AtomicInteger readers = new AtomicInteger();
+    private volatile boolean removed;
+
+    protected volatile BlockOperationStatus status = BlockOperationStatus.INIT;
     protected UUID uuid;
     protected String error = null;
     protected Cause cause;
@@ -116,16 +146,27 @@ public abstract class BlockOperation extends CachedObject<BlockOperation> {
 
 
     public BlockOperation(CachedWorld world, Vector3i min, Vector3i max) {
+        this(UUID.randomUUID(), world, min, max);
+    }
+    public BlockOperation(UUID uuid, CachedWorld world, Vector3i min, Vector3i max) {
         super(null);
 
         this.blockService = WebAPI.getBlockService();
-        this.uuid = UUID.randomUUID();
+        this.uuid = uuid;
         this.world = world;
         this.min = min;
         this.max = max;
         this.size = max.sub(min).add(1, 1, 1);
         this.cause = Cause.of(EventContext.empty(), WebAPI.getContainer());
         this.totalBlocks = size.getX() * size.getY() * size.getZ();
+
+        this.chunkSize = Sponge.getServer().getChunkLayout().getChunkSize();
+        this.chunkMin = new Vector3i(
+                Math.floorDiv(min.getX(), chunkSize.getX()), 0, Math.floorDiv(min.getZ(), chunkSize.getZ()));
+        this.chunkCount = new Vector3i(
+                Math.floorDiv(max.getX(), chunkSize.getX()), 0, Math.floorDiv(max.getZ(), chunkSize.getZ()))
+                .sub(chunkMin).add(1, 1, 1);
+        this.totalChunks = chunkCount.getX() * chunkCount.getZ();
     }
 
     @ApiModelProperty(value = "The current progress of the block operation, from 0 (=started) to 1 (=finished)", required = true)
@@ -135,74 +176,337 @@ public abstract class BlockOperation extends CachedObject<BlockOperation> {
 
     @ApiModelProperty(value = "The estimated amount of time remaining until this block operation is complete (in seconds)", required = true)
     public float getEstimatedSecondsRemaining() {
-        return (float)(totalBlocks - currentBlock) / blockService.getMaxBlocksPerSecond();
+        long millis = runningMillis + (status == BlockOperationStatus.RUNNING ?
+                System.currentTimeMillis() - runningSince : 0);
+        if (currentBlock > 0 && millis > 0) {
+            return (float)(totalBlocks - currentBlock) * millis / currentBlock / 1000f;
+        }
+        int maxPerSecond = blockService.getMaxBlocksPerSecond();
+        return maxPerSecond > 0 ? (float)(totalBlocks - currentBlock) / maxPerSecond : 0;
     }
 
     /**
      * Starts this operation. Has no effect if already started, done or errored.
+     * The operation is run by the scheduler of the {@link BlockService}.
      */
-    final public void start() {
+    final public synchronized void start() {
         if (status != BlockOperationStatus.INIT && status != BlockOperationStatus.PAUSED) return;
         status = BlockOperationStatus.RUNNING;
-
-        task = Task.builder()
-                .execute(this::run)
-                .name("WebAPI - BlockUpdate - " + this.getUUID().toString())
-                .interval(500, TimeUnit.MILLISECONDS)
-                .submit(WebAPI.getInstance());
+        runningSince = System.currentTimeMillis();
+        blockService.checkpoint(this);
 
         Sponge.getEventManager().post(new BlockOperationStatusChangeEvent(this));
     }
 
-    private void run() {
-        if (status != BlockOperationStatus.RUNNING) return;
+    /**
+     * Processes blocks of this operation until the deadline is reached, the limit of blocks is reached, or the
+     * operation is done. The blocks are processed chunk by chunk, and each chunk is only loaded once.
+     * Operations that implement {@link SnapshotOperation} are processed with {@link #stepSnapshots(World, long)}
+     * instead, which isn't limited by the amount of blocks.
+     * This has to be called on the main server thread.
+     * @param deadline The {@link System#nanoTime()} at which processing has to stop.
+     * @param maxBlocks The maximum amount of blocks to process, or 0 for no limit.
+     * @return The amount of blocks that were processed.
+     */
+    final synchronized int step(long deadline, int maxBlocks) {
+        if (status != BlockOperationStatus.RUNNING) return 0;
 
         Optional<?> optWorld = world.getLive();
         if (!optWorld.isPresent()) {
             stop("Invalid world");
-            return;
+            return 0;
         }
 
         World world = (World)optWorld.get();
 
-        int nextLimit = Math.min(currentBlock + blockService.getMaxBlocksPerSecond() / 2, totalBlocks);
-        for (; currentBlock < nextLimit; currentBlock++) {
-            int x = currentBlock / (size.getY() * size.getZ());
-            int y = (currentBlock - x * size.getY() * size.getZ()) / size.getZ();
-            int z = currentBlock - x * size.getY() * size.getZ() - y * size.getZ();
-            Vector3i pos = new Vector3i(x, y, z).add(min);
-
-            Optional<Vector3i> chunkPos = Sponge.getServer().getChunkLayout().toChunk(pos);
-            if (!chunkPos.isPresent()) {
-                stop("Invalid chunk pos");
-                return;
+        // Snapshots can only be used from the start of a chunk, and the ones that were taken have to be finished
+        if (!pending.isEmpty() ||
+                (currentChunkBlock == 0 && this instanceof SnapshotOperation &&
+                        ((SnapshotOperation)this).canUseSnapshots() && blockService.isParallelScan())) {
+            return stepSnapshots(world, deadline);
+        }
+
+        int processed = 0;
+        boolean loaded = false;
+        while (currentBlock < totalBlocks) {
+            Vector3i chunkPos = getChunkPos(currentChunk);
+
+            // The part of the operation within the current chunk
+            Vector3i cMin = getChunkMin(chunkPos);
+            Vector3i cMax = getChunkMax(chunkPos);
+            Vector3i cSize = cMax.sub(cMin).add(1, 1, 1);
+            int cTotal = cSize.getX() * cSize.getY() * cSize.getZ();
+
+            // The chunk might have been unloaded since the last tick, so load it once per step
+            if (!loaded) {
+                Optional<Chunk> chunk = world.loadChunk(chunkPos.getX(), 0, chunkPos.getZ(), true);
+                if (!chunk.isPresent()) {
+                    stop("Invalid chunk");
+                    return processed;
+                }
+                loaded = true;
+            }
+
+            if (currentChunkBlock == 0) {
+                onChunkStart(world, currentChunk, cMin, cMax);
+                if (status != BlockOperationStatus.RUNNING) {
+                    return processed;
+                }
+            }
+
+            for (; currentChunkBlock < cTotal; currentChunkBlock++) {
+                // Check the time every now and then, nanoTime is not free either
+                boolean outOfTime = processed > 0 && (processed & 63) == 0 && System.nanoTime() >= deadline;
+                if (outOfTime || (maxBlocks > 0 && processed >= maxBlocks)) {
+                    postProgress();
+                    return processed;
+                }
+
+                // Go layer by layer, so that the chunk sections are finished one after another
+                int y = currentChunkBlock / (cSize.getX() * cSize.getZ());
+                int x = (currentChunkBlock / cSize.getZ()) % cSize.getX();
+                int z = currentChunkBlock % cSize.getZ();
+
+                int blockY = cMin.getY() + y;
+                if (x == 0 && z == 0 && (y == 0 || Math.floorMod(blockY, BlockSection.SIZE) == 0)) {
+                    int sectionMaxY = Math.floorDiv(blockY, BlockSection.SIZE) * BlockSection.SIZE +
+                            BlockSection.SIZE - 1;
+                    onSectionStart(world, currentChunk, new Vector3i(cMin.getX(), blockY, cMin.getZ()),
+                            new Vector3i(cMax.getX(), Math.min(cMax.getY(), sectionMaxY), cMax.getZ()));
+                    if (status != BlockOperationStatus.RUNNING) {
+                        return processed;
+                    }
+                }
+
+                processBlock(world, cMin.add(x, y, z));
+                currentBlock++;
+                processed++;
+
+                // Processing the block might have stopped the operation
+                if (status != BlockOperationStatus.RUNNING) {
+                    return processed;
+                }
+            }
+
+            currentChunkBlock = 0;
+            loaded = false;
+            finishChunk();
+        }
+
+        stop(null);
+        return processed;
+    }
+
+    /**
+     * Applies the results of the chunk snapshots that were processed, in chunk order, and then takes snapshots
+     * of the next chunks until the deadline is reached or enough snapshots are waiting to be processed.
+     * Taking a snapshot only copies the blocks, the work for each block is done by the scan pool of the
+     * {@link BlockService}.
+     * @param world The world of this operation.
+     * @param deadline The {@link System#nanoTime()} at which taking snapshots has to stop.
+     * @return The amount of blocks that were processed.
+     */
+    private int stepSnapshots(World world, long deadline) {
+        if (pending.isEmpty()) {
+            snapshotChunk = currentChunk;
+        }
+
+        int processed = 0;
+        while (!pending.isEmpty() && pending.peek().isDone()) {
+            Runnable result;
+            try {
+                result = pending.poll().join();
+            } catch (CompletionException | CancellationException e) {
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                stop("Could not process chunk: " + cause.getMessage());
+                return processed;
+            }
+
+            result.run();
+            if (status != BlockOperationStatus.RUNNING) {
+                return processed;
             }
 
-            Optional<Chunk> chunk = world.loadChunk(chunkPos.get(), true);
+            Vector3i chunkPos = getChunkPos(currentChunk);
+            Vector3i cSize = getChunkMax(chunkPos).sub(getChunkMin(chunkPos)).add(1, 1, 1);
+            int blocks = cSize.getX() * cSize.getY() * cSize.getZ();
+            currentBlock += blocks;
+            processed += blocks;
+            finishChunk();
+        }
+
+        if (currentChunk >= totalChunks) {
+            stop(null);
+            return processed;
+        }
+
+        int maxPending = blockService.getMaxPendingSnapshots();
+        while (snapshotChunk < totalChunks && pending.size() < maxPending && System.nanoTime() < deadline) {
+            Vector3i chunkPos = getChunkPos(snapshotChunk);
+            Optional<Chunk> chunk = world.loadChunk(chunkPos.getX(), 0, chunkPos.getZ(), true);
             if (!chunk.isPresent()) {
                 stop("Invalid chunk");
-                return;
+                return processed;
             }
 
-            processBlock(world, pos);
+            Vector3i cMin = getChunkMin(chunkPos);
+            Vector3i cMax = getChunkMax(chunkPos);
+            ImmutableBlockVolume blocks = world.getBlockView(cMin, cMax).getImmutableBlockCopy();
+            SnapshotOperation op = (SnapshotOperation)this;
+            pending.add(CompletableFuture.supplyAsync(
+                    () -> op.processSnapshot(blocks, cMin, cMax), blockService.getScanPool()));
+            snapshotChunk++;
         }
 
-        if (currentBlock >= totalBlocks - 1) {
-            stop(null);
+        postProgress();
+        return processed;
+    }
+
+    private void finishChunk() {
+        currentChunk++;
+        onChunkDone();
+
+        if (++chunksSinceCheckpoint >= blockService.getCheckpointInterval()) {
+            chunksSinceCheckpoint = 0;
+            blockService.checkpoint(this);
         }
+    }
+
+    private Vector3i getChunkPos(int chunk) {
+        return chunkMin.add(chunk / chunkCount.getZ(), 0, chunk % chunkCount.getZ());
+    }
+    private Vector3i getChunkMin(Vector3i chunkPos) {
+        return new Vector3i(Math.max(chunkPos.getX() * chunkSize.getX(), min.getX()), min.getY(),
+                Math.max(chunkPos.getZ() * chunkSize.getZ(), min.getZ()));
+    }
+    private Vector3i getChunkMax(Vector3i chunkPos) {
+        return new Vector3i(Math.min((chunkPos.getX() + 1) * chunkSize.getX() - 1, max.getX()), max.getY(),
+                Math.min((chunkPos.getZ() + 1) * chunkSize.getZ() - 1, max.getZ()));
+    }
+
+    private void postProgress() {
+        long now = System.currentTimeMillis();
+        if (now - lastProgressEvent < 500) return;
+        lastProgressEvent = now;
 
         Sponge.getEventManager().post(new BlockOperationProgressEvent(this));
     }
+
     protected abstract void processBlock(World world, Vector3i pos);
 
+    /**
+     * Gets the index of the position within the volume of this operation, indexed by x, then y, then z.
+     * @param pos The position of the block, which must be within this operation.
+     * @return The index of the block.
+     */
+    protected int getIndex(Vector3i pos) {
+        return ((pos.getX() - min.getX()) * size.getY() + pos.getY() - min.getY()) * size.getZ() +
+                pos.getZ() - min.getZ();
+    }
+
+    /**
+     * Called before the first block of a chunk is processed. When an operation is resumed this is called
+     * again for the chunk that was being processed.
+     * @param world The world of this operation.
+     * @param chunk The index of the chunk within this operation.
+     * @param min The minimum position of this operation within the chunk.
+     * @param max The maximum position of this operation within the chunk.
+     */
+    protected void onChunkStart(World world, int chunk, Vector3i min, Vector3i max) {
+    }
+
+    /**
+     * Called before the first block of each chunk section is processed. Blocks are processed layer by layer, so
+     * the sections of a chunk are started from the bottom up, each of them during the step that reaches it.
+     * When an operation is resumed this is called again for the sections of the chunk that was being processed.
+     * @param world The world of this operation.
+     * @param chunk The index of the chunk within this operation.
+     * @param min The minimum position of this operation within the chunk section.
+     * @param max The maximum position of this operation within the chunk section.
+     */
+    protected void onSectionStart(World world, int chunk, Vector3i min, Vector3i max) {
+    }
+
+    /**
+     * Called after all the blocks of a chunk were processed.
+     */
+    protected void onChunkDone() {
+    }
+
+    /**
+     * Called when this operation stops, either because it is done, or because it was canceled or errored.
+     */
+    protected void onStop() {
+    }
+
+    /**
+     * Called when this operation was removed from the block service and its data isn't read anymore, to free
+     * any resources held by it. This is called on the block data thread, after all the data of this operation
+     * was written.
+     */
+    protected void onRemove() {
+    }
+
+    /**
+     * Marks the data of this operation as being read, so that it isn't freed while it is read.
+     * Every successful call has to be followed by a call to {@link #endRead()}.
+     * @return True if the data can be read, false if the operation was already removed.
+     */
+    public boolean beginRead() {
+        while (true) {
+            int current = readers.get();
+            if (current < 0 || removed) {
+                return false;
+            }
+            if (readers.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Marks the end of reading the data of this operation. If the operation was removed in the meantime
+     * and this was the last reader, the data is freed.
+     */
+    public void endRead() {
+        if (readers.decrementAndGet() == 0 && removed && readers.compareAndSet(0, -1)) {
+            freeData();
+        }
+    }
+
+    /**
+     * Checks if the data of this operation is currently being read.
+     * @return True if the data is being read, false otherwise.
+     */
+    boolean isBeingRead() {
+        return readers.get() > 0;
+    }
+
+    /**
+     * Called when this operation is removed from the block service. The data is freed right away, or by the
+     * last reader once it is done.
+     */
+    void remove() {
+        removed = true;
+        if (readers.compareAndSet(0, -1)) {
+            freeData();
+        }
+    }
+
+    private void freeData() {
+        // Free the data after the writes that are still pending, so that they don't create the files again
+        blockService.write(this, null, this::onRemove);
+    }
+
     /**
      * Pauses this operation. Has no effect if not running.
      */
-    final public void pause() {
+    final public synchronized void pause() {
         if (status != BlockOperationStatus.RUNNING) return;
 
-        task.cancel();
         status = BlockOperationStatus.PAUSED;
+        runningMillis += System.currentTimeMillis() - runningSince;
+        blockService.checkpoint(this);
 
         Sponge.getEventManager().post(new BlockOperationStatusChangeEvent(this));
     }
@@ -212,21 +516,104 @@ public abstract class BlockOperation extends CachedObject<BlockOperation> {
      * Once an operation is stopped it cannot be resumed.
      * @param error The error, if any, that occurred and is the reason this operation was stopped.
      */
-    final public void stop(String error) {
+    final public synchronized void stop(String error) {
         if (status != BlockOperationStatus.RUNNING && status != BlockOperationStatus.PAUSED) return;
 
-        boolean res = task.cancel();
+        if (status == BlockOperationStatus.RUNNING) {
+            runningMillis += System.currentTimeMillis() - runningSince;
+        }
         if (error == null || error.isEmpty()) {
-            this.status = currentBlock >= totalBlocks - 1 ? BlockOperationStatus.DONE : BlockOperationStatus.CANCELED;
+            this.status = currentBlock >= totalBlocks ? BlockOperationStatus.DONE : BlockOperationStatus.CANCELED;
             this.error = null;
         } else {
             this.status = BlockOperationStatus.ERRORED;
             this.error = error;
         }
 
+        // Results of snapshots that are still being processed aren't needed anymore
+        for (CompletableFuture<Runnable> future : pending) {
+            future.cancel(false);
+        }
+        pending.clear();
+
+        finishedAt = System.currentTimeMillis();
+        onStop();
+        blockService.checkpoint(this);
+
         Sponge.getEventManager().post(new BlockOperationStatusChangeEvent(this));
     }
 
+    /**
+     * Gets the time at which this operation stopped.
+     * @return The epoch timestamp in milliseconds when this operation stopped, or 0 if it is still active.
+     */
+    @JsonIgnore
+    @ApiModelProperty(hidden = true)
+    public long getFinishedAt() {
+        return finishedAt;
+    }
+
+    /**
+     * Writes the parameters of this operation that are needed to recreate it, apart from the world and volume.
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    protected void writeRequest(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Writes the progress of this operation, so that it can be resumed later. Operations resume at the start of
+     * the chunk they were processing.
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    final synchronized void writeCheckpoint(DataOutput out) throws IOException {
+        out.writeByte(status.ordinal());
+        out.writeUTF(error != null ? error : "");
+        out.writeInt(currentChunk);
+        out.writeInt(currentBlock - currentChunkBlock);
+        out.writeLong(runningMillis + (status == BlockOperationStatus.RUNNING ?
+                System.currentTimeMillis() - runningSince : 0));
+        out.writeLong(finishedAt);
+        writeCheckpointData(out);
+    }
+
+    /**
+     * Restores the progress of this operation from a checkpoint.
+     * @param in The input to read from.
+     * @throws IOException If reading fails.
+     */
+    final synchronized void readCheckpoint(DataInput in) throws IOException {
+        status = BlockOperationStatus.values()[in.readUnsignedByte()];
+        error = in.readUTF();
+        if (error.isEmpty()) {
+            error = null;
+        }
+        currentChunk = in.readInt();
+        currentBlock = in.readInt();
+        currentChunkBlock = 0;
+        runningMillis = in.readLong();
+        runningSince = System.currentTimeMillis();
+        finishedAt = in.readLong();
+        readCheckpointData(in);
+    }
+
+    /**
+     * Writes additional data needed to resume this operation at the start of the current chunk.
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    protected void writeCheckpointData(DataOutput out) throws IOException {
+    }
+
+    /**
+     * Reads the data written by {@link #writeCheckpointData(DataOutput)}.
+     * @param in The input to read from.
+     * @throws IOException If reading fails.
+     */
+    protected void readCheckpointData(DataInput in) throws IOException {
+    }
+
     public String getLink() {
         return Constants.BASE_PATH + "/block/op/" + uuid;
     }
@@ -0,0 +1,164 @@
+package valandur.webapi.block;
+
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.block.trait.BlockTrait;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * The conditions that blocks have to meet to be matched by a {@link BlockQueryOperation}.
+ * All conditions that are specified have to be met.
+ */
+@ApiModel("BlockQuery")
+public class BlockQuery {
+
+    /**
+     * What the query returns.
+     */
+    public enum QueryMode {
+        COUNTS, POSITIONS
+    }
+
+    private List<String> types = new ArrayList<>();
+    @ApiModelProperty("The ids of the block types that are matched. Matches all block types if empty")
+    public List<String> getTypes() {
+        return types;
+    }
+
+    private Map<String, String> traits = new HashMap<>();
+    @ApiModelProperty("The values of block traits that have to match, such as \"variant\": \"granite\"")
+    public Map<String, String> getTraits() {
+        return traits;
+    }
+
+    private Integer minLight;
+    @ApiModelProperty("The minimum light level of the block")
+    public Integer getMinLight() {
+        return minLight;
+    }
+
+    private Integer maxLight;
+    @ApiModelProperty("The maximum light level of the block")
+    public Integer getMaxLight() {
+        return maxLight;
+    }
+
+    private Boolean tileEntity;
+    @ApiModelProperty("True to only match blocks with a tile entity, false to only match blocks without one")
+    public Boolean getTileEntity() {
+        return tileEntity;
+    }
+
+    private QueryMode mode = QueryMode.COUNTS;
+    @ApiModelProperty("COUNTS to return the amount of matching blocks per block type, POSITIONS to return the " +
+            "positions of the matching blocks")
+    public QueryMode getMode() {
+        return mode;
+    }
+
+    private int limit = 10000;
+    @ApiModelProperty("The maximum amount of positions that are returned")
+    public int getLimit() {
+        return limit;
+    }
+
+
+    /**
+     * Checks if the query needs the light level of each block.
+     * @return True if the light level has to be checked, false otherwise.
+     */
+    public boolean needsLight() {
+        return minLight != null || maxLight != null;
+    }
+
+    /**
+     * Checks if the block state matches the block type and trait conditions of this query.
+     * @param state The block state to check.
+     * @return True if the block state matches, false otherwise.
+     */
+    public boolean matches(BlockState state) {
+        if (!types.isEmpty() && !types.contains(state.getType().getId())) {
+            return false;
+        }
+
+        if (!traits.isEmpty()) {
+            int found = 0;
+            for (Map.Entry<BlockTrait<?>, ?> entry : state.getTraitMap().entrySet()) {
+                String expected = traits.get(entry.getKey().getName());
+                if (expected == null) {
+                    continue;
+                }
+                if (!expected.equalsIgnoreCase(String.valueOf(entry.getValue()))) {
+                    return false;
+                }
+                found++;
+            }
+            return found == traits.size();
+        }
+
+        return true;
+    }
+
+    /**
+     * Checks if the light level matches the conditions of this query.
+     * @param light The light level of the block.
+     * @return True if the light level matches, false otherwise.
+     */
+    public boolean matchesLight(int light) {
+        return (minLight == null || light >= minLight) && (maxLight == null || light <= maxLight);
+    }
+
+    /**
+     * Writes this query in a compact binary form.
+     * @param out The output to write to.
+     * @throws IOException If writing fails.
+     */
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(types.size());
+        for (String type : types) {
+            out.writeUTF(type);
+        }
+        out.writeInt(traits.size());
+        for (Map.Entry<String, String> entry : traits.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeUTF(entry.getValue());
+        }
+        out.writeInt(minLight != null ? minLight : -1);
+        out.writeInt(maxLight != null ? maxLight : -1);
+        out.writeByte(tileEntity == null ? 0 : tileEntity ? 1 : 2);
+        out.writeByte(mode.ordinal());
+        out.writeInt(limit);
+    }
+
+    /**
+     * Reads a query that was written with {@link #write(DataOutput)}.
+     * @param in The input to read from.
+     * @return The query.
+     * @throws IOException If reading fails.
+     */
+    public static BlockQuery read(DataInput in) throws IOException {
+        BlockQuery query = new BlockQuery();
+        int numTypes = in.readInt();
+        for (int i = 0; i < numTypes; i++) {
+            query.types.add(in.readUTF());
+        }
+        int numTraits = in.readInt();
+        for (int i = 0; i < numTraits; i++) {
+            query.traits.put(in.readUTF(), in.readUTF());
+        }
+        int minLight = in.readInt();
+        query.minLight = minLight >= 0 ? minLight : null;
+        int maxLight = in.readInt();
+        query.maxLight = maxLight >= 0 ? maxLight : null;
+        int tileEntity = in.readUnsignedByte();
+        query.tileEntity = tileEntity == 0 ? null : tileEntity == 1;
+        query.mode = QueryMode.values()[in.readUnsignedByte()];
+        query.limit = in.readInt();
+        return query;
+    }
+}
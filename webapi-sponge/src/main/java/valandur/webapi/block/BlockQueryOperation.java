@@ -0,0 +1,244 @@
+package valandur.webapi.block;
+
+import com.flowpowered.math.vector.Vector3i;
+import io.swagger.annotations.ApiModel;
+import io.swagger.annotations.ApiModelProperty;
+import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.data.property.block.GroundLuminanceProperty;
+import org.spongepowered.api.data.property.block.SkyLuminanceProperty;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.extent.ImmutableBlockVolume;
+import valandur.webapi.WebAPI;
+import valandur.webapi.cache.world.CachedWorld;
+import valandur.webapi.serialize.JsonDetails;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Searches a volume for blocks that match a {@link BlockQuery}, and returns either the amount of matching blocks
+ * per block type, or the positions of the matching blocks.
+ */
+@ApiModel(parent = BlockOperation.class)
+public class BlockQueryOperation extends BlockOperation implements SnapshotOperation {
+
+    private final BlockQuery query;
+
+    private Map<String, Long> counts = new ConcurrentHashMap<>();
+    private List<Vector3i> positions = new ArrayList<>();
+    private long matches;
+
+    // The results at the start of the current chunk, which are saved in checkpoints
+    private Map<String, Long> chunkCounts = new HashMap<>();
+    private int chunkPositions;
+    private long chunkMatches;
+
+    // The positions are appended to this file with each checkpoint, instead of writing all of them every time
+    private final Path positionsFile;
+    private int savedPositions;
+
+    @Override
+    public BlockOperationType getType() {
+        return BlockOperationType.QUERY;
+    }
+
+    @ApiModelProperty(value = "The query that blocks are matched against", required = true)
+    public BlockQuery getQuery() {
+        return query;
+    }
+
+    @ApiModelProperty(value = "The amount of blocks that matched the query so far", required = true)
+    public long getMatches() {
+        return matches;
+    }
+
+    @JsonDetails
+    @ApiModelProperty("The amount of matching blocks per block type, when using the COUNTS mode")
+    public Map<String, Long> getCounts() {
+        return query.getMode() == BlockQuery.QueryMode.COUNTS ? new TreeMap<>(counts) : null;
+    }
+
+    @JsonDetails
+    @ApiModelProperty("The positions of the matching blocks (up to the limit of the query), when using the " +
+            "POSITIONS mode")
+    public synchronized List<Vector3i> getPositions() {
+        return query.getMode() == BlockQuery.QueryMode.POSITIONS ? new ArrayList<>(positions) : null;
+    }
+
+
+    public BlockQueryOperation(CachedWorld world, Vector3i min, Vector3i max, BlockQuery query) {
+        this(UUID.randomUUID(), world, min, max, query);
+    }
+    public BlockQueryOperation(UUID uuid, CachedWorld world, Vector3i min, Vector3i max, BlockQuery query) {
+        super(uuid, world, min, max);
+
+        this.query = query;
+        this.positionsFile = BlockService.getDataFile(uuid, ".matches");
+    }
+
+    @Override
+    protected void processBlock(World world, Vector3i pos) {
+        BlockState state = world.getBlock(pos);
+        if (!query.matches(state)) {
+            return;
+        }
+
+        if (query.getTileEntity() != null && query.getTileEntity() != world.getTileEntity(pos).isPresent()) {
+            return;
+        }
+
+        if (query.needsLight()) {
+            int ground = world.getLocation(pos).getProperty(GroundLuminanceProperty.class)
+                    .map(p -> p.getValue().intValue()).orElse(0);
+            int sky = world.getLocation(pos).getProperty(SkyLuminanceProperty.class)
+                    .map(p -> p.getValue().intValue()).orElse(0);
+            if (!query.matchesLight(Math.max(ground, sky))) {
+                return;
+            }
+        }
+
+        addMatch(pos, state);
+    }
+
+    @Override
+    public boolean canUseSnapshots() {
+        // Light levels and tile entities aren't part of the snapshots
+        return query.getTileEntity() == null && !query.needsLight();
+    }
+
+    @Override
+    public Runnable processSnapshot(ImmutableBlockVolume blocks, Vector3i min, Vector3i max) {
+        // A chunk only contains a few different block states, so only check each of them once
+        Map<BlockState, Boolean> matched = new HashMap<>();
+        Map<String, Long> foundCounts = new HashMap<>();
+        List<Vector3i> foundPositions = new ArrayList<>();
+        long found = 0;
+
+        for (int y = min.getY(); y <= max.getY(); y++) {
+            for (int x = min.getX(); x <= max.getX(); x++) {
+                for (int z = min.getZ(); z <= max.getZ(); z++) {
+                    BlockState state = blocks.getBlock(x, y, z);
+                    if (!matched.computeIfAbsent(state, query::matches)) {
+                        continue;
+                    }
+
+                    found++;
+                    if (query.getMode() == BlockQuery.QueryMode.COUNTS) {
+                        foundCounts.merge(state.getType().getId(), 1L, Long::sum);
+                    } else if (foundPositions.size() < query.getLimit()) {
+                        foundPositions.add(new Vector3i(x, y, z));
+                    }
+                }
+            }
+        }
+
+        long newMatches = found;
+        return () -> {
+            matches += newMatches;
+            foundCounts.forEach((id, count) -> counts.merge(id, count, Long::sum));
+            int free = Math.max(0, query.getLimit() - positions.size());
+            positions.addAll(foundPositions.subList(0, Math.min(free, foundPositions.size())));
+        };
+    }
+
+    /**
+     * Records a block that matched the query.
+     * @param pos The position of the block.
+     * @param state The block state of the block.
+     */
+    protected void addMatch(Vector3i pos, BlockState state) {
+        matches++;
+        if (query.getMode() == BlockQuery.QueryMode.COUNTS) {
+            counts.merge(state.getType().getId(), 1L, Long::sum);
+        } else if (positions.size() < query.getLimit()) {
+            positions.add(pos);
+        }
+    }
+
+    @Override
+    protected void writeRequest(DataOutput out) throws IOException {
+        query.write(out);
+    }
+
+    @Override
+    protected void onChunkDone() {
+        chunkCounts = new HashMap<>(counts);
+        chunkPositions = positions.size();
+        chunkMatches = matches;
+    }
+
+    @Override
+    protected void writeCheckpointData(DataOutput out) throws IOException {
+        out.writeLong(chunkMatches);
+        out.writeInt(chunkCounts.size());
+        for (Map.Entry<String, Long> entry : chunkCounts.entrySet()) {
+            out.writeUTF(entry.getKey());
+            out.writeLong(entry.getValue());
+        }
+
+        // Only the positions found since the last checkpoint are written, by the block data thread before the
+        // checkpoint itself
+        if (chunkPositions > savedPositions) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream posOut = new DataOutputStream(bytes);
+            for (Vector3i pos : positions.subList(savedPositions, chunkPositions)) {
+                posOut.writeInt(pos.getX());
+                posOut.writeInt(pos.getY());
+                posOut.writeInt(pos.getZ());
+            }
+            WebAPI.getBlockService().write(this, "Could not save query positions", () -> {
+                Files.createDirectories(positionsFile.getParent());
+                try (OutputStream fileOut = new FileOutputStream(positionsFile.toFile(), true)) {
+                    bytes.writeTo(fileOut);
+                }
+            });
+            savedPositions = chunkPositions;
+        }
+        out.writeInt(savedPositions);
+    }
+
+    @Override
+    protected void readCheckpointData(DataInput in) throws IOException {
+        chunkMatches = in.readLong();
+        chunkCounts = new HashMap<>();
+        int numCounts = in.readInt();
+        for (int i = 0; i < numCounts; i++) {
+            chunkCounts.put(in.readUTF(), in.readLong());
+        }
+        int numPositions = in.readInt();
+
+        // Drop the positions that were saved after the checkpoint
+        List<Vector3i> list = new ArrayList<>(numPositions);
+        if (numPositions > 0) {
+            try (RandomAccessFile file = new RandomAccessFile(positionsFile.toFile(), "rw")) {
+                file.setLength(numPositions * 12L);
+            }
+            try (DataInputStream posIn = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(positionsFile.toFile())))) {
+                for (int i = 0; i < numPositions; i++) {
+                    list.add(new Vector3i(posIn.readInt(), posIn.readInt(), posIn.readInt()));
+                }
+            }
+        } else {
+            Files.deleteIfExists(positionsFile);
+        }
+
+        matches = chunkMatches;
+        counts = new ConcurrentHashMap<>(chunkCounts);
+        positions = list;
+        chunkPositions = list.size();
+        savedPositions = list.size();
+    }
+
+    @Override
+    protected void onRemove() {
+        try {
+            Files.deleteIfExists(positionsFile);
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Could not delete query positions " + positionsFile + ": " + e.getMessage());
+        }
+    }
+}
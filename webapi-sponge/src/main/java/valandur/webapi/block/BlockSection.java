@@ -0,0 +1,202 @@
+package valandur.webapi.block;
+
+import com.flowpowered.math.vector.Vector3i;
+import valandur.webapi.util.PaletteArray;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * A cuboid part of a block volume, at most the size of a chunk section (16x16x16 blocks).
+ * The blocks are stored palette-compressed, indexed by x first, then y, then z.
+ * @param <T> The type used to describe the blocks.
+ */
+public class BlockSection<T> {
+
+    public static final int SIZE = 16;
+
+    private final Vector3i min;
+    private final Vector3i size;
+    private final PaletteArray<T> blocks;
+    private int filled;
+
+
+    public BlockSection(Vector3i min, Vector3i size) {
+        this(min, size, new PaletteArray<>(size.getX() * size.getY() * size.getZ()));
+    }
+    public BlockSection(Vector3i min, Vector3i size, PaletteArray<T> blocks) {
+        this.min = min;
+        this.size = size;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Creates the section containing the specified position, limited to the bounds of a volume.
+     * @param pos The position that is contained in the section.
+     * @param volumeMin The minimum position of the volume.
+     * @param volumeMax The maximum position of the volume.
+     * @param <T> The type used to describe the blocks.
+     * @return A new empty section.
+     */
+    public static <T> BlockSection<T> containing(Vector3i pos, Vector3i volumeMin, Vector3i volumeMax) {
+        Vector3i secMin = getSectionPos(pos).mul(SIZE);
+        Vector3i min = secMin.max(volumeMin);
+        Vector3i max = secMin.add(SIZE - 1, SIZE - 1, SIZE - 1).min(volumeMax);
+        return new BlockSection<>(min, max.sub(min).add(1, 1, 1));
+    }
+
+    /**
+     * Gets the position of the chunk section that contains the block position.
+     * @param pos The position of the block.
+     * @return The position of the section, in sections.
+     */
+    public static Vector3i getSectionPos(Vector3i pos) {
+        return new Vector3i(
+                Math.floorDiv(pos.getX(), SIZE), Math.floorDiv(pos.getY(), SIZE), Math.floorDiv(pos.getZ(), SIZE));
+    }
+
+    public Vector3i getMin() {
+        return min;
+    }
+
+    public Vector3i getMax() {
+        return min.add(size).sub(1, 1, 1);
+    }
+
+    public Vector3i getSize() {
+        return size;
+    }
+
+    public PaletteArray<T> getBlocks() {
+        return blocks;
+    }
+
+    /**
+     * Checks if every block of this section was set with {@link #set(Vector3i, Object)}.
+     * @return True if all blocks are set, false otherwise.
+     */
+    public boolean isComplete() {
+        return filled >= blocks.size();
+    }
+
+    /**
+     * Gets the block at the specified world position.
+     * @param pos The position of the block, which must be within this section.
+     * @return The block at the position.
+     */
+    public T get(Vector3i pos) {
+        return blocks.get(index(pos));
+    }
+
+    /**
+     * Sets the block at the specified world position. Each block should only be set once.
+     * @param pos The position of the block, which must be within this section.
+     * @param block The block at the position.
+     */
+    public void set(Vector3i pos, T block) {
+        blocks.set(index(pos), block);
+        filled++;
+    }
+
+    private int index(Vector3i pos) {
+        Vector3i rel = pos.sub(min);
+        return (rel.getX() * size.getY() + rel.getY()) * size.getZ() + rel.getZ();
+    }
+
+    /**
+     * Creates a copy of this section with the blocks described by another type.
+     * @param mapper The function that maps each block of the palette.
+     * @param <R> The type of the new block descriptions.
+     * @return The mapped section.
+     */
+    public <R> BlockSection<R> map(Function<T, R> mapper) {
+        return new BlockSection<>(min, size, blocks.map(mapper));
+    }
+
+    /**
+     * Writes this section in a compact binary form.
+     * @param out The output to write to.
+     * @param toId The function that turns a block into the id written to the palette.
+     * @throws IOException If writing fails.
+     */
+    public void write(DataOutput out, Function<T, String> toId) throws IOException {
+        out.writeInt(min.getX());
+        out.writeInt(min.getY());
+        out.writeInt(min.getZ());
+        out.writeByte(size.getX());
+        out.writeByte(size.getY());
+        out.writeByte(size.getZ());
+
+        writeBlocks(out, blocks, toId);
+    }
+
+    /**
+     * Writes palette-compressed blocks in a compact binary form.
+     * @param out The output to write to.
+     * @param blocks The blocks to write.
+     * @param toId The function that turns a block into the id written to the palette.
+     * @param <T> The type used to describe the blocks.
+     * @throws IOException If writing fails.
+     */
+    public static <T> void writeBlocks(DataOutput out, PaletteArray<T> blocks, Function<T, String> toId)
+            throws IOException {
+        List<T> palette = blocks.getPalette();
+        out.writeInt(palette.size());
+        for (T block : palette) {
+            String id = block != null ? toId.apply(block) : null;
+            out.writeUTF(id != null ? id : "");
+        }
+
+        long[] data = blocks.getData();
+        out.writeByte(blocks.getBits());
+        out.writeInt(data.length);
+        for (long l : data) {
+            out.writeLong(l);
+        }
+    }
+
+    /**
+     * Reads a section that was written with {@link #write(DataOutput, Function)}. Empty ids are read as null.
+     * @param in The input to read from.
+     * @return The section with the ids of the blocks.
+     * @throws IOException If reading fails.
+     */
+    public static BlockSection<String> read(DataInput in) throws IOException {
+        Vector3i min = new Vector3i(in.readInt(), in.readInt(), in.readInt());
+        Vector3i size = new Vector3i(in.readUnsignedByte(), in.readUnsignedByte(), in.readUnsignedByte());
+
+        int volume = size.getX() * size.getY() * size.getZ();
+        BlockSection<String> section = new BlockSection<>(min, size, readBlocks(in, volume));
+        section.filled = volume;
+        return section;
+    }
+
+    /**
+     * Reads blocks that were written with {@link #writeBlocks(DataOutput, PaletteArray, Function)}.
+     * Empty ids are read as null.
+     * @param in The input to read from.
+     * @param size The amount of blocks.
+     * @return The ids of the blocks.
+     * @throws IOException If reading fails.
+     */
+    public static PaletteArray<String> readBlocks(DataInput in, int size) throws IOException {
+        int paletteSize = in.readInt();
+        List<String> palette = new ArrayList<>(paletteSize);
+        for (int i = 0; i < paletteSize; i++) {
+            String id = in.readUTF();
+            palette.add(id.isEmpty() ? null : id);
+        }
+
+        int bits = in.readUnsignedByte();
+        long[] data = new long[in.readInt()];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = in.readLong();
+        }
+
+        return new PaletteArray<>(size, palette, bits, data);
+    }
+}
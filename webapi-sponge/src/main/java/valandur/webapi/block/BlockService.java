@@ -1,18 +1,22 @@
 package valandur.webapi.block;
 
 import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.Sponge;
 import org.spongepowered.api.block.BlockState;
+import org.spongepowered.api.scheduler.Task;
 import org.spongepowered.api.world.World;
 import org.spongepowered.api.world.extent.BiomeVolume;
 import valandur.webapi.WebAPI;
 import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.config.BaseConfig;
 import valandur.webapi.config.BlockConfig;
+import valandur.webapi.util.PaletteArray;
 
 import javax.ws.rs.InternalServerErrorException;
-import java.nio.file.Path;
+import java.io.*;
+import java.nio.file.*;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.*;
 
 /**
  * The block service performs block operations on the world, such as getting or setting them.
@@ -20,14 +24,37 @@ import java.util.concurrent.ConcurrentHashMap;
 public class BlockService {
 
     private static final String configFileName = "blocks.conf";
+    private static final Path dataPath = Paths.get("webapi/blocks");
+
+    private static final int MAGIC = 0x5741424A;    // "WABJ"
+    private static final int VERSION = 1;
 
     private static Map<UUID, BlockOperation> blockOps = new ConcurrentHashMap<>();
 
     private static final String UNKOWN_BIOME_ID = "<unknown>";
     private static int MAX_BLOCK_GET_SIZE = 1000000;
     private static int MAX_BLOCK_UPDATE_SIZE = 1000000;
+    private static int MAX_BLOCK_QUERY_SIZE = 100000000;
+    private static int MAX_QUERY_POSITIONS = 100000;
     private static int MAX_BLOCKS_PER_SECOND = 10000;
     private static Vector3i BIOME_INTERVAL = new Vector3i(4, 0, 4);
+    private static long TICK_BUDGET = TimeUnit.MILLISECONDS.toNanos(10);
+    private static double MIN_TPS = 15;
+    private static int CHECKPOINT_INTERVAL = 16;
+    private static long FINISHED_TTL = TimeUnit.HOURS.toMillis(1);
+    private static int MAX_FINISHED = 50;
+    private static boolean PARALLEL_SCAN = true;
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    private static final long MIN_BUDGET = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private Task tickTask;
+    private Task evictTask;
+    private ForkJoinPool scanPool;
+    private ExecutorService writeExecutor;
+    private long lastTick;
+    private int lowTpsTicks;
+    private int nextOp;
 
 
     public void init() {
@@ -36,7 +63,103 @@ public class BlockService {
 
         MAX_BLOCK_GET_SIZE = config.maxBlockGetSize;
         MAX_BLOCK_UPDATE_SIZE = config.maxBlockUpdateSize;
+        MAX_BLOCK_QUERY_SIZE = config.maxBlockQuerySize;
+        MAX_QUERY_POSITIONS = config.maxQueryPositions;
         MAX_BLOCKS_PER_SECOND = config.maxBlocksPerSecond;
+        TICK_BUDGET = TimeUnit.MILLISECONDS.toNanos(config.tickBudget);
+        MIN_TPS = config.minTps;
+        CHECKPOINT_INTERVAL = config.checkpointInterval;
+        FINISHED_TTL = TimeUnit.SECONDS.toMillis(config.finishedOperationTtl);
+        MAX_FINISHED = config.maxFinishedOperations;
+        PARALLEL_SCAN = config.parallelScan;
+
+        // Snapshots that are already queued are still processed by the old pool
+        if (scanPool != null) {
+            scanPool.shutdown();
+        }
+        int threads = config.scanThreads > 0 ?
+                config.scanThreads : Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+        scanPool = new ForkJoinPool(threads, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Web-API - Block scan " + thread.getPoolIndex());
+            return thread;
+        }, null, false);
+
+        // Data of block operations is written by a single thread, in the order in which it was submitted
+        if (writeExecutor == null) {
+            writeExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "Web-API - Block data");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        if (tickTask != null) {
+            tickTask.cancel();
+        }
+        if (evictTask != null) {
+            evictTask.cancel();
+        }
+
+        evictTask = Task.builder()
+                .execute(this::evictOperations)
+                .async()
+                .interval(1, TimeUnit.MINUTES)
+                .name("Web-API - Block operation cleanup")
+                .submit(WebAPI.getInstance());
+
+        lastTick = 0;
+        tickTask = Task.builder()
+                .execute(this::tick)
+                .intervalTicks(1)
+                .name("Web-API - Block operations")
+                .submit(WebAPI.getInstance());
+    }
+
+    /**
+     * Runs the block operations for a limited amount of time each tick. The time is shared between all running
+     * operations, starting with a different operation each tick. The budget is reduced by the amount of time the
+     * last tick took longer than it should have, and if the TPS drop below a threshold the operations only run
+     * once a second with the minimum budget.
+     */
+    private void tick() {
+        long start = System.nanoTime();
+        long tickLength = lastTick > 0 ? start - lastTick : TICK_NANOS;
+        lastTick = start;
+
+        List<BlockOperation> ops = new ArrayList<>();
+        for (BlockOperation op : blockOps.values()) {
+            if (op.getStatus() == BlockOperation.BlockOperationStatus.RUNNING) {
+                ops.add(op);
+            }
+        }
+        if (ops.isEmpty()) {
+            return;
+        }
+
+        long budget = Math.max(MIN_BUDGET, TICK_BUDGET - Math.max(0, tickLength - TICK_NANOS));
+        if (Sponge.getServer().getTicksPerSecond() < MIN_TPS) {
+            if (lowTpsTicks++ % 20 != 0) {
+                return;
+            }
+            budget = MIN_BUDGET;
+        } else {
+            lowTpsTicks = 0;
+        }
+
+        int maxBlocks = MAX_BLOCKS_PER_SECOND > 0 ? Math.max(1, MAX_BLOCKS_PER_SECOND / 20 / ops.size()) : 0;
+        long deadline = start + budget;
+        nextOp = (nextOp + 1) % ops.size();
+        for (int i = 0; i < ops.size(); i++) {
+            long now = System.nanoTime();
+            if (now >= deadline) {
+                break;
+            }
+
+            // Split the remaining time between the operations that haven't run yet
+            long slice = (deadline - now) / (ops.size() - i);
+            ops.get((nextOp + i) % ops.size()).step(now + slice, maxBlocks);
+        }
     }
 
     /**
@@ -46,10 +169,260 @@ public class BlockService {
      */
     public BlockOperation startBlockOperation(BlockOperation operation) {
         blockOps.put(operation.getUUID(), operation);
+        saveOperation(operation);
         operation.start();
         return operation;
     }
 
+    /**
+     * Loads the block operations that were saved before the server stopped. Operations that were running are
+     * resumed, and the results of finished operations are available again.
+     */
+    public void loadOperations() {
+        if (!Files.isDirectory(dataPath)) {
+            return;
+        }
+
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dataPath, "*.op")) {
+            for (Path file : stream) {
+                try {
+                    loadOperation(file).ifPresent(op -> {
+                        blockOps.put(op.getUUID(), op);
+                        // The operation was created, but the server stopped before it could start
+                        if (op.getStatus() == BlockOperation.BlockOperationStatus.INIT) {
+                            op.start();
+                        }
+                    });
+                } catch (IOException | RuntimeException e) {
+                    WebAPI.getLogger().warn("Could not load block operation " + file + ": " + e.getMessage());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            WebAPI.sentryCapture(e);
+        }
+
+        long running = blockOps.values().stream()
+                .filter(op -> op.getStatus() == BlockOperation.BlockOperationStatus.RUNNING)
+                .count();
+        if (running > 0) {
+            WebAPI.getLogger().info("Resuming " + running + " block operation(s)");
+        }
+    }
+
+    /**
+     * Saves the progress of all block operations, so that they can be resumed after a restart.
+     */
+    public void stop() {
+        for (BlockOperation op : blockOps.values()) {
+            checkpoint(op);
+        }
+
+        // Wait for the checkpoints and the other data to be written
+        if (writeExecutor != null) {
+            writeExecutor.shutdown();
+            try {
+                if (!writeExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    WebAPI.getLogger().warn("Could not save all block operations in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            writeExecutor = null;
+        }
+    }
+
+    private void saveOperation(BlockOperation op) {
+        Path file = getDataFile(op.getUUID(), ".op");
+        try {
+            Files.createDirectories(dataPath);
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(file)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeByte(op.getType().ordinal());
+                out.writeLong(op.getWorld().getUUID().getMostSignificantBits());
+                out.writeLong(op.getWorld().getUUID().getLeastSignificantBits());
+                writeVector(out, op.getMin());
+                writeVector(out, op.getMax());
+                op.writeRequest(out);
+            }
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Could not save block operation " + op.getUUID() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Saves the progress of a block operation. The progress is captured right away, but written to disk by the
+     * block data thread after the data that was submitted before it. The checkpoint is written to a temporary
+     * file first, so that a crash while writing doesn't lose the previous checkpoint.
+     * @param op The block operation.
+     */
+    void checkpoint(BlockOperation op) {
+        UUID uuid = op.getUUID();
+        if (!blockOps.containsKey(uuid)) {
+            return;
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            op.writeCheckpoint(new DataOutputStream(bytes));
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Could not save progress of block operation " + uuid + ": " + e.getMessage());
+            return;
+        }
+
+        write(op, null, () -> {
+            // The operation might have been removed while the checkpoint was waiting
+            if (!blockOps.containsKey(uuid)) {
+                return;
+            }
+
+            Path file = getDataFile(uuid, ".pos");
+            Path tmpFile = getDataFile(uuid, ".pos.tmp");
+            try {
+                try (OutputStream out = Files.newOutputStream(tmpFile)) {
+                    bytes.writeTo(out);
+                }
+                Files.move(tmpFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                WebAPI.getLogger().warn("Could not save progress of block operation " + uuid + ": " +
+                        e.getMessage());
+            }
+        });
+    }
+
+    /**
+     * Writes data of a block operation on the block data thread, so that the main thread doesn't have to wait
+     * for the disk. The data is written in the order in which it was submitted.
+     * @param op The block operation the data belongs to.
+     * @param error The error with which the operation is stopped if writing fails, or {@code null} to only log it.
+     * @param task The task that writes the data.
+     */
+    void write(BlockOperation op, String error, WriteTask task) {
+        Runnable runnable = () -> {
+            try {
+                task.run();
+            } catch (IOException e) {
+                WebAPI.getLogger().warn("Could not write data of block operation " + op.getUUID() + ": " +
+                        e.getMessage());
+                if (error != null) {
+                    WebAPI.runOnMainAsync(() -> {
+                        op.stop(error + ": " + e.getMessage());
+                        return null;
+                    });
+                }
+            }
+        };
+
+        // Write right away if the service was already stopped
+        ExecutorService executor = writeExecutor;
+        if (executor == null) {
+            runnable.run();
+            return;
+        }
+        try {
+            executor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            runnable.run();
+        }
+    }
+
+    /**
+     * Waits until all the data that was submitted with {@link #write(BlockOperation, String, WriteTask)} before
+     * this call was written.
+     * @throws IOException If waiting is interrupted.
+     */
+    void awaitWrites() throws IOException {
+        ExecutorService executor = writeExecutor;
+        if (executor == null) {
+            return;
+        }
+        try {
+            executor.submit(() -> {}).get();
+        } catch (RejectedExecutionException | ExecutionException ignored) {
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for block data");
+        }
+    }
+
+    private Optional<BlockOperation> loadOperation(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Unknown file format");
+            }
+
+            BlockOperation.BlockOperationType type = BlockOperation.BlockOperationType.values()[in.readUnsignedByte()];
+            UUID worldUuid = new UUID(in.readLong(), in.readLong());
+            Vector3i min = readVector(in);
+            Vector3i max = readVector(in);
+
+            String name = file.getFileName().toString();
+            UUID uuid = UUID.fromString(name.substring(0, name.length() - ".op".length()));
+
+            Optional<CachedWorld> world = WebAPI.getCacheService().getWorld(worldUuid);
+            if (!world.isPresent()) {
+                WebAPI.getLogger().warn("Could not find world " + worldUuid + " of block operation " + uuid);
+                return Optional.empty();
+            }
+
+            BlockOperation op;
+            switch (type) {
+                case GET:
+                    op = new BlockGetOperation(uuid, world.get(), min, max);
+                    break;
+
+                case CHANGE:
+                    Vector3i size = max.sub(min).add(1, 1, 1);
+                    PaletteArray<BlockState> blocks = BlockSection.readBlocks(in, size.getX() * size.getY() * size.getZ())
+                            .map(id -> id != null ? Sponge.getRegistry().getType(BlockState.class, id).orElse(null) : null);
+                    op = new BlockChangeOperation(uuid, world.get(), min, max, blocks, in.readBoolean());
+                    break;
+
+                case QUERY:
+                    op = new BlockQueryOperation(uuid, world.get(), min, max, BlockQuery.read(in));
+                    break;
+
+                default:
+                    throw new IOException("Unknown block operation type " + type);
+            }
+
+            Path posFile = getDataFile(uuid, ".pos");
+            if (Files.exists(posFile)) {
+                try (DataInputStream posIn = new DataInputStream(Files.newInputStream(posFile))) {
+                    op.readCheckpoint(posIn);
+                }
+            }
+            return Optional.of(op);
+        }
+    }
+
+    /**
+     * Removes finished block operations once they are older than the configured time to live, or when there are
+     * more finished operations than allowed (starting with the oldest).
+     */
+    private void evictOperations() {
+        long now = System.currentTimeMillis();
+        List<BlockOperation> finished = new ArrayList<>();
+        for (BlockOperation op : blockOps.values()) {
+            if (op.getFinishedAt() > 0) {
+                finished.add(op);
+            }
+        }
+        finished.sort(Comparator.comparingLong(BlockOperation::getFinishedAt));
+
+        for (int i = 0; i < finished.size(); i++) {
+            BlockOperation op = finished.get(i);
+            boolean expired = FINISHED_TTL > 0 && now - op.getFinishedAt() > FINISHED_TTL;
+            boolean tooMany = MAX_FINISHED >= 0 && finished.size() - i > MAX_FINISHED;
+            // Operations whose data is being read are removed on a later run
+            if ((expired || tooMany) && !op.isBeingRead()) {
+                removeBlockOperation(op.getUUID());
+            }
+        }
+    }
+
     /**
      * Gets a list of all currently running block operations.
      * @return A list of running block operations.
@@ -69,6 +442,77 @@ public class BlockService {
         return Optional.of(blockOps.get(uuid));
     }
 
+    /**
+     * Removes a block operation, which must not be running anymore, and frees its data. If the data of the
+     * operation is being read it is freed once reading is done.
+     * @param uuid The key of the block operation.
+     * @return An optional containing the block operation if it was found.
+     */
+    public Optional<BlockOperation> removeBlockOperation(UUID uuid) {
+        BlockOperation op = blockOps.remove(uuid);
+        if (op == null)
+            return Optional.empty();
+        op.remove();
+
+        write(op, null, () -> {
+            Files.deleteIfExists(getDataFile(uuid, ".op"));
+            Files.deleteIfExists(getDataFile(uuid, ".pos"));
+        });
+        return Optional.of(op);
+    }
+
+    /**
+     * Gets the amount of chunks after which the progress of a block operation is saved.
+     * @return The amount of chunks between checkpoints.
+     */
+    public int getCheckpointInterval() {
+        return CHECKPOINT_INTERVAL;
+    }
+
+    /**
+     * Checks if read-only block operations are run on chunk snapshots by the scan pool.
+     * @return True if chunk snapshots are used, false if all blocks are processed on the main thread.
+     */
+    public boolean isParallelScan() {
+        return PARALLEL_SCAN;
+    }
+
+    /**
+     * Gets the thread pool that processes chunk snapshots of block operations.
+     * @return The scan pool.
+     */
+    ForkJoinPool getScanPool() {
+        return scanPool;
+    }
+
+    /**
+     * Gets the maximum amount of chunk snapshots a single block operation may have waiting to be processed.
+     * This keeps the scan pool busy while limiting the memory used by the snapshots.
+     * @return The maximum amount of pending snapshots per operation.
+     */
+    int getMaxPendingSnapshots() {
+        return scanPool.getParallelism() * 2;
+    }
+
+    /**
+     * Gets the path of a file belonging to a block operation.
+     * @param uuid The uuid of the block operation.
+     * @param extension The extension of the file.
+     * @return The path of the file.
+     */
+    static Path getDataFile(UUID uuid, String extension) {
+        return dataPath.resolve(uuid + extension);
+    }
+
+    private static void writeVector(DataOutput out, Vector3i vec) throws IOException {
+        out.writeInt(vec.getX());
+        out.writeInt(vec.getY());
+        out.writeInt(vec.getZ());
+    }
+    private static Vector3i readVector(DataInput in) throws IOException {
+        return new Vector3i(in.readInt(), in.readInt(), in.readInt());
+    }
+
     /**
      * Gets the block in the specified world at the specified position.
      * @param world The world to get the block from.
@@ -89,7 +533,7 @@ public class BlockService {
 
     /**
      * Gets the maximum number of blocks per second the server processes.
-     * @return The maximum number of blocks processed per second.
+     * @return The maximum number of blocks processed per second, or 0 if there is no limit.
      */
     public int getMaxBlocksPerSecond() {
         return MAX_BLOCKS_PER_SECOND;
@@ -111,6 +555,22 @@ public class BlockService {
         return MAX_BLOCK_UPDATE_SIZE;
     }
 
+    /**
+     * Gets the maximum number of blocks that can be searched with a single query operation.
+     * @return The maximum number of blocks that can be searched in a single operation.
+     */
+    public int getMaxQueryBlocks() {
+        return MAX_BLOCK_QUERY_SIZE;
+    }
+
+    /**
+     * Gets the maximum number of block positions that a single query operation can return.
+     * @return The maximum number of positions returned by a query operation.
+     */
+    public int getMaxQueryPositions() {
+        return MAX_QUERY_POSITIONS;
+    }
+
     /**
      * Gets the biome type ids for the specified area. The biome type is checked for every n-th block within the
      * region, where n is defined by {@link #BIOME_INTERVAL}. This means the resulting array will contain the
@@ -150,4 +610,9 @@ public class BlockService {
             return biomes;
         });
     }
+
+    @FunctionalInterface
+    interface WriteTask {
+        void run() throws IOException;
+    }
 }
@@ -0,0 +1,31 @@
+package valandur.webapi.block;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.world.extent.ImmutableBlockVolume;
+
+/**
+ * A {@link BlockOperation} that can be run on snapshots of the chunks, instead of block by block. The snapshots
+ * are taken on the main thread, and processed on the scan pool of the {@link BlockService}.
+ */
+interface SnapshotOperation {
+
+    /**
+     * Checks if this operation can currently be run on snapshots, e.g. because it only needs the block states.
+     * @return True if this operation can be run on snapshots, false to process it block by block.
+     */
+    default boolean canUseSnapshots() {
+        return true;
+    }
+
+    /**
+     * Processes a snapshot of the blocks of this operation within a chunk. This is called on the scan pool
+     * of the {@link BlockService}, possibly for several chunks at once, so it must neither access the world
+     * nor change the state of this operation. The chunk and section start hooks of the {@link BlockOperation}
+     * are not called for chunks that are processed this way.
+     * @param blocks The blocks of the chunk, in world coordinates.
+     * @param min The minimum position of this operation within the chunk.
+     * @param max The maximum position of this operation within the chunk.
+     * @return The result of the chunk, which is applied to this operation on the main thread, in chunk order.
+     */
+    Runnable processSnapshot(ImmutableBlockVolume blocks, Vector3i min, Vector3i max);
+}
@@ -17,11 +17,15 @@ import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.Order;
 import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.command.SendCommandEvent;
+import org.spongepowered.api.event.entity.DestructEntityEvent;
+import org.spongepowered.api.event.entity.MoveEntityEvent;
+import org.spongepowered.api.event.entity.SpawnEntityEvent;
 import org.spongepowered.api.event.entity.living.humanoid.player.KickPlayerEvent;
 import org.spongepowered.api.event.message.MessageChannelEvent;
 import org.spongepowered.api.event.network.ClientConnectionEvent;
 import org.spongepowered.api.event.world.LoadWorldEvent;
 import org.spongepowered.api.event.world.UnloadWorldEvent;
+import org.spongepowered.api.event.world.chunk.UnloadChunkEvent;
 import org.spongepowered.api.item.inventory.Inventory;
 import org.spongepowered.api.item.inventory.ItemStack;
 import org.spongepowered.api.item.inventory.ItemStackSnapshot;
@@ -37,8 +41,8 @@ import valandur.webapi.WebAPI;
 import valandur.webapi.cache.command.CachedCommand;
 import valandur.webapi.cache.command.CachedCommandCall;
 import valandur.webapi.cache.entity.CachedEntity;
-import valandur.webapi.cache.message.CachedChatMessage;
 import valandur.webapi.cache.message.CachedMessage;
+import valandur.webapi.cache.message.ChatHistory;
 import valandur.webapi.cache.misc.CachedCatalogType;
 import valandur.webapi.cache.misc.CachedCause;
 import valandur.webapi.cache.misc.CachedInventory;
@@ -52,6 +56,8 @@ import valandur.webapi.cache.world.CachedTransform;
 import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.config.BaseConfig;
 import valandur.webapi.config.CacheConfig;
+import valandur.webapi.util.Page;
+import valandur.webapi.util.RingBuffer;
 import valandur.webapi.util.Timings;
 import valandur.webapi.util.Util;
 
@@ -68,11 +74,9 @@ import java.nio.file.Paths;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.function.Predicate;
 import java.util.jar.JarFile;
 import java.util.stream.Collectors;
-import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 
 /**
@@ -81,6 +85,8 @@ import java.util.zip.ZipEntry;
 public class CacheService {
 
     private static final String configFileName = "cache.conf";
+    // The maximum amount of chunks that are looked up one by one when searching within bounds
+    private static final int MAX_PROBED_CHUNKS = 1024;
 
     private List<String> pluginFolders = new ArrayList<>();
     private List<String> censoredCommands = new ArrayList<>();
@@ -88,12 +94,15 @@ public class CacheService {
     private int numChatMessages;
     private int numCommandCalls;
 
-    private ConcurrentLinkedQueue<CachedMessage> messages = new ConcurrentLinkedQueue<>();
-    private ConcurrentLinkedQueue<CachedCommandCall> commandCalls = new ConcurrentLinkedQueue<>();
+    private ChatHistory messages = new ChatHistory(100);
+    private volatile RingBuffer<CachedCommandCall> commandCalls = new RingBuffer<>(100);
     private Map<String, CachedCommand> commands = new ConcurrentHashMap<>();
     private Map<String, CachedPluginContainer> plugins = new ConcurrentHashMap<>();
     private Map<UUID, CachedWorld> worlds = new ConcurrentHashMap<>();
     private Map<UUID, CachedPlayer> players = new ConcurrentHashMap<>();
+    // The world each entity is in, so that entities can be found without asking every world
+    private Map<UUID, UUID> entityWorlds = new ConcurrentHashMap<>();
+    private ResponseCache responseCache = new ResponseCache(0);
 
 
     public void init() {
@@ -101,7 +110,11 @@ public class CacheService {
         CacheConfig config = BaseConfig.load(configPath, new CacheConfig());
 
         numChatMessages = config.chat_amount;
+        messages.setCapacity(numChatMessages);
         numCommandCalls = config.cmd_amount;
+        if (commandCalls.getCapacity() != numCommandCalls) {
+            commandCalls = commandCalls.withCapacity(numCommandCalls);
+        }
 
         pluginFolders.clear();
         pluginFolders.addAll(config.pluginFolders);
@@ -117,6 +130,18 @@ public class CacheService {
         for (Map.Entry<String, Long> entry : config.duration.entrySet()) {
             cacheDurations.put(entry.getKey(), entry.getValue());
         }
+
+        responseCache.clear();
+        responseCache.setMaxSize(config.responseCacheSize * 1024L);
+    }
+
+    /**
+     * Gets the cache which holds the serialized responses of cached objects.
+     *
+     * @return The response cache.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
     }
 
     /**
@@ -125,7 +150,17 @@ public class CacheService {
      * @return A list of cached messages.
      */
     public List<CachedMessage> getMessages() {
-        return Lists.reverse(Arrays.asList(messages.toArray(new CachedMessage[0])));
+        return messages.getMessages();
+    }
+
+    /**
+     * Gets one page of the messages sent on the server, newest first.
+     * @param after The key after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of messages on the page.
+     * @return The page of messages.
+     */
+    public Page<CachedMessage> getMessages(String after, int limit) {
+        return messages.getMessages(after, limit);
     }
 
 
@@ -135,7 +170,18 @@ public class CacheService {
      * @return The commands run on the server.
      */
     public List<CachedCommandCall> getCommandCalls() {
-        return Lists.reverse(Arrays.asList(commandCalls.toArray(new CachedCommandCall[0])));
+        return Lists.reverse(commandCalls.toList());
+    }
+
+    /**
+     * Gets one page of the commands run on the server, newest first.
+     * @param after The key after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of commands on the page.
+     * @return The page of commands.
+     */
+    public Page<CachedCommandCall> getCommandCalls(String after, int limit) {
+        return Page.of(commandCalls.toList(), (CachedCommandCall c) -> Page.descendingKey(c.getSequence()),
+                after, limit, c -> c);
     }
 
 
@@ -350,6 +396,43 @@ public class CacheService {
         return new ArrayList<>(players.values());
     }
 
+    /**
+     * Gets the specified players. Players that are cached and not expired are returned directly, all the other
+     * players are looked up together in one call to the main server thread.
+     * @param uuids The UUIDs of the players.
+     * @return A map from UUID to cached player, containing all the players that could be found.
+     */
+    public Map<UUID, CachedPlayer> getPlayers(Collection<UUID> uuids) {
+        Map<UUID, CachedPlayer> res = new HashMap<>();
+        List<UUID> missing = new ArrayList<>();
+        for (UUID uuid : uuids) {
+            CachedPlayer player = players.get(uuid);
+            if (player != null && !player.isExpired()) {
+                res.put(uuid, player);
+            } else {
+                missing.add(uuid);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            res.putAll(WebAPI.runOnMain(() -> {
+                Map<UUID, CachedPlayer> found = new HashMap<>();
+                Optional<UserStorageService> optSrv = Sponge.getServiceManager().provide(UserStorageService.class);
+                for (UUID uuid : missing) {
+                    Optional<Player> player = Sponge.getServer().getPlayer(uuid);
+                    if (player.isPresent()) {
+                        found.put(uuid, updatePlayer(player.get()));
+                        continue;
+                    }
+                    optSrv.flatMap(srv -> srv.get(uuid)).ifPresent(user -> found.put(uuid, new CachedPlayer(user)));
+                }
+                return found;
+            }));
+        }
+
+        return res;
+    }
+
     /**
      * Gets a specific player by name or UUID.
      *
@@ -468,6 +551,7 @@ public class CacheService {
 
     /**
      * Gets a collection of all the entities in the specified world.
+     * When both min and max are specified, only the loaded chunks within those bounds are searched.
      * @param world The world for which all entities are retrieved.
      * @param min The minimum coordinates at which to get entities.
      * @param max The maximum coordinates at which to get entities.
@@ -482,36 +566,19 @@ public class CacheService {
             Predicate<Entity> predicate,
             int limit) {
         return WebAPI.runOnMain(() -> {
-            Stream<Extent> extents;
-            if (world == null)
-                extents = Sponge.getServer().getWorlds().stream().map(w -> (Extent)w);
-            else {
-                Optional<?> w = world.getLive();
-                if (!w.isPresent())
-                    throw new InternalServerErrorException("Could not get live world");
-                extents = Stream.of((Extent)w.get());
-            }
-
-            if (min != null) {
-                extents = extents.map(e -> e.getExtentView(min, e.getBlockMax()));
-            }
-            if (max != null) {
-                extents = extents.map(e -> e.getExtentView(e.getBlockMin(), max));
-            }
-
             int i = 0;
             Collection<CachedEntity> allEnts = new LinkedList<>();
-            Iterator<Extent> iter = extents.iterator();
-            while (iter.hasNext()) {
-                Extent ext = iter.next();
+            search:
+            for (Extent ext : getSearchExtents(world, min, max)) {
                 Collection<Entity> ents = ext.getEntities(predicate);
                 for (Entity e : ents) {
                     if (e.isRemoved()) continue;
+                    if (!isWithin(e.getLocation().getBlockPosition(), min, max)) continue;
                     allEnts.add(new CachedEntity(e));
 
                     i++;
                     if (limit > 0 && i >= limit)
-                        break;
+                        break search;
                 }
             }
 
@@ -519,22 +586,138 @@ public class CacheService {
         });
     }
 
+    /**
+     * Gets one page of the entities in the specified world, ordered by their UUID. Only the entities on the page
+     * are cached, the other entities are only counted.
+     * When both min and max are specified, only the loaded chunks within those bounds are searched.
+     * @param world The world for which the entities are retrieved, or {@code null} for all worlds.
+     * @param min The minimum coordinates at which to get entities.
+     * @param max The maximum coordinates at which to get entities.
+     * @param predicate The predicate to filter entities by.
+     * @param after The UUID after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of entities on the page.
+     * @return The page of entities.
+     */
+    public Page<CachedEntity> getEntityPage(
+            CachedWorld world,
+            Vector3i min,
+            Vector3i max,
+            Predicate<Entity> predicate,
+            String after,
+            int limit) {
+        return WebAPI.runOnMain(() -> {
+            Page.Builder<Entity> page = new Page.Builder<>(e -> e.getUniqueId().toString(), after, limit);
+            for (Extent ext : getSearchExtents(world, min, max)) {
+                for (Entity e : ext.getEntities(predicate)) {
+                    if (e.isRemoved()) continue;
+                    if (!isWithin(e.getLocation().getBlockPosition(), min, max)) continue;
+                    page.add(e);
+                }
+            }
+            return page.build(CachedEntity::new);
+        });
+    }
+
     /**
      * Gets a specific entity by UUID.
      * @param uuid The UUID of the entity.
      * @return An optional containing the cached entity if found, or empty otherwise.
      */
     public Optional<CachedEntity> getEntity(UUID uuid) {
-        return WebAPI.runOnMain(() -> {
-            Collection<World> worlds = Sponge.getServer().getWorlds();
-            for (World world : worlds) {
-                Optional<Entity> optEnt = world.getEntity(uuid);
-                if (optEnt.isPresent()) {
-                    return Optional.of(new CachedEntity(optEnt.get()));
+        return WebAPI.runOnMain(() -> getLiveEntity(uuid).map(CachedEntity::new));
+    }
+
+    /**
+     * Gets the live entity with the specified UUID. The world of the entity is looked up first, the other
+     * worlds are only searched if the entity isn't there. This has to be called on the main server thread.
+     * @param uuid The UUID of the entity.
+     * @return An optional containing the entity if found, or empty otherwise.
+     */
+    public Optional<Entity> getLiveEntity(UUID uuid) {
+        UUID worldUuid = entityWorlds.get(uuid);
+        if (worldUuid != null) {
+            Optional<Entity> optEnt = Sponge.getServer().getWorld(worldUuid).flatMap(w -> w.getEntity(uuid));
+            if (optEnt.isPresent()) {
+                return optEnt;
+            }
+        }
+
+        Collection<World> worlds = Sponge.getServer().getWorlds();
+        for (World world : worlds) {
+            Optional<Entity> optEnt = world.getEntity(uuid);
+            if (optEnt.isPresent()) {
+                entityWorlds.put(uuid, world.getUniqueId());
+                return optEnt;
+            }
+        }
+
+        entityWorlds.remove(uuid);
+        return Optional.empty();
+    }
+
+    /**
+     * Gets the extents that have to be searched for objects within the specified bounds. When both bounds are
+     * given these are the loaded chunks within the bounds, because the server keeps track of the entities and
+     * tile entities in each chunk. For big bounds the loaded chunks of the world are filtered instead of looking
+     * up each chunk within the bounds. Otherwise these are the worlds, limited to the bounds that were given.
+     * Objects in the extents might still be outside the bounds, so they have to be checked with
+     * {@link #isWithin(Vector3i, Vector3i, Vector3i)}.
+     * This has to be called on the main server thread.
+     */
+    private List<Extent> getSearchExtents(CachedWorld world, Vector3i min, Vector3i max) {
+        List<World> worlds = new ArrayList<>();
+        if (world == null)
+            worlds.addAll(Sponge.getServer().getWorlds());
+        else {
+            Optional<World> w = world.getLive();
+            if (!w.isPresent())
+                throw new InternalServerErrorException("Could not get live world");
+            worlds.add(w.get());
+        }
+
+        List<Extent> extents = new ArrayList<>();
+        if (min != null && max != null) {
+            Vector3i chunkMin = Sponge.getServer().getChunkLayout().forceToChunk(min.min(max));
+            Vector3i chunkMax = Sponge.getServer().getChunkLayout().forceToChunk(min.max(max));
+            long area = (chunkMax.getX() - (long) chunkMin.getX() + 1) * (chunkMax.getZ() - (long) chunkMin.getZ() + 1);
+            for (World w : worlds) {
+                // Looking up every chunk of a big area takes longer than going through the loaded chunks
+                if (area > MAX_PROBED_CHUNKS) {
+                    for (Chunk chunk : w.getLoadedChunks()) {
+                        Vector3i pos = chunk.getPosition();
+                        if (pos.getX() >= chunkMin.getX() && pos.getX() <= chunkMax.getX() &&
+                                pos.getZ() >= chunkMin.getZ() && pos.getZ() <= chunkMax.getZ()) {
+                            extents.add(chunk);
+                        }
+                    }
+                    continue;
+                }
+
+                for (int x = chunkMin.getX(); x <= chunkMax.getX(); x++) {
+                    for (int z = chunkMin.getZ(); z <= chunkMax.getZ(); z++) {
+                        w.getChunk(x, 0, z).ifPresent(extents::add);
+                    }
                 }
             }
-            return Optional.empty();
-        });
+            return extents;
+        }
+
+        for (World w : worlds) {
+            Extent ext = w;
+            if (min != null) {
+                ext = ext.getExtentView(min, ext.getBlockMax());
+            }
+            if (max != null) {
+                ext = ext.getExtentView(ext.getBlockMin(), max);
+            }
+            extents.add(ext);
+        }
+        return extents;
+    }
+
+    private static boolean isWithin(Vector3i pos, Vector3i min, Vector3i max) {
+        return (min == null || (pos.getX() >= min.getX() && pos.getY() >= min.getY() && pos.getZ() >= min.getZ())) &&
+                (max == null || (pos.getX() <= max.getX() && pos.getY() <= max.getY() && pos.getZ() <= max.getZ()));
     }
 
 
@@ -701,6 +884,7 @@ public class CacheService {
 
     /**
      * Gets a collection of all the tile entities in the specified world.
+     * When both min and max are specified, only the loaded chunks within those bounds are searched.
      * @param world The world for which all tile entities are retrieved.
      * @param min The minimum coordinates at which to get tile entities.
      * @param max The maximum coordinates at which to get tile entities.
@@ -715,36 +899,19 @@ public class CacheService {
             Predicate<TileEntity> predicate,
             int limit) {
         return WebAPI.runOnMain(() -> {
-            Stream<Extent> extents;
-            if (world == null)
-                extents = Sponge.getServer().getWorlds().stream().map(w -> (Extent)w);
-            else {
-                Optional<?> w = world.getLive();
-                if (!w.isPresent())
-                    throw new InternalServerErrorException("Could not get live world");
-                extents = Stream.of((Extent)w.get());
-            }
-
-            if (min != null) {
-                extents = extents.map(e -> e.getExtentView(min, e.getBlockMax()));
-            }
-            if (max != null) {
-                extents = extents.map(e -> e.getExtentView(e.getBlockMin(), max));
-            }
-
             int i = 0;
             Collection<CachedTileEntity> allTes = new LinkedList<>();
-            Iterator<Extent> iter = extents.iterator();
-            while (iter.hasNext()) {
-                Extent ext = iter.next();
+            search:
+            for (Extent ext : getSearchExtents(world, min, max)) {
                 Collection<TileEntity> tes = ext.getTileEntities(predicate);
                 for (TileEntity te : tes) {
                     if (!te.isValid()) continue;
+                    if (!isWithin(te.getLocation().getBlockPosition(), min, max)) continue;
                     allTes.add(new CachedTileEntity(te));
 
                     i++;
                     if (limit > 0 && i >= limit)
-                        break;
+                        break search;
                 }
             }
 
@@ -752,6 +919,42 @@ public class CacheService {
         });
     }
 
+    /**
+     * Gets one page of the tile entities in the specified world, ordered by their world and position. Only the
+     * tile entities on the page are cached, the other tile entities are only counted.
+     * When both min and max are specified, only the loaded chunks within those bounds are searched.
+     * @param world The world for which the tile entities are retrieved, or {@code null} for all worlds.
+     * @param min The minimum coordinates at which to get tile entities.
+     * @param max The maximum coordinates at which to get tile entities.
+     * @param predicate The predicate to filter tile entities by.
+     * @param after The key after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of tile entities on the page.
+     * @return The page of tile entities.
+     */
+    public Page<CachedTileEntity> getTileEntityPage(
+            CachedWorld world,
+            Vector3i min,
+            Vector3i max,
+            Predicate<TileEntity> predicate,
+            String after,
+            int limit) {
+        return WebAPI.runOnMain(() -> {
+            Page.Builder<TileEntity> page = new Page.Builder<>(te -> {
+                Location<World> loc = te.getLocation();
+                return loc.getExtent().getUniqueId() + "/" + loc.getBlockX() + "/" + loc.getBlockY() + "/" +
+                        loc.getBlockZ();
+            }, after, limit);
+            for (Extent ext : getSearchExtents(world, min, max)) {
+                for (TileEntity te : ext.getTileEntities(predicate)) {
+                    if (!te.isValid()) continue;
+                    if (!isWithin(te.getLocation().getBlockPosition(), min, max)) continue;
+                    page.add(te);
+                }
+            }
+            return page.build(CachedTileEntity::new);
+        });
+    }
+
     /**
      * Tries to get a tile entity at the specified location.
      * @param location The location of the tile entity.
@@ -850,6 +1053,27 @@ public class CacheService {
         updateWorld(event.getTargetWorld().getProperties());
     }
 
+    @Listener(order = Order.POST)
+    public void onEntitySpawn(SpawnEntityEvent event) {
+        for (Entity entity : event.getEntities()) {
+            entityWorlds.put(entity.getUniqueId(), entity.getWorld().getUniqueId());
+        }
+    }
+    @Listener(order = Order.POST)
+    public void onEntityDestruct(DestructEntityEvent event) {
+        entityWorlds.remove(event.getTargetEntity().getUniqueId());
+    }
+    @Listener(order = Order.POST)
+    public void onEntityTeleport(MoveEntityEvent.Teleport event) {
+        entityWorlds.put(event.getTargetEntity().getUniqueId(), event.getToTransform().getExtent().getUniqueId());
+    }
+    @Listener(order = Order.POST)
+    public void onChunkUnload(UnloadChunkEvent event) {
+        for (Entity entity : event.getTargetChunk().getEntities()) {
+            entityWorlds.remove(entity.getUniqueId());
+        }
+    }
+
     @Listener(order = Order.POST)
     public void onPlayerJoin(ClientConnectionEvent.Join event) {
         updatePlayer(event.getTargetEntity());
@@ -869,22 +1093,11 @@ public class CacheService {
         Optional<Player> player = event.getCause().first(Player.class);
 
         MessageChannel channel = event.getChannel().orElse(event.getOriginalChannel());
-        CachedMessage msg = player.isPresent() ?
-                new CachedChatMessage(player.get(), channel.getMembers(), event.getMessage()) :
-                new CachedMessage(channel.getMembers(), event.getMessage());
-        messages.add(msg);
-
-        while (messages.size() > numChatMessages) {
-            messages.poll();
-        }
+        messages.add(player.orElse(null), channel.getMembers(), event.getMessage());
     }
     @Listener(order = Order.POST)
     public void onCommand(SendCommandEvent event) {
         CachedCommandCall cache = new CachedCommandCall(event, censoredCommands.contains(event.getCommand()));
         commandCalls.add(cache);
-
-        while (commandCalls.size() > numCommandCalls) {
-            commandCalls.poll();
-        }
     }
 }
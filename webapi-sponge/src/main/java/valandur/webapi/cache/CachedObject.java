@@ -57,12 +57,10 @@ public abstract class CachedObject<T> {
             if (value instanceof DataHolder) {
                 DataHolder holder = (DataHolder)value;
 
-                Map<String, Class<? extends DataManipulator<?, ?>>> supData = serializeService.getSupportedData();
+                // Only check the data that this holder supports
+                Map<String, Class<? extends DataManipulator<?, ?>>> supData = serializeService.getApplicableData(holder);
                 for (Map.Entry<String, Class<? extends DataManipulator<?, ?>>> entry : supData.entrySet()) {
                     try {
-                        if (!holder.supports(entry.getValue()))
-                            continue;
-
                         Optional<?> m = holder.get(entry.getValue());
 
                         if (!m.isPresent())
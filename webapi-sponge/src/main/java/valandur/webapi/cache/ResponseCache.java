@@ -0,0 +1,155 @@
+package valandur.webapi.cache;
+
+import java.util.*;
+
+/**
+ * Caches the encoded (serialized) bodies of responses that consist of {@link SharedCachedObject}s, which are the
+ * cached objects that the {@link CacheService} keeps and returns to many requests. An entry is identified by
+ * the mapper that was used to encode it (which covers the format, details flag and permissions) and the exact
+ * instances of the cached objects. Because the {@link CacheService} replaces cached objects when they are
+ * updated, an entry is never served for newer data, and entries are dropped as soon as one of their objects
+ * has expired.
+ */
+public class ResponseCache {
+
+    private long maxSize;
+    private long size;
+    private LinkedHashMap<Key, byte[]> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+
+    public ResponseCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Sets the maximum amount of bytes that are kept in this cache. Use 0 to disable the cache.
+     * @param maxSize The maximum size of the cache in bytes.
+     */
+    public synchronized void setMaxSize(long maxSize) {
+        this.maxSize = maxSize;
+        evict();
+    }
+
+    /**
+     * Gets the objects of a response value that can be used to cache the encoded response.
+     * @param value The value of the response.
+     * @return The list of cached objects the value consists of, or null if the value can't be cached.
+     */
+    public static List<CachedObject<?>> getCacheableObjects(Object value) {
+        if (value instanceof CachedObject) {
+            return value instanceof SharedCachedObject ? Collections.singletonList((CachedObject<?>)value) : null;
+        }
+        if (!(value instanceof Collection) || ((Collection<?>)value).isEmpty()) {
+            return null;
+        }
+
+        List<CachedObject<?>> objects = new ArrayList<>(((Collection<?>)value).size());
+        for (Object obj : (Collection<?>)value) {
+            if (!(obj instanceof CachedObject) || !(obj instanceof SharedCachedObject)) {
+                return null;
+            }
+            objects.add((CachedObject<?>)obj);
+        }
+        return objects;
+    }
+
+    /**
+     * Gets the encoded response for the specified objects.
+     * @param encoder The object that encoded the response, usually the object mapper.
+     * @param objects The cached objects of the response.
+     * @return The encoded response, or null if there is no valid entry in the cache.
+     */
+    public synchronized byte[] get(Object encoder, List<CachedObject<?>> objects) {
+        Key key = new Key(encoder, objects);
+        byte[] body = entries.get(key);
+        if (body != null && key.isExpired()) {
+            entries.remove(key);
+            size -= body.length;
+            return null;
+        }
+        return body;
+    }
+
+    /**
+     * Adds an encoded response to the cache. Responses containing expired objects are not cached.
+     * @param encoder The object that encoded the response, usually the object mapper.
+     * @param objects The cached objects of the response.
+     * @param body The encoded response.
+     */
+    public synchronized void put(Object encoder, List<CachedObject<?>> objects, byte[] body) {
+        if (body.length > maxSize) {
+            return;
+        }
+
+        Key key = new Key(encoder, objects);
+        if (key.isExpired()) {
+            return;
+        }
+
+        byte[] prev = entries.put(key, body);
+        if (prev != null) {
+            size -= prev.length;
+        }
+        size += body.length;
+        evict();
+    }
+
+    /**
+     * Removes all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = 0;
+    }
+
+    private void evict() {
+        Iterator<Map.Entry<Key, byte[]>> iter = entries.entrySet().iterator();
+        while (size > maxSize && iter.hasNext()) {
+            size -= iter.next().getValue().length;
+            iter.remove();
+        }
+    }
+
+    private static class Key {
+        private final Object encoder;
+        private final CachedObject<?>[] objects;
+        private final int hash;
+
+        private Key(Object encoder, List<CachedObject<?>> objects) {
+            this.encoder = encoder;
+            this.objects = objects.toArray(new CachedObject<?>[0]);
+
+            int h = System.identityHashCode(encoder);
+            for (CachedObject<?> obj : this.objects) {
+                h = 31 * h + System.identityHashCode(obj);
+            }
+            this.hash = h;
+        }
+
+        private boolean isExpired() {
+            for (CachedObject<?> obj : objects) {
+                if (obj.isExpired()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key other = (Key) o;
+            if (encoder != other.encoder || objects.length != other.objects.length) return false;
+            for (int i = 0; i < objects.length; i++) {
+                if (objects[i] != other.objects[i]) return false;
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
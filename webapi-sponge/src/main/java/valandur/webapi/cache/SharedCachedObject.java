@@ -0,0 +1,10 @@
+package valandur.webapi.cache;
+
+/**
+ * Marks cached objects that the {@link CacheService} keeps and hands out to many requests, instead of creating
+ * a new instance for each request. Only responses made up of these objects are kept in the {@link ResponseCache},
+ * because the entries of other responses would never be requested again.
+ * Cached objects that change while they are kept must not implement this interface.
+ */
+public interface SharedCachedObject {
+}
@@ -5,12 +5,13 @@ import io.swagger.annotations.ApiModelProperty;
 import org.spongepowered.api.command.CommandMapping;
 import org.spongepowered.api.text.Text;
 import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.SharedCachedObject;
 import valandur.webapi.util.Constants;
 
 import static valandur.webapi.command.CommandSource.instance;
 
 @ApiModel("Command")
-public class CachedCommand extends CachedObject<CommandMapping> {
+public class CachedCommand extends CachedObject<CommandMapping> implements SharedCachedObject {
 
     private String name;
     @ApiModelProperty(value = "The name of the command, sometimes also referred to as primary alias.", required = true)
@@ -5,13 +5,24 @@ import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 import org.spongepowered.api.event.command.SendCommandEvent;
 import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.SharedCachedObject;
 import valandur.webapi.cache.misc.CachedCause;
 import valandur.webapi.serialize.JsonDetails;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
 @ApiModel("CommandCall")
-public class CachedCommandCall extends CachedObject<CachedCommandCall> {
+public class CachedCommandCall extends CachedObject<CachedCommandCall> implements SharedCachedObject {
+
+    private static final AtomicLong nextSequence = new AtomicLong();
+
+    private long sequence;
+    @JsonIgnore
+    @ApiModelProperty(hidden = true)
+    public long getSequence() {
+        return sequence;
+    }
 
     private Long timestamp;
     @ApiModelProperty(value = "The timestamp at which the command was executed (epoch millis)", required = true)
@@ -55,6 +66,7 @@ public class CachedCommandCall extends CachedObject<CachedCommandCall> {
     public CachedCommandCall(SendCommandEvent event, boolean censor) {
         super(null);
 
+        this.sequence = nextSequence.getAndIncrement();
         this.timestamp = (new Date()).toInstant().toEpochMilli();
         this.command = censor ? "[censored]" : event.getCommand();
         this.args = censor ? "" : event.getArguments();
@@ -3,10 +3,9 @@ package valandur.webapi.cache.entity;
 import com.flowpowered.math.vector.Vector3d;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
-import org.spongepowered.api.Sponge;
 import org.spongepowered.api.entity.Entity;
 import org.spongepowered.api.item.inventory.Carrier;
-import org.spongepowered.api.world.World;
+import valandur.webapi.WebAPI;
 import valandur.webapi.cache.CachedObject;
 import valandur.webapi.cache.misc.CachedCatalogType;
 import valandur.webapi.cache.misc.CachedInventory;
@@ -87,12 +86,7 @@ public class CachedEntity extends CachedObject<Entity> {
 
     @Override
     public Optional<Entity> getLive() {
-        for (World w : Sponge.getServer().getWorlds()) {
-            Optional<Entity> e = w.getEntity(uuid);
-            if (e.isPresent())
-                return Optional.of(e.get());
-        }
-        return Optional.empty();
+        return WebAPI.getCacheService().getLiveEntity(uuid);
     }
 
     @Override
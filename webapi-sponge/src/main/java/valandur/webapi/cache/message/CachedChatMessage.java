@@ -25,6 +25,11 @@ public class CachedChatMessage extends CachedMessage {
 
         this.sender = cacheService.getPlayer(sender);
     }
+    public CachedChatMessage(CachedPlayer sender, Long timestamp, Collection<Object> receivers, Text content) {
+        super(timestamp, receivers, content);
+
+        this.sender = sender;
+    }
 
     @Override
     @JsonIgnore
@@ -45,6 +45,13 @@ public class CachedMessage extends CachedObject {
         }
         this.content = content.toBuilder().build();
     }
+    public CachedMessage(Long timestamp, Collection<Object> receivers, Text content) {
+        super(null);
+
+        this.timestamp = timestamp;
+        this.receivers = receivers;
+        this.content = content;
+    }
 
     @Override
     @JsonIgnore
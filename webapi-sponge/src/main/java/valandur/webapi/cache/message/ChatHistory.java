@@ -0,0 +1,165 @@
+package valandur.webapi.cache.message;
+
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.Text;
+import org.spongepowered.api.text.channel.MessageReceiver;
+import org.spongepowered.api.text.serializer.TextSerializers;
+import valandur.webapi.WebAPI;
+import valandur.webapi.cache.player.CachedPlayer;
+import valandur.webapi.util.Page;
+import valandur.webapi.util.RingBuffer;
+
+import java.util.*;
+
+/**
+ * Keeps a history of the messages sent on the server. Messages are stored in a compact form (the receivers as
+ * uuids, the content as json), and are only turned into {@link CachedMessage}s when the history is read.
+ * Consecutive messages with the same receivers share the same receiver arrays.
+ */
+public class ChatHistory {
+
+    private volatile RingBuffer<Entry> entries;
+    private Entry last;
+    private long sequence;
+
+
+    public ChatHistory(int capacity) {
+        this.entries = new RingBuffer<>(capacity);
+    }
+
+    /**
+     * Gets the maximum amount of messages kept in this history.
+     * @return The capacity of this history.
+     */
+    public int getCapacity() {
+        return entries.getCapacity();
+    }
+
+    /**
+     * Changes the maximum amount of messages kept in this history, keeping the newest messages.
+     * @param capacity The new capacity.
+     */
+    public synchronized void setCapacity(int capacity) {
+        if (capacity == entries.getCapacity()) {
+            return;
+        }
+
+        entries = entries.withCapacity(capacity);
+    }
+
+    /**
+     * Adds a message to the history.
+     * @param sender The player that sent the message, or null if the message wasn't sent by a player.
+     * @param receivers The receivers of the message.
+     * @param content The content of the message.
+     */
+    public synchronized void add(Player sender, Collection<MessageReceiver> receivers, Text content) {
+        List<UUID> players = new ArrayList<>(receivers.size());
+        List<String> others = new ArrayList<>();
+        for (MessageReceiver receiver : receivers) {
+            if (receiver instanceof Player) {
+                players.add(((Player) receiver).getUniqueId());
+            } else {
+                others.add(receiver.getClass().getName());
+            }
+        }
+
+        UUID[] playerArr = players.toArray(new UUID[0]);
+        String[] otherArr = others.toArray(new String[0]);
+        if (last != null && Arrays.equals(last.players, playerArr) && Arrays.equals(last.others, otherArr)) {
+            playerArr = last.players;
+            otherArr = last.others;
+        }
+
+        last = new Entry(
+                sequence++,
+                System.currentTimeMillis(),
+                sender != null ? sender.getUniqueId() : null,
+                playerArr,
+                otherArr,
+                TextSerializers.JSON.serialize(content)
+        );
+        entries.add(last);
+    }
+
+    /**
+     * Gets the messages in the history, newest first.
+     * @return A list of the messages.
+     */
+    public List<CachedMessage> getMessages() {
+        List<Entry> list = entries.toList();
+        Collections.reverse(list);
+        return resolve(list);
+    }
+
+    /**
+     * Gets one page of the messages in the history, newest first. Only the messages on the page are resolved.
+     * @param after The key after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of messages on the page.
+     * @return The page of messages.
+     */
+    public Page<CachedMessage> getMessages(String after, int limit) {
+        Page<Entry> page = Page.of(entries.toList(), (Entry e) -> Page.descendingKey(e.sequence), after, limit,
+                e -> e);
+        return new Page<>(resolve(page.getItems()), page.getTotal(), page.getNextKey());
+    }
+
+    /**
+     * Turns history entries into messages, resolving all the players at once.
+     * @param list The entries, in the order in which the messages are returned.
+     * @return The messages.
+     */
+    private List<CachedMessage> resolve(List<Entry> list) {
+        // Resolve all the players at once
+        Set<UUID> uuids = new HashSet<>();
+        for (Entry entry : list) {
+            if (entry.sender != null) {
+                uuids.add(entry.sender);
+            }
+            uuids.addAll(Arrays.asList(entry.players));
+        }
+        Map<UUID, CachedPlayer> players = WebAPI.getCacheService().getPlayers(uuids);
+
+        // Messages with the same receivers share the same receiver list
+        Map<UUID[], List<Object>> receiverLists = new IdentityHashMap<>();
+
+        List<CachedMessage> res = new ArrayList<>(list.size());
+        for (Entry entry : list) {
+            List<Object> receivers = receiverLists.computeIfAbsent(entry.players, p -> {
+                List<Object> recs = new ArrayList<>(p.length + entry.others.length);
+                for (UUID uuid : p) {
+                    CachedPlayer player = players.get(uuid);
+                    recs.add(player != null ? player : uuid.toString());
+                }
+                recs.addAll(Arrays.asList(entry.others));
+                return recs;
+            });
+
+            Text content = TextSerializers.JSON.deserializeUnchecked(entry.content);
+            if (entry.sender != null && players.containsKey(entry.sender)) {
+                res.add(new CachedChatMessage(players.get(entry.sender), entry.timestamp, receivers, content));
+            } else {
+                res.add(new CachedMessage(entry.timestamp, receivers, content));
+            }
+        }
+        return res;
+    }
+
+    private static class Entry {
+        private final long sequence;
+        private final long timestamp;
+        private final UUID sender;
+        private final UUID[] players;
+        private final String[] others;
+        private final String content;
+
+        private Entry(long sequence, long timestamp, UUID sender, UUID[] players, String[] others, String content) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.sender = sender;
+            this.players = players;
+            this.others = others;
+            this.content = content;
+        }
+    }
+}
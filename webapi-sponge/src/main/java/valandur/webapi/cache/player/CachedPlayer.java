@@ -13,6 +13,7 @@ import org.spongepowered.api.entity.living.player.User;
 import org.spongepowered.api.item.inventory.ItemStack;
 import org.spongepowered.api.service.user.UserStorageService;
 import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.SharedCachedObject;
 import valandur.webapi.cache.misc.CachedInventory;
 import valandur.webapi.cache.world.CachedLocation;
 import valandur.webapi.serialize.JsonDetails;
@@ -24,7 +25,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 @ApiModel(value = "Player")
-public class CachedPlayer extends CachedObject<Player> {
+public class CachedPlayer extends CachedObject<Player> implements SharedCachedObject {
 
     protected UUID uuid;
     @ApiModelProperty(value = "The unique UUID of this player", required = true)
@@ -7,6 +7,7 @@ import io.swagger.annotations.ApiModelProperty;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.plugin.PluginContainer;
 import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.SharedCachedObject;
 import valandur.webapi.serialize.JsonDetails;
 import valandur.webapi.util.Constants;
 
@@ -17,7 +18,7 @@ import java.nio.file.Paths;
 import java.util.*;
 
 @ApiModel("PluginContainer")
-public class CachedPluginContainer extends CachedObject<PluginContainer> {
+public class CachedPluginContainer extends CachedObject<PluginContainer> implements SharedCachedObject {
 
     public enum PluginType {
         Unknown, Sponge, Forge, Minecraft,
@@ -13,6 +13,7 @@ import org.spongepowered.api.world.difficulty.Difficulty;
 import org.spongepowered.api.world.storage.WorldProperties;
 import org.spongepowered.api.world.weather.Weather;
 import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.SharedCachedObject;
 import valandur.webapi.cache.misc.CachedCatalogType;
 import valandur.webapi.serialize.JsonDetails;
 import valandur.webapi.util.Constants;
@@ -23,7 +24,7 @@ import java.util.Optional;
 import java.util.UUID;
 
 @ApiModel(value = "World")
-public class CachedWorld extends CachedObject<World> {
+public class CachedWorld extends CachedObject<World> implements SharedCachedObject {
 
     private UUID uuid;
     @ApiModelProperty(value = "The unique UUID that identifies this world", required = true)
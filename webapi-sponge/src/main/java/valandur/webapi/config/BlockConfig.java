@@ -15,7 +15,48 @@ public class BlockConfig extends BaseConfig {
             "at once (see below)")
     public int maxBlockUpdateSize = 1000000;
 
+    @Setting(comment = "This is the maximum amount of blocks that a client can search\n" +
+            "with one query operation. Queries don't keep the blocks in memory,\n" +
+            "so this can be a lot larger than the settings above")
+    public int maxBlockQuerySize = 100000000;
+
+    @Setting(comment = "The maximum amount of block positions that one query operation\n" +
+            "returns. Clients can't ask for more positions than this")
+    public int maxQueryPositions = 100000;
+
     @Setting(comment = "The maximum number of blocks that are changed per second during\n" +
-            "a block update (related to the setting above)")
+            "a block update (related to the setting above). Set to 0 to only\n" +
+            "limit block operations by the time budget below")
     public int maxBlocksPerSecond = 1000;
+
+    @Setting(comment = "The time in milliseconds that block operations may run each tick.\n" +
+            "This is shared between all running block operations, and reduced\n" +
+            "when the server falls behind")
+    public int tickBudget = 10;
+
+    @Setting(comment = "When the server TPS drop below this value, block operations only\n" +
+            "run once per second, with a minimal time budget")
+    public double minTps = 15;
+
+    @Setting(comment = "Read-only block operations (GET and QUERY operations that don't check\n" +
+            "light or tile entities) copy each chunk on the main thread, and process\n" +
+            "the copies on other threads. This is only limited by the time budget above,\n" +
+            "not by maxBlocksPerSecond. Set to false to process them block by block")
+    public boolean parallelScan = true;
+
+    @Setting(comment = "The number of threads that process chunk copies (see above).\n" +
+            "Set to 0 to use one less than the number of processors")
+    public int scanThreads = 0;
+
+    @Setting(comment = "The progress of block operations is saved every this many chunks, so that\n" +
+            "they can be resumed after a restart")
+    public int checkpointInterval = 16;
+
+    @Setting(comment = "The number of seconds that finished block operations (and their results)\n" +
+            "are kept. Set to 0 to keep them until there are too many (see below)")
+    public int finishedOperationTtl = 3600;
+
+    @Setting(comment = "The maximum number of finished block operations that are kept.\n" +
+            "The oldest ones are removed first")
+    public int maxFinishedOperations = 50;
 }
@@ -20,6 +20,10 @@ public class CacheConfig extends BaseConfig {
     @Setting(comment = "The number of seconds that the different types of data is cached for")
     public Map<String, Long> duration = new HashMap<>();
 
+    @Setting(comment = "The maximum number of kilobytes used to cache serialized responses of cached objects.\n" +
+            "Set to 0 to disable caching of serialized responses.")
+    public int responseCacheSize = 16384;
+
     @Setting(comment = "The folders in which Web-API looks for other plugins.")
     public List<String> pluginFolders = Lists.newArrayList("./mods", "./plugins");
 
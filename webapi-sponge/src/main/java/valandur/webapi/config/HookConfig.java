@@ -8,6 +8,7 @@ import valandur.webapi.hook.WebHook;
 import valandur.webapi.hook.WebHookHeader;
 import valandur.webapi.hook.WebHookParam;
 import valandur.webapi.hook.WebHookService.WebHookType;
+import valandur.webapi.hook.stream.EventStreamSocket;
 import valandur.webapi.security.SecurityService;
 
 import javax.ws.rs.HttpMethod;
@@ -60,6 +61,44 @@ public class HookConfig extends BaseConfig {
             "when running the command /webapi notify test")
     public Map<String, CommandWebHook> command = defaultCommandHooks();
 
+    @Setting(comment = "Clients can also subscribe to events with a WebSocket connection to /api/v5/events\n" +
+            "(e.g. ws://localhost:8080/api/v5/events?key=ADMIN&types=CHAT,PLAYER_JOIN), instead of using web hooks.\n" +
+            "Subscribing to an event requires the permission events.<event>, e.g. events.chat")
+    public HookStream stream = new HookStream();
+
+    @Setting(comment = "Settings for sending the requests to the web hooks")
+    public HookDelivery delivery = new HookDelivery();
+
+
+    @ConfigSerializable
+    public static class HookDelivery {
+        @Setting(comment = "The number of milliseconds to wait for a connection to a web hook")
+        public long connectTimeout = 5000;
+
+        @Setting(comment = "The number of milliseconds to wait for data from a web hook")
+        public long readTimeout = 10000;
+
+        @Setting(comment = "The maximum number of requests that are sent to the same web hook address at the same time")
+        public int maxInFlight = 4;
+
+        @Setting(comment = "The maximum number of requests per web hook address that wait to be sent. Additional requests\n" +
+                "are dropped. Set to 0 for no limit.")
+        public int maxQueued = 1000;
+    }
+
+
+    @ConfigSerializable
+    public static class HookStream {
+        @Setting(comment = "The maximum number of events that are buffered for each client. This limit is reached\n" +
+                "when a client receives events slower than they are happening on the server.")
+        public int bufferSize = 256;
+
+        @Setting(comment = "What happens when the buffer of a client is full:\n" +
+                "DROP = The oldest events are dropped\n" +
+                "DISCONNECT = The client is disconnected")
+        public EventStreamSocket.OverflowPolicy overflow = EventStreamSocket.OverflowPolicy.DROP;
+    }
+
 
     @ConfigSerializable
     public static class HookEvents {
@@ -45,6 +45,26 @@ public class MainConfig extends BaseConfig {
     @Setting
     public String customKeyStoreManagerPassword = null;
 
+    @Setting(comment = "The maximum time in milliseconds that a request waits for the main\n" +
+            "server thread before it fails with a 503 error.")
+    public int mainThreadTimeout = 30000;
+
+    @Setting(comment = "The maximum number of API tasks that may be waiting for the main\n" +
+            "server thread at the same time. Further requests fail with a 503\n" +
+            "error until the main thread catches up. Set to 0 for no limit.")
+    public int maxPendingMainTasks = 1000;
+
+    @Setting(comment = "The maximum time in milliseconds per server tick that is spent\n" +
+            "running API tasks on the main server thread. Tasks that don't fit\n" +
+            "into the budget are run during the next tick.")
+    public int mainThreadBudget = 5;
+
+    @Setting(comment = "The maximum amount of objects that list endpoints return per page.\n" +
+            "Requests without a limit get pages of this size, larger limits are\n" +
+            "reduced to it. Use the cursor of the X-Next-Cursor header to get the\n" +
+            "next page.")
+    public int maxPageSize = 1000;
+
     @Setting(comment = "Automatically report errors (your server IP is NOT collected,\n" +
             "neither any personal information). This just helps finding bugs.")
     public boolean reportErrors = true;
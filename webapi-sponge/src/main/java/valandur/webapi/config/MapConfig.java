@@ -15,8 +15,74 @@ public class MapConfig extends BaseConfig {
             "If a biome contains \"_mutated\" in the id then the non-mutated version is used if a mutated version is not defined.")
     public Map<String, String> biomeColors = new HashMap<>();
 
+    @Setting(comment = "This contains the mapping of block type ids to colors used in the surface map.\n" +
+            "Colors are specified as 6 digit hex codes (like in html/css).\n" +
+            "If a block type cannot be found then white (\"FFFFFF\") is used.")
+    public Map<String, String> blockColors = new HashMap<>();
+
+    @Setting(comment = "The highest zoom level of the map. Each zoom level covers twice the area\n" +
+            "of the level below it, and is created from the tiles of the level below")
+    public int maxZoom = 4;
+
+    @Setting(comment = "The number of threads that render map tiles")
+    public int renderThreads = 2;
+
+    @Setting(comment = "The maximum number of map tiles that are waiting to be rendered. When this\n" +
+            "is reached, new tile requests are answered with 202 and a Retry-After header")
+    public int maxQueuedRenders = 64;
+
+    @Setting(comment = "The time in milliseconds a request waits for a tile to be rendered, before\n" +
+            "it is answered with 202 and a Retry-After header. The tile is still rendered")
+    public int renderTimeout = 10000;
+
+    @Setting(comment = "The number of seconds clients may keep a map tile before checking if it changed")
+    public int tileMaxAge = 60;
+
+    @Setting(comment = "Map tiles are marked as changed when blocks change or chunks are generated, and\n" +
+            "are rendered again every this many seconds. Set to 0 to never update tiles")
+    public int rerenderInterval = 30;
+
     // Add default map values
     public MapConfig() {
+        blockColors.put("minecraft:grass", "7FB238");
+        blockColors.put("minecraft:tallgrass", "7FB238");
+        blockColors.put("minecraft:double_plant", "7FB238");
+        blockColors.put("minecraft:dirt", "976D4D");
+        blockColors.put("minecraft:farmland", "976D4D");
+        blockColors.put("minecraft:grass_path", "976D4D");
+        blockColors.put("minecraft:stone", "707070");
+        blockColors.put("minecraft:cobblestone", "707070");
+        blockColors.put("minecraft:gravel", "707070");
+        blockColors.put("minecraft:bedrock", "505050");
+        blockColors.put("minecraft:sand", "F7E9A3");
+        blockColors.put("minecraft:sandstone", "F7E9A3");
+        blockColors.put("minecraft:red_sand", "D87F33");
+        blockColors.put("minecraft:clay", "A4A8B8");
+        blockColors.put("minecraft:water", "4040FF");
+        blockColors.put("minecraft:flowing_water", "4040FF");
+        blockColors.put("minecraft:lava", "FF0000");
+        blockColors.put("minecraft:flowing_lava", "FF0000");
+        blockColors.put("minecraft:ice", "A0A0FF");
+        blockColors.put("minecraft:packed_ice", "A0A0FF");
+        blockColors.put("minecraft:snow", "FFFFFF");
+        blockColors.put("minecraft:snow_layer", "FFFFFF");
+        blockColors.put("minecraft:leaves", "007C00");
+        blockColors.put("minecraft:leaves2", "007C00");
+        blockColors.put("minecraft:log", "8F7748");
+        blockColors.put("minecraft:log2", "8F7748");
+        blockColors.put("minecraft:planks", "8F7748");
+        blockColors.put("minecraft:cactus", "007C00");
+        blockColors.put("minecraft:reeds", "007C00");
+        blockColors.put("minecraft:vine", "007C00");
+        blockColors.put("minecraft:waterlily", "007C00");
+        blockColors.put("minecraft:mycelium", "7F3FB2");
+        blockColors.put("minecraft:netherrack", "700200");
+        blockColors.put("minecraft:soul_sand", "664C33");
+        blockColors.put("minecraft:end_stone", "F7E9A3");
+        blockColors.put("minecraft:obsidian", "191919");
+        blockColors.put("minecraft:hardened_clay", "D87F33");
+        blockColors.put("minecraft:stained_hardened_clay", "D87F33");
+
         biomeColors.put("minecraft:ocean", "000070");
         biomeColors.put("minecraft:plains", "8DB360");
         biomeColors.put("minecraft:desert", "FA9418");
@@ -12,4 +12,14 @@ public class ServerConfig extends BaseConfig {
 
     @Setting(comment = "The interval in seconds at which the server stats are recorded.")
     public int statsInterval = 5;
+
+    @Setting(comment = "The stats are also saved to the stats.dat file in this folder, and summarized per minute,\n" +
+            "per 15 minutes and per hour. This is the number of minutes that are kept (1440 = 24 hours).")
+    public int statsMinutes = 1440;
+
+    @Setting(comment = "The number of 15 minute summaries of the stats that are kept (672 = 7 days).")
+    public int statsQuarterHours = 672;
+
+    @Setting(comment = "The number of hourly summaries of the stats that are kept (8760 = 1 year).")
+    public int statsHours = 8760;
 }
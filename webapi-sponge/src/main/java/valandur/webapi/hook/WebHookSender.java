@@ -0,0 +1,327 @@
+package valandur.webapi.hook;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.client.util.BufferingResponseListener;
+import org.eclipse.jetty.client.util.StringContentProvider;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.slf4j.Logger;
+import org.spongepowered.api.Sponge;
+import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.text.Text;
+import valandur.webapi.WebAPI;
+import valandur.webapi.hook.WebHookService.WebHookType;
+import valandur.webapi.util.Constants;
+
+import javax.ws.rs.HttpMethod;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Delivers web hook requests using a shared http client, which keeps connections alive and reuses them.
+ * Each hook address can only have a limited amount of requests in flight at the same time, additional requests
+ * are queued, and dropped once the queue for that address is full.
+ */
+public class WebHookSender {
+
+    // Replaced on reload, and read by the threads that send requests and handle their results
+    private volatile HttpClient client;
+    private String userAgent;
+    private long readTimeout;
+    private int maxInFlight;
+    private int maxQueued;
+
+    private Map<String, Destination> destinations = new ConcurrentHashMap<>();
+
+
+    /**
+     * Starts the http client used to deliver the requests. Stops the previous client if there was one.
+     * @param userAgent The user agent sent with each request.
+     * @param connectTimeout The timeout in milliseconds for opening a connection.
+     * @param readTimeout The timeout in milliseconds to wait for data from the server.
+     * @param maxInFlight The maximum amount of concurrent requests per hook address.
+     * @param maxQueued The maximum amount of requests per hook address waiting to be sent.
+     */
+    public void start(String userAgent, long connectTimeout, long readTimeout, int maxInFlight, int maxQueued) {
+        stop();
+
+        this.userAgent = userAgent;
+        this.readTimeout = readTimeout;
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.maxQueued = maxQueued;
+
+        SslContextFactory sslContextFactory = new SslContextFactory();
+        sslContextFactory.setEndpointIdentificationAlgorithm("HTTPS");
+
+        QueuedThreadPool threadPool = new QueuedThreadPool();
+        threadPool.setName("Web-API - Hooks");
+        threadPool.setDaemon(true);
+
+        client = new HttpClient(sslContextFactory);
+        client.setExecutor(threadPool);
+        client.setConnectTimeout(connectTimeout);
+        client.setMaxConnectionsPerDestination(this.maxInFlight);
+        client.setUserAgentField(null);
+
+        try {
+            client.start();
+        } catch (Exception e) {
+            WebAPI.getLogger().error("Could not start web hook client: " + e.getMessage());
+            WebAPI.sentryCapture(e);
+        }
+    }
+
+    /**
+     * Stops the http client, aborting all requests that are in flight. The callbacks of the aborted requests
+     * bring the amount of requests in flight back down, so the counters stay correct for the next client.
+     */
+    public void stop() {
+        HttpClient client = this.client;
+        if (client == null) {
+            return;
+        }
+
+        // Clear the client first, so that the callbacks of aborted requests don't send queued requests with it
+        this.client = null;
+        for (Destination dest : destinations.values()) {
+            dest.queue.clear();
+        }
+
+        try {
+            client.stop();
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Sends a request to the address of the web hook.
+     * @param hook The hook that is notified.
+     * @param eventType The type of event that caused the notification.
+     * @param source The source of the notification, if any.
+     * @param data The serialized data that is sent to the hook.
+     */
+    public void send(WebHook hook, WebHookType eventType, String source, String data) {
+        Destination dest = destinations.computeIfAbsent(hook.getAddress(), Destination::new);
+
+        if (maxQueued > 0 && dest.queue.size() >= maxQueued) {
+            dest.dropped.incrementAndGet();
+            WebAPI.getLogger().warn("Dropped request for hook '" + hook.getAddress() + "', too many requests queued");
+            return;
+        }
+
+        dest.queue.add(new Delivery(hook, eventType, source, data));
+        pump(dest);
+    }
+
+    private void pump(Destination dest) {
+        while (true) {
+            int current = dest.inFlight.get();
+            if (current >= maxInFlight) {
+                return;
+            }
+            if (!dest.inFlight.compareAndSet(current, current + 1)) {
+                continue;
+            }
+
+            Delivery next = dest.queue.poll();
+            if (next == null) {
+                dest.inFlight.decrementAndGet();
+                // Another thread might have added a request after we checked
+                if (dest.queue.isEmpty()) {
+                    return;
+                }
+                continue;
+            }
+
+            dispatch(dest, next);
+        }
+    }
+
+    private void dispatch(Destination dest, Delivery delivery) {
+        final Logger logger = WebAPI.getLogger();
+        final WebHook hook = delivery.hook;
+
+        HttpClient client = this.client;
+        if (client == null) {
+            dest.inFlight.decrementAndGet();
+            return;
+        }
+
+        Request req;
+        try {
+            req = client.newRequest(hook.getAddress())
+                    .method(hook.getMethod())
+                    .idleTimeout(readTimeout, TimeUnit.MILLISECONDS);
+        } catch (IllegalArgumentException e) {
+            dest.inFlight.decrementAndGet();
+            dest.failed.incrementAndGet();
+            logger.warn("Malformed URL for hook '" + hook.getAddress() + "': " + e.getMessage());
+            return;
+        }
+
+        for (WebHookHeader header : hook.getHeaders()) {
+            req.header(header.getName(), header.getValue());
+        }
+        req.header("User-Agent", userAgent);
+        req.header("X-WebAPI-Version", Constants.VERSION);
+        req.header("X-WebAPI-Event", delivery.eventType.toString());
+        if (delivery.source != null) req.header("X-WebAPI-Source", delivery.source);
+        req.header("accept", "application/json");
+        req.header("charset", "utf-8");
+        if (delivery.data != null && !HttpMethod.GET.equalsIgnoreCase(hook.getMethod())) {
+            req.content(new StringContentProvider(hook.getDataTypeHeader(), delivery.data, StandardCharsets.UTF_8));
+        }
+
+        final long start = System.nanoTime();
+        req.send(new BufferingResponseListener() {
+            @Override
+            public void onComplete(Result result) {
+                long nanos = System.nanoTime() - start;
+                dest.inFlight.decrementAndGet();
+
+                try {
+                    if (result.isFailed()) {
+                        dest.failed.incrementAndGet();
+                        logger.warn("Could not send request to hook '" + hook.getAddress() + "': " +
+                                result.getFailure().getMessage());
+                        return;
+                    }
+
+                    int code = result.getResponse().getStatus();
+                    if (code != 200) {
+                        dest.failed.incrementAndGet();
+                        logger.warn("Hook '" + hook.getAddress() + "' responded with code: " + code);
+                        return;
+                    }
+
+                    // Only successful deliveries count towards the latency, failures are counted separately
+                    dest.record(nanos);
+                    handleResponse(hook, getContentAsString(StandardCharsets.UTF_8));
+                } finally {
+                    pump(dest);
+                }
+            }
+        });
+    }
+
+    private void handleResponse(WebHook hook, String respString) {
+        if (respString == null) return;
+        respString = respString.trim();
+        if (respString.isEmpty() || respString.equalsIgnoreCase("OK")) return;
+
+        final WebHookResponse resp;
+        try {
+            resp = new ObjectMapper().readValue(respString, WebHookResponse.class);
+        } catch (IOException e) {
+            WebAPI.getLogger().warn("Invalid response from hook '" + hook.getAddress() + "': " + e.getMessage());
+            return;
+        }
+
+        Text msg = resp.getMessage();
+
+        WebAPI.runOnMainAsync(() -> {
+            for (String target : resp.getTargets()) {
+                if (target.equalsIgnoreCase("server")) {
+                    Sponge.getServer().getBroadcastChannel().send(msg);
+                    continue;
+                }
+
+                Optional<Player> p = Sponge.getServer().getPlayer(UUID.fromString(target));
+                if (!p.isPresent())
+                    continue;
+
+                p.get().sendMessage(msg);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Gets the delivery statistics for each hook address.
+     * @return The delivery statistics.
+     */
+    public Collection<Destination> getDestinations() {
+        return destinations.values();
+    }
+
+    private static class Delivery {
+        private final WebHook hook;
+        private final WebHookType eventType;
+        private final String source;
+        private final String data;
+
+        private Delivery(WebHook hook, WebHookType eventType, String source, String data) {
+            this.hook = hook;
+            this.eventType = eventType;
+            this.source = source;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The queue and statistics of requests for one hook address.
+     */
+    public static class Destination {
+        private final String address;
+        private final Queue<Delivery> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private volatile long lastNanos;
+        private volatile long maxNanos;
+
+        private Destination(String address) {
+            this.address = address;
+        }
+
+        private void record(long nanos) {
+            sent.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            lastNanos = nanos;
+            if (nanos > maxNanos) {
+                maxNanos = nanos;
+            }
+        }
+
+        public String getAddress() {
+            return address;
+        }
+        public int getQueued() {
+            return queue.size();
+        }
+        public int getInFlight() {
+            return inFlight.get();
+        }
+        public long getSent() {
+            return sent.get();
+        }
+        public long getFailed() {
+            return failed.get();
+        }
+        public long getDropped() {
+            return dropped.get();
+        }
+        public double getLastLatency() {
+            return lastNanos / 1000000.0;
+        }
+        public double getAverageLatency() {
+            long count = sent.get();
+            return count > 0 ? totalNanos.get() / (double)count / 1000000.0 : 0;
+        }
+        public double getMaxLatency() {
+            return maxNanos / 1000000.0;
+        }
+    }
+}
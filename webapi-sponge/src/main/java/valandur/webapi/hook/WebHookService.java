@@ -5,9 +5,15 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.spongepowered.api.Platform;
 import org.spongepowered.api.Sponge;
+import org.spongepowered.api.advancement.Advancement;
+import org.spongepowered.api.block.tileentity.TileEntity;
+import org.spongepowered.api.command.CommandMapping;
 import org.spongepowered.api.entity.Entity;
+import org.spongepowered.api.entity.Transform;
 import org.spongepowered.api.entity.living.player.Player;
+import org.spongepowered.api.entity.living.player.User;
 import org.spongepowered.api.event.Event;
+import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.EventListener;
 import org.spongepowered.api.event.Listener;
 import org.spongepowered.api.event.Order;
@@ -27,16 +33,26 @@ import org.spongepowered.api.event.message.MessageChannelEvent;
 import org.spongepowered.api.event.network.ClientConnectionEvent;
 import org.spongepowered.api.event.user.BanUserEvent;
 import org.spongepowered.api.event.world.*;
-import org.spongepowered.api.text.Text;
+import org.spongepowered.api.item.inventory.Inventory;
+import org.spongepowered.api.item.inventory.ItemStack;
+import org.spongepowered.api.plugin.PluginContainer;
 import org.spongepowered.api.util.Tuple;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.Location;
+import org.spongepowered.api.world.World;
+import org.spongepowered.api.world.explosion.Explosion;
 import valandur.webapi.WebAPI;
 import valandur.webapi.block.BlockOperationStatusChangeEvent;
+import valandur.webapi.cache.CacheService;
 import valandur.webapi.config.BaseConfig;
 import valandur.webapi.config.HookConfig;
 import valandur.webapi.hook.filter.BaseWebHookFilter;
 import valandur.webapi.hook.filter.BlockTypeFilter;
 import valandur.webapi.hook.filter.ItemTypeFilter;
 import valandur.webapi.hook.filter.PlayerFilter;
+import valandur.webapi.hook.stream.EventStreamSocket;
+import valandur.webapi.serialize.view.event.EventView;
+import valandur.webapi.serialize.view.misc.ExplosionView;
 import valandur.webapi.util.Constants;
 import valandur.webapi.util.Timings;
 
@@ -45,6 +61,7 @@ import java.net.*;
 import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 
 import static valandur.webapi.util.Constants.*;
@@ -71,6 +88,10 @@ public class WebHookService {
     private Map<WebHookType, List<WebHook>> eventHooks = new HashMap<>();
     private Map<Class<? extends Event>, Tuple<List<WebHook>, EventListener>> customHooks = new HashMap<>();
     private Map<String, Class<? extends BaseWebHookFilter>> filters = new HashMap<>();
+    private Set<EventStreamSocket> streams = ConcurrentHashMap.newKeySet();
+    private WebHookSender sender = new WebHookSender();
+    private int streamBufferSize;
+    private EventStreamSocket.OverflowPolicy streamOverflowPolicy;
 
     public Map<String, CommandWebHook> getCommandHooks() {
         return commandHooks;
@@ -107,6 +128,12 @@ public class WebHookService {
         Path configPath = WebAPI.getConfigPath().resolve(configFileName).normalize();
         HookConfig config = BaseConfig.load(configPath, new HookConfig());
 
+        streamBufferSize = config.stream.bufferSize;
+        streamOverflowPolicy = config.stream.overflow;
+
+        sender.start(userAgent, config.delivery.connectTimeout, config.delivery.readTimeout,
+                config.delivery.maxInFlight, config.delivery.maxQueued);
+
         // Clear hooks
         eventHooks.clear();
         customHooks.clear();
@@ -198,10 +225,65 @@ public class WebHookService {
         }
     }
 
+    /**
+     * Stops delivering requests to web hooks.
+     */
+    public void stop() {
+        sender.stop();
+    }
+
+    /**
+     * Gets the sender which delivers the requests to the web hooks.
+     * @return The web hook sender.
+     */
+    public WebHookSender getSender() {
+        return sender;
+    }
+
     public Optional<Class<? extends BaseWebHookFilter>> getFilter(String name) {
         return filters.containsKey(name) ? Optional.of(filters.get(name)) : Optional.empty();
     }
 
+    /**
+     * Gets the maximum amount of events that are buffered for each event stream client.
+     * @return The buffer size of event stream clients.
+     */
+    public int getStreamBufferSize() {
+        return streamBufferSize;
+    }
+
+    /**
+     * Gets the policy that decides what happens when the buffer of an event stream client is full.
+     * @return The overflow policy of event stream clients.
+     */
+    public EventStreamSocket.OverflowPolicy getStreamOverflowPolicy() {
+        return streamOverflowPolicy;
+    }
+
+    /**
+     * Adds a client that is notified about the events it subscribed to.
+     * @param stream The event stream client.
+     */
+    public void addStream(EventStreamSocket stream) {
+        streams.add(stream);
+    }
+
+    /**
+     * Removes a client that was notified about events.
+     * @param stream The event stream client.
+     */
+    public void removeStream(EventStreamSocket stream) {
+        streams.remove(stream);
+    }
+
+    /**
+     * Gets all the clients that are currently subscribed to events.
+     * @return The event stream clients.
+     */
+    public Collection<EventStreamSocket> getStreams() {
+        return Collections.unmodifiableSet(streams);
+    }
+
     /**
      * Trigger a WebHook of the specified type, sending along the specified data.
      * @param type The type of WebHook
@@ -222,18 +304,14 @@ public class WebHookService {
             notifyHooks.addAll(allHooks);
         }
 
-        for (WebHook hook : notifyHooks) {
-            notifyHook(hook, type, null, data);
-        }
+        notify(notifyHooks, type, null, data);
 
         Timings.WEBHOOK_NOTIFY.stopTimingIfSync();
     }
     public void notifyHook(CommandWebHook cmdHook, String source, Map<String, Object> data) {
         Timings.WEBHOOK_NOTIFY.startTimingIfSync();
 
-        for (WebHook hook : cmdHook.getHooks()) {
-            notifyHook(hook, WebHookType.CUSTOM_COMMAND, source, data);
-        }
+        notify(cmdHook.getHooks(), WebHookType.CUSTOM_COMMAND, source, data);
 
         Timings.WEBHOOK_NOTIFY.stopTimingIfSync();
     }
@@ -247,128 +325,162 @@ public class WebHookService {
         Timings.WEBHOOK_NOTIFY.startTimingIfSync();
 
         List<WebHook> notifyHooks = customHooks.get(clazz).getFirst();
-        for (WebHook hook : notifyHooks) {
-            notifyHook(hook, WebHookType.CUSTOM_EVENT, null, data);
-        }
+        notify(notifyHooks, WebHookType.CUSTOM_EVENT, null, data);
 
         Timings.WEBHOOK_NOTIFY.stopTimingIfSync();
     }
 
-    private void notifyHook(WebHook hook, WebHookType eventType, String source, Object data) {
-        // First check the filter before we do any processing
-        if (hook.getFilter() != null && !hook.getFilter().process(data)) {
-            return;
-        }
-
-        final String address = hook.getAddress();
-
-        String stringData = "";
-        try {
-            ObjectMapper om = WebAPI.getSerializeService().getDefaultObjectMapper(
-                    hook.getDataType() == WebHook.WebHookDataType.XML,
-                    hook.includeDetails(),
-                    hook.getPermissions()
-            );
-            stringData = om.writeValueAsString(data);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
+    private void notify(List<WebHook> hooks, WebHookType eventType, String source, Object data) {
+        // First check the filters before we do any processing, they need the live data
+        List<WebHook> notifyHooks = new ArrayList<>();
+        for (WebHook hook : hooks) {
+            if (hook.getFilter() == null || hook.getFilter().process(data)) {
+                notifyHooks.add(hook);
+            }
         }
-        if (data != null) {
-            try {
-                stringData = hook.isForm() ? "body=" + URLEncoder.encode(stringData, "UTF-8") : stringData;
-            } catch (Exception e) {
-                e.printStackTrace();
-                WebAPI.sentryCapture(e);
+        List<EventStreamSocket> notifyStreams = new ArrayList<>();
+        for (EventStreamSocket stream : streams) {
+            WebHook hook = stream.getHook();
+            if (stream.subscribes(eventType) && (hook.getFilter() == null || hook.getFilter().process(data))) {
+                notifyStreams.add(stream);
             }
         }
-        final String finalData = stringData;
+        if (notifyHooks.isEmpty() && notifyStreams.isEmpty()) {
+            return;
+        }
 
-        final Logger logger = WebAPI.getLogger();
+        // Capture the data while we're still on the thread that fired the event,
+        // and then serialize it on a worker thread
+        final Object snapshot = createSnapshot(data);
         CompletableFuture.runAsync(() -> {
-            HttpURLConnection connection = null;
-            try {
-                //Create connection
-                URL url = new URL(address);
-                connection = (HttpURLConnection) url.openConnection();
-                connection.setRequestMethod(hook.getMethod());
-                for (WebHookHeader header : hook.getHeaders()) {
-                    connection.setRequestProperty(header.getName(), header.getValue());
-                }
-                connection.setRequestProperty("User-Agent", userAgent);
-                connection.setRequestProperty("X-WebAPI-Version", Constants.VERSION);
-                connection.setRequestProperty("X-WebAPI-Event", eventType.toString());
-                if (source != null) connection.setRequestProperty("X-WebAPI-Source", source);
-                connection.setRequestProperty("accept", "application/json");
-                connection.setRequestProperty("charset", "utf-8");
-                if (finalData != null) {
-                    connection.setRequestProperty("Content-Type", hook.getDataTypeHeader());
-                    connection.setRequestProperty("Content-Length", Integer.toString(finalData.getBytes().length));
-                }
-                connection.setUseCaches(false);
-
-                //Send request
-                if (finalData != null) {
-                    connection.setDoOutput(true);
-
-                    DataOutputStream wr = new DataOutputStream(connection.getOutputStream());
-                    wr.writeBytes(finalData);
-                    wr.close();
-                }
-
-                //Get Response
-                int code = connection.getResponseCode();
-                if (code != 200) {
-                    logger.warn("Hook '" + hook.getAddress() + "' responded with code: " + code);
-                    return;
+            // Hooks with the same format, details & permissions share a mapper,
+            // so the data is only serialized once for each of those groups
+            Map<ObjectMapper, Optional<String>> serialized = new HashMap<>();
+
+            for (WebHook hook : notifyHooks) {
+                ObjectMapper om = WebAPI.getSerializeService().getDefaultObjectMapper(
+                        hook.getDataType() == WebHook.WebHookDataType.XML,
+                        hook.includeDetails(),
+                        hook.getPermissions()
+                );
+                Optional<String> optData = serialize(serialized, om, snapshot, eventType);
+                if (!optData.isPresent()) {
+                    continue;
                 }
 
-                InputStream is = connection.getInputStream();
-                BufferedReader rd = new BufferedReader(new InputStreamReader(is));
-                StringBuilder response = new StringBuilder();
-                String line;
-                while ((line = rd.readLine()) != null) {
-                    response.append(line);
-                    response.append('\r');
+                String stringData = optData.get();
+                if (data != null) {
+                    try {
+                        stringData = hook.isForm() ? "body=" + URLEncoder.encode(stringData, "UTF-8") : stringData;
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                        WebAPI.sentryCapture(e);
+                    }
                 }
-                rd.close();
-
-                String respString = response.toString().trim();
-                if (respString.isEmpty() || respString.equalsIgnoreCase("OK")) return;
-
-                final WebHookResponse resp = new ObjectMapper().readValue(respString, WebHookResponse.class);
-
-                Text msg = resp.getMessage();
-
-                WebAPI.runOnMain(() -> {
-                    for (String target : resp.getTargets()) {
-                        if (target.equalsIgnoreCase("server")) {
-                            Sponge.getServer().getBroadcastChannel().send(msg);
-                            continue;
-                        }
+                sender.send(hook, eventType, source, stringData);
+            }
 
-                        Optional<Player> p = Sponge.getServer().getPlayer(UUID.fromString(target));
-                        if (!p.isPresent())
-                            continue;
+            Map<ObjectMapper, String> messages = new HashMap<>();
+            for (EventStreamSocket stream : notifyStreams) {
+                ObjectMapper om = WebAPI.getSerializeService().getDefaultObjectMapper(
+                        false,
+                        stream.getHook().includeDetails(),
+                        stream.getPermissions(eventType)
+                );
+                String message = messages.get(om);
+                if (message == null) {
+                    Optional<String> optData = serialize(serialized, om, snapshot, eventType);
+                    if (!optData.isPresent()) {
+                        continue;
+                    }
 
-                        p.get().sendMessage(msg);
+                    try {
+                        message = "{\"event\":" + om.writeValueAsString(eventType) +
+                                ",\"source\":" + om.writeValueAsString(source) +
+                                ",\"data\":" + optData.get() + "}";
+                    } catch (JsonProcessingException e) {
+                        WebAPI.getLogger().warn("Could not serialize " + eventType + " event: " + e.getMessage());
+                        WebAPI.sentryCapture(e);
+                        continue;
                     }
-                });
-            } catch (ConnectException e) {
-                logger.warn("Could not connect to hook '" + hook.getAddress() + "': " + e.getMessage());
-            } catch (ProtocolException e) {
-                logger.warn("Unknown protocol for hook '" + hook.getAddress() + "': " + e.getMessage());
-            } catch (MalformedURLException e) {
-                logger.warn("Malformed URL for hook '" + hook.getAddress() + "': " + e.getMessage());
-            } catch (IOException e) {
-                logger.warn("IO Error from hook '" + hook.getAddress() + "': " + e.getMessage());
-            } finally {
-                if (connection != null) {
-                    connection.disconnect();
+                    messages.put(om, message);
                 }
+                stream.send(message);
             }
         }, WebAPI.getAsyncExecutor());
     }
 
+    /**
+     * Serializes the data with the specified mapper, or returns the data that was already serialized with it.
+     * If the data can't be serialized nothing should be sent to the receivers of that mapper, because they would
+     * only get a broken payload.
+     * @param serialized The data that was already serialized, by mapper.
+     * @param om The mapper to serialize the data with.
+     * @param data The data to serialize.
+     * @param eventType The type of event the data belongs to, for logging.
+     * @return An optional containing the serialized data, or empty if the data could not be serialized.
+     */
+    private Optional<String> serialize(Map<ObjectMapper, Optional<String>> serialized, ObjectMapper om, Object data,
+                                       WebHookType eventType) {
+        Optional<String> res = serialized.get(om);
+        if (res == null) {
+            try {
+                res = Optional.of(om.writeValueAsString(data));
+            } catch (JsonProcessingException e) {
+                WebAPI.getLogger().warn("Could not serialize " + eventType + " event: " + e.getMessage());
+                WebAPI.sentryCapture(e);
+                res = Optional.empty();
+            }
+            serialized.put(om, res);
+        }
+        return res;
+    }
+
+    /**
+     * Creates a copy of the data that is safe to serialize from other threads. Live objects are replaced by
+     * their cached versions, events are turned into their {@link EventView}. Other live objects that reference
+     * worlds or entities, such as explosions, are turned into their views.
+     * @param data The data to create a snapshot of.
+     * @return The snapshot of the data.
+     */
+    private Object createSnapshot(Object data) {
+        if (data instanceof Event) {
+            EventView view = new EventView((Event) data);
+            view.getData().replaceAll((key, value) -> createSnapshot(value));
+            return view;
+        }
+        if (data instanceof Map) {
+            Map<Object, Object> res = new LinkedHashMap<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) data).entrySet()) {
+                res.put(entry.getKey(), createSnapshot(entry.getValue()));
+            }
+            return res;
+        }
+        if (data instanceof Collection) {
+            List<Object> res = new ArrayList<>();
+            for (Object obj : (Collection<?>) data) {
+                res.add(createSnapshot(obj));
+            }
+            return res;
+        }
+
+        CacheService cacheService = WebAPI.getCacheService();
+        if (data instanceof User && !(data instanceof Player)) {
+            return cacheService.getPlayer((User) data);
+        }
+        if (data instanceof Entity || data instanceof World || data instanceof Chunk ||
+                data instanceof TileEntity || data instanceof Inventory || data instanceof Location ||
+                data instanceof Transform || data instanceof Cause || data instanceof ItemStack ||
+                data instanceof Advancement || data instanceof CommandMapping || data instanceof PluginContainer) {
+            return cacheService.asCachedObject(data);
+        }
+        if (data instanceof Explosion) {
+            return new ExplosionView((Explosion) data);
+        }
+
+        // Everything else is either immutable or serialized by value
+        return data;
+    }
 
     // Server events
     @Listener(order = Order.POST)
@@ -0,0 +1,132 @@
+package valandur.webapi.hook.stream;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeRequest;
+import org.eclipse.jetty.websocket.servlet.ServletUpgradeResponse;
+import org.eclipse.jetty.websocket.servlet.WebSocketServlet;
+import org.eclipse.jetty.websocket.servlet.WebSocketServletFactory;
+import valandur.webapi.WebAPI;
+import valandur.webapi.hook.WebHook;
+import valandur.webapi.hook.WebHookService;
+import valandur.webapi.hook.WebHookService.WebHookType;
+import valandur.webapi.hook.filter.BaseWebHookFilter;
+import valandur.webapi.security.PermissionStruct;
+import valandur.webapi.security.SecurityService;
+
+import javax.servlet.http.HttpServletResponse;
+import javax.ws.rs.ForbiddenException;
+import javax.ws.rs.HttpMethod;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.util.*;
+
+import static valandur.webapi.security.SecurityService.API_KEY_HEADER;
+
+/**
+ * Accepts WebSocket connections of clients that want to subscribe to events.
+ * The following query parameters are supported:
+ * key: The api key, can also be passed in the X-WEBAPI-KEY header
+ * types: A comma separated list of event types (see {@link WebHookType})
+ * details: Include details of the event data
+ * filter: The name of a web hook filter, with the config passed as a comma separated list in "filterConfig"
+ */
+public class EventStreamServlet extends WebSocketServlet {
+
+    @Override
+    public void configure(WebSocketServletFactory factory) {
+        factory.setCreator(this::createSocket);
+    }
+
+    private Object createSocket(ServletUpgradeRequest req, ServletUpgradeResponse res) {
+        try {
+            SecurityService srv = WebAPI.getSecurityService();
+            WebHookService hookService = WebAPI.getWebHookService();
+
+            String addr = srv.getRealAddr(req.getHttpServletRequest());
+            if (!srv.whitelistContains(addr) || srv.blacklistContains(addr)) {
+                WebAPI.getLogger().warn(addr + " is not allowed to subscribe to events");
+                res.sendForbidden("Not allowed");
+                return null;
+            }
+
+            Map<String, List<String>> params = req.getParameterMap();
+
+            String key = req.getHeader(API_KEY_HEADER);
+            if ((key == null || key.isEmpty()) && params.containsKey("key")) {
+                key = params.get("key").get(0);
+            }
+
+            PermissionStruct permStruct;
+            try {
+                permStruct = key != null && !key.isEmpty() ? srv.getPermissions(key) : srv.getDefaultPermissions();
+            } catch (ForbiddenException e) {
+                res.sendForbidden("Invalid api key");
+                return null;
+            }
+
+            // Check that we are allowed to subscribe to all the requested event types
+            Set<WebHookType> types = new HashSet<>();
+            for (String list : params.getOrDefault("types", Collections.emptyList())) {
+                for (String name : list.split(",")) {
+                    WebHookType type;
+                    try {
+                        type = WebHookType.valueOf(name.trim().toUpperCase());
+                    } catch (IllegalArgumentException e) {
+                        res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown event type " + name);
+                        return null;
+                    }
+
+                    if (!SecurityService.permits(permStruct.getPermissions(),
+                            new String[] { "events", type.name().toLowerCase() })) {
+                        WebAPI.getLogger().warn(addr + " does not have permission to subscribe to " + type);
+                        res.sendForbidden("Not allowed to subscribe to " + type);
+                        return null;
+                    }
+                    types.add(type);
+                }
+            }
+            if (types.isEmpty()) {
+                res.sendError(HttpServletResponse.SC_BAD_REQUEST, "No event types specified");
+                return null;
+            }
+
+            boolean details = params.containsKey("details");
+            WebHook hook = new WebHook(addr, true, HttpMethod.GET, WebHook.WebHookDataType.JSON, false,
+                    new ArrayList<>(), details, permStruct.getPermissions());
+
+            // Setup the filter the same way as for web hooks from the config
+            if (params.containsKey("filter")) {
+                String filterName = params.get("filter").get(0);
+                Optional<Class<? extends BaseWebHookFilter>> opt = hookService.getFilter(filterName);
+                if (!opt.isPresent()) {
+                    res.sendError(HttpServletResponse.SC_BAD_REQUEST, "Unknown filter " + filterName);
+                    return null;
+                }
+
+                ConfigurationNode filterConfig = SimpleConfigurationNode.root();
+                for (String list : params.getOrDefault("filterConfig", Collections.emptyList())) {
+                    for (String value : list.split(",")) {
+                        filterConfig.getAppendedNode().setValue(value.trim());
+                    }
+                }
+
+                try {
+                    Constructor<? extends BaseWebHookFilter> ctor =
+                            opt.get().getConstructor(WebHook.class, ConfigurationNode.class);
+                    hook.setFilter(ctor.newInstance(hook, filterConfig));
+                } catch (ReflectiveOperationException e) {
+                    res.sendError(HttpServletResponse.SC_BAD_REQUEST,
+                            "Could not setup filter '" + filterName + "': " + e.getMessage());
+                    return null;
+                }
+            }
+
+            return new EventStreamSocket(types, hook, permStruct.getPermissions(),
+                    hookService.getStreamBufferSize(), hookService.getStreamOverflowPolicy());
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+    }
+}
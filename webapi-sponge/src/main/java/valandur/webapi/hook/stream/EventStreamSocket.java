@@ -0,0 +1,163 @@
+package valandur.webapi.hook.stream;
+
+import org.eclipse.jetty.websocket.api.Session;
+import org.eclipse.jetty.websocket.api.StatusCode;
+import org.eclipse.jetty.websocket.api.WriteCallback;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketClose;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketConnect;
+import org.eclipse.jetty.websocket.api.annotations.OnWebSocketError;
+import org.eclipse.jetty.websocket.api.annotations.WebSocket;
+import valandur.webapi.WebAPI;
+import valandur.webapi.hook.WebHook;
+import valandur.webapi.hook.WebHookService.WebHookType;
+import valandur.webapi.security.SecurityService;
+import valandur.webapi.util.TreeNode;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A WebSocket connection of a client that subscribed to events. Events are buffered per client and sent
+ * one after another, so that a slow client can't hold up the server or other clients.
+ */
+@WebSocket(maxIdleTime = 24 * 60 * 60 * 1000)
+public class EventStreamSocket {
+
+    /**
+     * Decides what happens when the buffer of a client is full.
+     */
+    public enum OverflowPolicy {
+        DROP, DISCONNECT
+    }
+
+    private final Set<WebHookType> types;
+    private final WebHook hook;
+    private final TreeNode permissions;
+    private final OverflowPolicy overflowPolicy;
+    private final ArrayBlockingQueue<String> buffer;
+    private final AtomicBoolean sending = new AtomicBoolean(false);
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Session session;
+
+    /**
+     * Gets the hook which describes the subscription (details, permissions and filter) of this client.
+     * @return The hook of this client.
+     */
+    public WebHook getHook() {
+        return hook;
+    }
+
+    /**
+     * Gets the amount of events that were dropped because the buffer of this client was full.
+     * @return The amount of dropped events.
+     */
+    public long getDropped() {
+        return dropped.get();
+    }
+
+
+    public EventStreamSocket(Set<WebHookType> types, WebHook hook, TreeNode permissions,
+                             int bufferSize, OverflowPolicy overflowPolicy) {
+        this.types = types;
+        this.hook = hook;
+        this.permissions = permissions;
+        this.overflowPolicy = overflowPolicy;
+        this.buffer = new ArrayBlockingQueue<>(Math.max(1, bufferSize));
+    }
+
+    @OnWebSocketConnect
+    public void onConnect(Session session) {
+        this.session = session;
+        WebAPI.getWebHookService().addStream(this);
+    }
+
+    @OnWebSocketClose
+    public void onClose(int statusCode, String reason) {
+        WebAPI.getWebHookService().removeStream(this);
+    }
+
+    @OnWebSocketError
+    public void onError(Throwable error) {
+        WebAPI.getWebHookService().removeStream(this);
+    }
+
+    /**
+     * Checks if this client subscribed to the specified type of event.
+     * @param type The type of event.
+     * @return True if the client wants to receive this event, false otherwise.
+     */
+    public boolean subscribes(WebHookType type) {
+        return types.contains(type) || types.contains(WebHookType.ALL);
+    }
+
+    /**
+     * Gets the permissions used to serialize the data of the specified type of event.
+     * @param type The type of event.
+     * @return The permissions for the data of the event.
+     */
+    public TreeNode getPermissions(WebHookType type) {
+        return SecurityService.subPermissions(permissions, new String[] { "events", type.name().toLowerCase() });
+    }
+
+    /**
+     * Queues the message to be sent to the client. This never blocks, if the buffer is full the message is either
+     * dropped or the client is disconnected, depending on the overflow policy.
+     * @param message The message to send.
+     */
+    public void send(String message) {
+        Session s = session;
+        if (s == null || !s.isOpen()) {
+            return;
+        }
+
+        while (!buffer.offer(message)) {
+            if (overflowPolicy == OverflowPolicy.DISCONNECT) {
+                s.close(StatusCode.POLICY_VIOLATION, "Client is too slow");
+                WebAPI.getWebHookService().removeStream(this);
+                return;
+            }
+
+            // Drop the oldest message to make room for the new one
+            if (buffer.poll() != null) {
+                dropped.incrementAndGet();
+            }
+        }
+
+        flush();
+    }
+
+    private void flush() {
+        if (!sending.compareAndSet(false, true)) {
+            return;
+        }
+
+        Session s = session;
+        String next = buffer.poll();
+        if (next == null || s == null || !s.isOpen()) {
+            sending.set(false);
+            // Another thread might have added a message after we checked
+            if (next == null && !buffer.isEmpty()) {
+                flush();
+            }
+            return;
+        }
+
+        s.getRemote().sendString(next, new WriteCallback() {
+            @Override
+            public void writeFailed(Throwable x) {
+                sending.set(false);
+                s.close(StatusCode.SERVER_ERROR, x.getMessage());
+                WebAPI.getWebHookService().removeStream(EventStreamSocket.this);
+            }
+
+            @Override
+            public void writeSuccess() {
+                sending.set(false);
+                flush();
+            }
+        });
+    }
+}
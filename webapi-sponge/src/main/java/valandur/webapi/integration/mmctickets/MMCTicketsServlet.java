@@ -2,6 +2,7 @@ package valandur.webapi.integration.mmctickets;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import net.moddedminecraft.mmctickets.Main;
 import net.moddedminecraft.mmctickets.data.TicketData;
 import org.spongepowered.api.Sponge;
@@ -10,12 +11,11 @@ import valandur.webapi.WebAPI;
 import valandur.webapi.serialize.SerializeService;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.Page;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.List;
+import javax.ws.rs.core.Response;
 import java.util.Optional;
 
 @Path("mmc-tickets")
@@ -49,17 +49,20 @@ public class MMCTicketsServlet extends BaseServlet {
     @Permission({ "ticket", "list" })
     @ApiOperation(
             value = "List tickets",
-            notes = "Get a list of all the tickets on the server.")
-    public Collection<CachedTicketData> listTickets() {
+            response = CachedTicketData.class,
+            responseContainer = "List",
+            notes = "Get a list of all the tickets on the server, ordered by id. The tickets are returned in " +
+                    "pages, see the X-Total-Count and X-Next-Cursor headers.")
+    public Response listTickets(
+            @QueryParam("limit") @ApiParam("The maximum amount of tickets on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
         Main plugin = getMMCTicketsPlugin();
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
 
-        return WebAPI.runOnMain(() -> {
-            List<CachedTicketData> tickets = new ArrayList<>();
-            for (TicketData ticket : plugin.getTickets()) {
-                tickets.add(new CachedTicketData(ticket));
-            }
-            return tickets;
-        });
+        return toResponse(WebAPI.runOnMain(() -> Page.of(plugin.getTickets(),
+                (TicketData t) -> String.format("%010d", t.getTicketID()), after, size, CachedTicketData::new)));
     }
 
     @GET
@@ -4,6 +4,7 @@ import br.net.fabiozumbi12.RedProtect.Sponge.RedProtect;
 import br.net.fabiozumbi12.RedProtect.Sponge.Region;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import org.spongepowered.api.Sponge;
 import org.spongepowered.api.event.cause.Cause;
 import org.spongepowered.api.event.cause.EventContext;
@@ -14,6 +15,7 @@ import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.serialize.SerializeService;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.Page;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -40,28 +42,33 @@ public class RedProtectServlet extends BaseServlet {
     @Permission({ "region", "list" })
     @ApiOperation(
             value = "List regions",
-            notes = "Lists all the regions being protected")
-    public Collection<CachedRegion> listRegions(@QueryParam("world") CachedWorld world) {
-        Set<CachedRegion> regions;
-        if (world != null) {
-            regions = WebAPI.runOnMain(() -> {
+            response = CachedRegion.class,
+            responseContainer = "List",
+            notes = "Lists all the regions being protected, ordered by id. The regions are returned in pages, see " +
+                    "the X-Total-Count and X-Next-Cursor headers.")
+    public Response listRegions(
+            @QueryParam("world") @ApiParam("The world to filter the regions by") CachedWorld world,
+            @QueryParam("limit") @ApiParam("The maximum amount of regions on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
+
+        Page<CachedRegion> regions = WebAPI.runOnMain(() -> {
+            Collection<Region> all;
+            if (world != null) {
                 Optional<World> optLive = world.getLive();
                 if (!optLive.isPresent()) {
-                    return null;
+                    throw new InternalServerErrorException("Could not get live world");
                 }
+                all = RedProtect.get().rm.getRegionsByWorld(optLive.get());
+            } else {
+                all = RedProtect.get().rm.getAllRegions();
+            }
+            return Page.of(all, Region::getID, after, size, CachedRegion::new);
+        });
 
-                World live = optLive.get();
-                return RedProtect.get().rm.getRegionsByWorld(live).stream()
-                        .map(CachedRegion::new)
-                        .collect(Collectors.toSet());
-            });
-        } else {
-            regions = WebAPI.runOnMain(() -> RedProtect.get().rm.getAllRegions().stream()
-                    .map(CachedRegion::new)
-                    .collect(Collectors.toSet()));
-        }
-
-        return regions;
+        return toResponse(regions);
     }
 
     @GET
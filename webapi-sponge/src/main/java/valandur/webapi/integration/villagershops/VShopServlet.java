@@ -3,6 +3,7 @@ package valandur.webapi.integration.villagershops;
 import de.dosmike.sponge.vshop.*;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import org.spongepowered.api.entity.EntityType;
 import org.spongepowered.api.text.serializer.TextSerializers;
 import org.spongepowered.api.world.Location;
@@ -12,6 +13,7 @@ import valandur.webapi.integration.villagershops.wrapper.CachedVShop;
 import valandur.webapi.serialize.SerializeService;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.Page;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
@@ -19,7 +21,6 @@ import javax.ws.rs.core.Response;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
-import java.util.stream.Collectors;
 
 @Path("vshop")
 @Api(value = "Create, edit and delete villager shops",
@@ -33,9 +34,18 @@ public class VShopServlet extends BaseServlet {
     @Permission({"vshop", "list"})
     @ApiOperation(
             value = "List Shops",
-            notes = "Return a list of all shops")
-    public Collection<CachedVShop> listShops() {
-        return WebAPI.runOnMain(() -> API.list().stream().map(CachedVShop::new).collect(Collectors.toList()));
+            response = CachedVShop.class,
+            responseContainer = "List",
+            notes = "Return a list of all shops. The shops are returned in pages, see the X-Total-Count and " +
+                    "X-Next-Cursor headers.")
+    public Response listShops(
+            @QueryParam("limit") @ApiParam("The maximum amount of shops on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
+        return toResponse(WebAPI.runOnMain(() -> Page.of(API.list(),
+                (NPCguard npc) -> npc.getIdentifier().toString(), after, size, CachedVShop::new)));
     }
 
     @GET
@@ -0,0 +1,115 @@
+package valandur.webapi.link.internal;
+
+import valandur.webapi.WebAPI;
+
+import javax.servlet.*;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class InternalAsyncContext implements AsyncContext {
+
+    private ServletRequest request;
+    private ServletResponse response;
+    private List<AsyncListener> listeners = new ArrayList<>();
+    private CountDownLatch latch = new CountDownLatch(1);
+    private long timeout;
+
+
+    public InternalAsyncContext(ServletRequest request, ServletResponse response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * Waits until the request has been completed.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return True if the request has completed, false if the timeout elapsed.
+     */
+    public boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        return latch.await(timeout, unit);
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return request;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return response;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return true;
+    }
+
+    @Override
+    public void dispatch() {
+        throw new IllegalStateException("Internal requests cannot be dispatched");
+    }
+
+    @Override
+    public void dispatch(String path) {
+        throw new IllegalStateException("Internal requests cannot be dispatched");
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        throw new IllegalStateException("Internal requests cannot be dispatched");
+    }
+
+    @Override
+    public void complete() {
+        if (latch.getCount() == 0) {
+            return;
+        }
+
+        for (AsyncListener listener : listeners) {
+            try {
+                listener.onComplete(new AsyncEvent(this, request, response));
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        latch.countDown();
+    }
+
+    @Override
+    public void start(Runnable run) {
+        WebAPI.getAsyncExecutor().execute(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener, ServletRequest request, ServletResponse response) {
+        listeners.add(listener);
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz) throws ServletException {
+        try {
+            return clazz.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    @Override
+    public void setTimeout(long timeout) {
+        this.timeout = timeout;
+    }
+
+    @Override
+    public long getTimeout() {
+        return timeout;
+    }
+}
@@ -4,19 +4,20 @@ import org.eclipse.jetty.server.HttpChannelState;
 import org.eclipse.jetty.server.Request;
 import valandur.webapi.link.message.RequestMessage;
 
-import javax.servlet.DispatcherType;
-import javax.servlet.ServletInputStream;
+import javax.servlet.*;
 import javax.ws.rs.core.HttpHeaders;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.Enumeration;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 public class InternalHttpRequest extends Request {
 
     private RequestMessage msg;
     private HttpChannelState state;
     private InternalInputStream stream;
+    private InternalAsyncContext asyncContext;
 
 
     public InternalHttpRequest(RequestMessage msg) {
@@ -81,6 +82,54 @@ public class InternalHttpRequest extends Request {
         return stream;
     }
 
+    @Override
+    public boolean isAsyncSupported() {
+        return true;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return asyncContext != null;
+    }
+
+    @Override
+    public AsyncContext startAsync() throws IllegalStateException {
+        return startAsync(this, null);
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest request, ServletResponse response) throws IllegalStateException {
+        if (asyncContext == null) {
+            asyncContext = new InternalAsyncContext(request, response);
+        }
+        return asyncContext;
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        if (asyncContext == null) {
+            throw new IllegalStateException("Request is not async");
+        }
+        return asyncContext;
+    }
+
+    /**
+     * Waits for the request to complete if it was suspended, otherwise returns immediately.
+     * @param timeout The maximum time to wait.
+     * @param unit The unit of the timeout.
+     * @return True if the request is complete, false if the timeout elapsed.
+     */
+    public boolean awaitAsyncComplete(long timeout, TimeUnit unit) {
+        if (asyncContext == null) {
+            return true;
+        }
+        try {
+            return asyncContext.await(timeout, unit);
+        } catch (InterruptedException e) {
+            return false;
+        }
+    }
+
     @Override
     public String getRequestURI() {
         return msg.getPath();
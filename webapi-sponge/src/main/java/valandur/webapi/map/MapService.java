@@ -0,0 +1,540 @@
+package valandur.webapi.map;
+
+import com.flowpowered.math.vector.Vector3i;
+import org.spongepowered.api.block.BlockSnapshot;
+import org.spongepowered.api.block.BlockType;
+import org.spongepowered.api.data.Transaction;
+import org.spongepowered.api.event.Listener;
+import org.spongepowered.api.event.Order;
+import org.spongepowered.api.event.block.ChangeBlockEvent;
+import org.spongepowered.api.event.world.chunk.LoadChunkEvent;
+import org.spongepowered.api.event.world.chunk.PopulateChunkEvent;
+import org.spongepowered.api.scheduler.Task;
+import org.spongepowered.api.world.Chunk;
+import org.spongepowered.api.world.World;
+import valandur.webapi.WebAPI;
+import valandur.webapi.cache.world.CachedWorld;
+import valandur.webapi.config.BaseConfig;
+import valandur.webapi.config.MapConfig;
+
+import javax.imageio.ImageIO;
+import javax.ws.rs.InternalServerErrorException;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This service renders the tiles of the world maps and caches them on disk. Each tile is only rendered once
+ * at a time, requests for a tile that is being rendered wait for the same render.
+ * Cached tiles are marked as dirty when the world changes, and are rendered again in the background.
+ */
+public class MapService {
+
+    private static final String configFileName = "map.conf";
+
+    public static final int TILE_SIZE = 512;
+    private static final int HALF_TILE_SIZE = TILE_SIZE / 2;
+    private static final int CHUNK_SIZE = 16;
+    private static final int UNKNOWN_COLOR = 0xFFFFFFFF;
+
+    private static int MAX_ZOOM = 4;
+    private static int RENDER_TIMEOUT = 10000;
+    private static int TILE_MAX_AGE = 60;
+
+    // Colors are stored as ARGB, so that they don't have to be parsed for every pixel
+    private Map<String, Integer> biomeColorMap = new ConcurrentHashMap<>();
+    private Map<String, Integer> blockColorMap = new ConcurrentHashMap<>();
+    private Map<MapTile, CompletableFuture<Path>> rendering = new ConcurrentHashMap<>();
+    private ThreadPoolExecutor renderPool;
+    private Set<MapTile> dirtyTiles = ConcurrentHashMap.newKeySet();
+    // Surface tiles that were rendered while some of their chunks weren't loaded
+    private Set<MapTile> incompleteTiles = ConcurrentHashMap.newKeySet();
+    private Task rerenderTask;
+
+
+    public void init() {
+        Path configPath = WebAPI.getConfigPath().resolve(configFileName).normalize();
+        MapConfig config = BaseConfig.load(configPath, new MapConfig());
+
+        config.save(); // Save in case we don't have the default values yet
+
+        biomeColorMap.clear();
+        config.biomeColors.forEach((id, color) -> biomeColorMap.put(id, parseColor(id, color)));
+        blockColorMap.clear();
+        config.blockColors.forEach((id, color) -> blockColorMap.put(id, parseColor(id, color)));
+
+        MAX_ZOOM = config.maxZoom;
+        RENDER_TIMEOUT = config.renderTimeout;
+        TILE_MAX_AGE = config.tileMaxAge;
+
+        // Renders that are already queued are still finished by the old pool
+        if (renderPool != null) {
+            renderPool.shutdown();
+        }
+        AtomicInteger threadNum = new AtomicInteger();
+        int threads = Math.max(1, config.renderThreads);
+        renderPool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.maxQueuedRenders)),
+                r -> {
+                    Thread thread = new Thread(r, "Web-API - Map render " + threadNum.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        renderPool.allowCoreThreadTimeOut(true);
+
+        if (rerenderTask != null) {
+            rerenderTask.cancel();
+            rerenderTask = null;
+        }
+        if (config.rerenderInterval > 0) {
+            rerenderTask = Task.builder()
+                    .execute(this::rerenderDirtyTiles)
+                    .async()
+                    .interval(config.rerenderInterval, TimeUnit.SECONDS)
+                    .name("Web-API - Map update")
+                    .submit(WebAPI.getInstance());
+        }
+    }
+
+    /**
+     * Stops rendering map tiles.
+     */
+    public void stop() {
+        if (rerenderTask != null) {
+            rerenderTask.cancel();
+            rerenderTask = null;
+        }
+        if (renderPool != null) {
+            renderPool.shutdownNow();
+            renderPool = null;
+        }
+    }
+
+    /**
+     * Gets the highest zoom level that can be requested.
+     * @return The maximum zoom level.
+     */
+    public int getMaxZoom() {
+        return MAX_ZOOM;
+    }
+
+    /**
+     * Gets the amount of time a request waits for a tile to be rendered.
+     * @return The time in milliseconds.
+     */
+    public int getRenderTimeout() {
+        return RENDER_TIMEOUT;
+    }
+
+    /**
+     * Gets the amount of time clients may cache a tile without checking if it changed.
+     * @return The time in seconds.
+     */
+    public int getTileMaxAge() {
+        return TILE_MAX_AGE;
+    }
+
+    /**
+     * Gets the path of the file where a tile is cached.
+     * @param tile The tile.
+     * @return The path of the cached tile, which might not exist yet.
+     */
+    public Path getTilePath(MapTile tile) {
+        String fileName = "tile-x" + tile.getX() + "z" + tile.getZ() + ".png";
+        Path layerPath = Paths.get("webapi/cache/" + tile.getWorld());
+        if (tile.getLayer() != MapTile.Layer.BIOME) {
+            layerPath = layerPath.resolve(tile.getLayer().name().toLowerCase());
+        }
+        if (tile.getZoom() == 0) {
+            return layerPath.resolve(fileName);
+        }
+        return layerPath.resolve("zoom" + tile.getZoom()).resolve(fileName);
+    }
+
+    /**
+     * Gets a tile, rendering it if it isn't cached yet. Tiles of higher zoom levels are created from the tiles
+     * below them, which are rendered first if needed. If the tile is already being rendered, the returned
+     * future completes when that render is done.
+     * @param world The world of the tile.
+     * @param tile The tile to get.
+     * @return A future which completes with the path of the cached tile. The future completes exceptionally
+     * with a {@link RejectedExecutionException} if too many tiles are being rendered.
+     */
+    public CompletableFuture<Path> requestTile(CachedWorld world, MapTile tile) {
+        Path path = getTilePath(tile);
+        if (Files.exists(path)) {
+            return CompletableFuture.completedFuture(path);
+        }
+        return renderTile(world, tile);
+    }
+
+    /**
+     * Renders a tile, even if it is already cached. Tiles of lower zoom levels are only rendered if they aren't
+     * cached yet.
+     */
+    private CompletableFuture<Path> renderTile(CachedWorld world, MapTile tile) {
+        CompletableFuture<Path> future = new CompletableFuture<>();
+        CompletableFuture<Path> existing = rendering.putIfAbsent(tile, future);
+        if (existing != null) {
+            return existing;
+        }
+
+        try {
+            if (tile.getZoom() == 0) {
+                if (tile.getLayer() == MapTile.Layer.SURFACE) {
+                    renderPool.execute(() -> render(tile, future, () -> renderSurfaceTile(world, tile)));
+                } else {
+                    renderPool.execute(() -> render(tile, future, () -> renderBiomeTile(world, tile)));
+                }
+            } else {
+                CompletableFuture<?>[] children = new CompletableFuture[4];
+                for (int i = 0; i < 4; i++) {
+                    children[i] = requestTile(world, tile.getChild(i % 2, i / 2));
+                }
+                CompletableFuture.allOf(children).whenComplete((res, err) -> {
+                    if (err != null) {
+                        fail(tile, future, err);
+                        return;
+                    }
+                    try {
+                        renderPool.execute(() -> render(tile, future, () -> composeTile(tile)));
+                    } catch (RejectedExecutionException e) {
+                        fail(tile, future, e);
+                    }
+                });
+            }
+        } catch (RejectedExecutionException e) {
+            fail(tile, future, e);
+        }
+        return future;
+    }
+
+    /**
+     * Marks the tile of zoom level 0 that contains the block position as dirty.
+     * @param layer The layer of the tile.
+     * @param world The uuid of the world.
+     * @param x The x-coordinate of the block.
+     * @param z The z-coordinate of the block.
+     */
+    public void markDirty(MapTile.Layer layer, UUID world, int x, int z) {
+        dirtyTiles.add(new MapTile(world, layer, 0,
+                Math.floorDiv(x + HALF_TILE_SIZE, TILE_SIZE), Math.floorDiv(z + HALF_TILE_SIZE, TILE_SIZE)));
+    }
+
+    /**
+     * Renders the dirty tiles that are cached again. Tiles that aren't cached are dropped, because they are
+     * rendered when they are requested. When a tile was rendered, the tile containing it on the next zoom level
+     * becomes dirty, so changes move up the zoom levels one step per run.
+     * To leave room for tile requests, this only fills up half of the render queue, the other dirty tiles
+     * are rendered on the next run. Dirty tiles that are already being rendered are also kept for the next run.
+     */
+    private void rerenderDirtyTiles() {
+        if (dirtyTiles.isEmpty() || renderPool == null) {
+            return;
+        }
+
+        List<MapTile> tiles = new ArrayList<>(dirtyTiles);
+        dirtyTiles.removeAll(tiles);
+        tiles.sort(Comparator.comparingInt(MapTile::getZoom));
+
+        for (MapTile tile : tiles) {
+            if (!Files.exists(getTilePath(tile))) {
+                continue;
+            }
+
+            Optional<CachedWorld> world = WebAPI.getCacheService().getWorld(tile.getWorld());
+            if (!world.isPresent()) {
+                continue;
+            }
+
+            // A render that is already running might have read the world before the change,
+            // so the tile is rendered again on the next run instead of waiting for that render
+            if (rendering.containsKey(tile)) {
+                dirtyTiles.add(tile);
+                continue;
+            }
+
+            BlockingQueue<Runnable> queue = renderPool.getQueue();
+            if (queue.remainingCapacity() <= queue.size()) {
+                dirtyTiles.add(tile);
+                continue;
+            }
+
+            renderTile(world.get(), tile).whenComplete((path, err) -> {
+                if (err instanceof RejectedExecutionException) {
+                    dirtyTiles.add(tile);
+                } else if (err != null) {
+                    WebAPI.getLogger().warn("Could not update map tile " + tile + ": " + err.getMessage());
+                } else if (tile.getZoom() < MAX_ZOOM) {
+                    dirtyTiles.add(tile.getParent());
+                }
+            });
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onChangeBlock(ChangeBlockEvent.Post event) {
+        for (Transaction<BlockSnapshot> transaction : event.getTransactions()) {
+            if (!transaction.isValid()) {
+                continue;
+            }
+            BlockSnapshot snapshot = transaction.getFinal();
+            Vector3i pos = snapshot.getPosition();
+            // Changing blocks doesn't change the biomes
+            markDirty(MapTile.Layer.SURFACE, snapshot.getWorldUniqueId(), pos.getX(), pos.getZ());
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onPopulateChunk(PopulateChunkEvent.Post event) {
+        Chunk chunk = event.getTargetChunk();
+        Vector3i pos = chunk.getBlockMin();
+        for (MapTile.Layer layer : MapTile.Layer.values()) {
+            markDirty(layer, chunk.getWorld().getUniqueId(), pos.getX(), pos.getZ());
+        }
+    }
+
+    @Listener(order = Order.POST)
+    public void onLoadChunk(LoadChunkEvent event) {
+        Chunk chunk = event.getTargetChunk();
+        Vector3i pos = chunk.getBlockMin();
+        MapTile tile = new MapTile(chunk.getWorld().getUniqueId(), MapTile.Layer.SURFACE, 0,
+                Math.floorDiv(pos.getX() + HALF_TILE_SIZE, TILE_SIZE),
+                Math.floorDiv(pos.getZ() + HALF_TILE_SIZE, TILE_SIZE));
+        if (incompleteTiles.remove(tile)) {
+            dirtyTiles.add(tile);
+        }
+    }
+
+    private void render(MapTile tile, CompletableFuture<Path> future, Callable<BufferedImage> renderer) {
+        try {
+            Path path = getTilePath(tile);
+            writeTile(path, renderer.call());
+            rendering.remove(tile, future);
+            future.complete(path);
+        } catch (Exception e) {
+            fail(tile, future, e);
+        }
+    }
+
+    private void fail(MapTile tile, CompletableFuture<Path> future, Throwable error) {
+        rendering.remove(tile, future);
+        future.completeExceptionally(error instanceof CompletionException && error.getCause() != null ?
+                error.getCause() : error);
+    }
+
+    private void writeTile(Path path, BufferedImage img) throws IOException {
+        // Write to a temporary file first, so that nobody reads a partial tile
+        Files.createDirectories(path.getParent());
+        Path tmpPath = Files.createTempFile(path.getParent(), "tile", ".tmp");
+        try {
+            ImageIO.write(img, "PNG", tmpPath.toFile());
+            Files.move(tmpPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmpPath);
+        }
+    }
+
+    private BufferedImage renderBiomeTile(CachedWorld world, MapTile tile) {
+        int bX = TILE_SIZE * tile.getX();
+        int bZ = TILE_SIZE * tile.getZ();
+        Vector3i min = new Vector3i(bX - HALF_TILE_SIZE, 0, bZ - HALF_TILE_SIZE);
+        Vector3i max = new Vector3i(bX + HALF_TILE_SIZE, 0, bZ + HALF_TILE_SIZE);
+
+        String[][] biomes = WebAPI.getBlockService().getBiomes(world, min, max);
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+
+        for (int i = 0; i < biomes.length; i++) {
+            for (int j = 0; j < biomes[i].length; j++) {
+                int color = getBiomeColor(biomes[i][j]);
+
+                // Each biome sample covers 4x4 pixels, with the z-axis pointing up
+                for (int y = Math.max(0, TILE_SIZE - j * 4); y < Math.min(TILE_SIZE, TILE_SIZE - j * 4 + 4); y++) {
+                    for (int x = i * 4; x < Math.min(TILE_SIZE, i * 4 + 4); x++) {
+                        pixels[y * TILE_SIZE + x] = color;
+                    }
+                }
+            }
+        }
+
+        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(0, 0, TILE_SIZE, TILE_SIZE, pixels, 0, TILE_SIZE);
+        return img;
+    }
+
+    private int getBiomeColor(String biome) {
+        Integer color = biomeColorMap.get(biome);
+
+        if (color == null)
+            color = biomeColorMap.get(biome.replace("mutated_", ""));
+
+        if (color == null) {
+            WebAPI.getLogger().info("No color for biome: " + biome + ". You can set one in the map.conf file");
+
+            color = UNKNOWN_COLOR;
+            biomeColorMap.put(biome, color);
+        }
+
+        return color;
+    }
+
+    /**
+     * Renders the top block of each column, shaded by the height difference to the block north of it.
+     * The main thread only reads the height map and the top block of each column, one row of chunks at a time,
+     * the colors are computed on the render thread. Only chunks that are already loaded are read, so that
+     * rendering never loads chunks from disk on the main thread. Chunks that aren't loaded stay transparent,
+     * and the tile is rendered again once one of them is loaded.
+     */
+    private BufferedImage renderSurfaceTile(CachedWorld world, MapTile tile) {
+        int minX = TILE_SIZE * tile.getX() - HALF_TILE_SIZE;
+        int minZ = TILE_SIZE * tile.getZ() - HALF_TILE_SIZE;
+        int[] heights = new int[TILE_SIZE * TILE_SIZE];
+        BlockType[] types = new BlockType[TILE_SIZE * TILE_SIZE];
+        AtomicBoolean complete = new AtomicBoolean(true);
+
+        for (int row = 0; row < TILE_SIZE; row += CHUNK_SIZE) {
+            int rowZ = row;
+            WebAPI.runOnMain(() -> {
+                Optional<World> optWorld = world.getLive();
+                if (!optWorld.isPresent())
+                    throw new InternalServerErrorException("Could not get live world");
+
+                World w = optWorld.get();
+                for (int col = 0; col < TILE_SIZE; col += CHUNK_SIZE) {
+                    Optional<Chunk> chunk = w.getChunk(
+                            Math.floorDiv(minX + col, CHUNK_SIZE), 0, Math.floorDiv(minZ + rowZ, CHUNK_SIZE));
+                    if (!chunk.isPresent()) {
+                        complete.set(false);
+                        continue;
+                    }
+
+                    Chunk c = chunk.get();
+                    for (int z = 0; z < CHUNK_SIZE; z++) {
+                        for (int x = 0; x < CHUNK_SIZE; x++) {
+                            int bx = minX + col + x;
+                            int bz = minZ + rowZ + z;
+                            int y = c.getHighestYAt(bx, bz);
+                            int i = (rowZ + z) * TILE_SIZE + col + x;
+                            heights[i] = y;
+                            types[i] = y > 0 ? c.getBlockType(bx, y - 1, bz) : null;
+                        }
+                    }
+                }
+                return null;
+            });
+        }
+
+        if (complete.get()) {
+            incompleteTiles.remove(tile);
+        } else {
+            incompleteTiles.add(tile);
+        }
+
+        Map<BlockType, Integer> colors = new IdentityHashMap<>();
+        int[] pixels = new int[TILE_SIZE * TILE_SIZE];
+        for (int z = 0; z < TILE_SIZE; z++) {
+            for (int x = 0; x < TILE_SIZE; x++) {
+                int i = z * TILE_SIZE + x;
+                BlockType type = types[i];
+                if (type == null)
+                    continue;
+
+                int color = colors.computeIfAbsent(type, this::getBlockColor);
+                int north = z > 0 && types[i - TILE_SIZE] != null ? heights[i - TILE_SIZE] : heights[i];
+                pixels[(TILE_SIZE - 1 - z) * TILE_SIZE + x] = shade(color, heights[i] - north);
+            }
+        }
+
+        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        img.setRGB(0, 0, TILE_SIZE, TILE_SIZE, pixels, 0, TILE_SIZE);
+        return img;
+    }
+
+    private int getBlockColor(BlockType type) {
+        Integer color = blockColorMap.get(type.getId());
+
+        if (color == null) {
+            WebAPI.getLogger().info("No color for block: " + type.getId() + ". You can set one in the map.conf file");
+
+            color = UNKNOWN_COLOR;
+            blockColorMap.put(type.getId(), color);
+        }
+
+        return color;
+    }
+
+    /**
+     * Makes a color brighter if the block is higher than its neighbour, and darker if it is lower.
+     */
+    private static int shade(int color, int heightDiff) {
+        if (heightDiff == 0) {
+            return color;
+        }
+
+        int factor = heightDiff > 0 ? 115 : 80;
+        int res = color & 0xFF000000;
+        for (int shift = 0; shift < 24; shift += 8) {
+            int value = ((color >>> shift) & 0xFF) * factor / 100;
+            res |= Math.min(255, value) << shift;
+        }
+        return res;
+    }
+
+    private static int parseColor(String id, String hexColor) {
+        try {
+            return 0xFF000000 | Integer.parseInt(hexColor, 16);
+        } catch (NumberFormatException e) {
+            WebAPI.getLogger().warn("Invalid color " + hexColor + " for " + id + " in the map.conf file");
+            return UNKNOWN_COLOR;
+        }
+    }
+
+    /**
+     * Creates a tile from the four tiles of the next lower zoom level, by averaging each 2x2 block of pixels.
+     * The tiles are drawn with the z-axis pointing up, like the tiles of zoom level 0.
+     */
+    private BufferedImage composeTile(MapTile tile) throws IOException {
+        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
+        int[] dst = new int[HALF_TILE_SIZE * HALF_TILE_SIZE];
+
+        for (int dx = 0; dx < 2; dx++) {
+            for (int dz = 0; dz < 2; dz++) {
+                BufferedImage child = ImageIO.read(getTilePath(tile.getChild(dx, dz)).toFile());
+                if (child == null || child.getWidth() != TILE_SIZE || child.getHeight() != TILE_SIZE) {
+                    throw new IOException("Invalid tile " + tile.getChild(dx, dz));
+                }
+
+                int[] src = child.getRGB(0, 0, TILE_SIZE, TILE_SIZE, null, 0, TILE_SIZE);
+                for (int y = 0; y < HALF_TILE_SIZE; y++) {
+                    int row = 2 * y * TILE_SIZE;
+                    for (int x = 0; x < HALF_TILE_SIZE; x++) {
+                        int i = row + 2 * x;
+                        dst[y * HALF_TILE_SIZE + x] =
+                                average(src[i], src[i + 1], src[i + TILE_SIZE], src[i + TILE_SIZE + 1]);
+                    }
+                }
+                img.setRGB(dx * HALF_TILE_SIZE, (1 - dz) * HALF_TILE_SIZE, HALF_TILE_SIZE, HALF_TILE_SIZE,
+                        dst, 0, HALF_TILE_SIZE);
+            }
+        }
+
+        return img;
+    }
+
+    private static int average(int a, int b, int c, int d) {
+        int res = 0;
+        for (int shift = 0; shift < 32; shift += 8) {
+            int sum = ((a >>> shift) & 0xFF) + ((b >>> shift) & 0xFF) +
+                    ((c >>> shift) & 0xFF) + ((d >>> shift) & 0xFF);
+            res |= (sum >> 2) << shift;
+        }
+        return res;
+    }
+}
@@ -0,0 +1,89 @@
+package valandur.webapi.map;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Identifies a tile of the map of a world. Tiles at zoom level 0 are rendered from the world, the tiles at each
+ * higher zoom level are made up of 2x2 tiles of the level below, downsampled to the same size.
+ */
+public class MapTile {
+
+    /**
+     * What a map tile shows.
+     */
+    public enum Layer {
+        BIOME, SURFACE
+    }
+
+    private final UUID world;
+    private final Layer layer;
+    private final int zoom;
+    private final int x;
+    private final int z;
+
+
+    public MapTile(UUID world, Layer layer, int zoom, int x, int z) {
+        this.world = world;
+        this.layer = layer;
+        this.zoom = zoom;
+        this.x = x;
+        this.z = z;
+    }
+
+    public UUID getWorld() {
+        return world;
+    }
+
+    public Layer getLayer() {
+        return layer;
+    }
+
+    public int getZoom() {
+        return zoom;
+    }
+
+    public int getX() {
+        return x;
+    }
+
+    public int getZ() {
+        return z;
+    }
+
+    /**
+     * Gets one of the four tiles of the next lower zoom level that make up this tile.
+     * @param dx 0 for the western half of this tile, 1 for the eastern half.
+     * @param dz 0 for the northern half of this tile, 1 for the southern half.
+     * @return The tile of the lower zoom level.
+     */
+    public MapTile getChild(int dx, int dz) {
+        return new MapTile(world, layer, zoom - 1, 2 * x + dx, 2 * z + dz);
+    }
+
+    /**
+     * Gets the tile of the next higher zoom level that contains this tile.
+     * @return The tile of the higher zoom level.
+     */
+    public MapTile getParent() {
+        return new MapTile(world, layer, zoom + 1, Math.floorDiv(x, 2), Math.floorDiv(z, 2));
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        MapTile tile = (MapTile) o;
+        return zoom == tile.zoom && x == tile.x && z == tile.z && world.equals(tile.world) && layer == tile.layer;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(world, layer, zoom, x, z);
+    }
+
+    @Override
+    public String toString() {
+        return world + "/" + layer + "/" + zoom + "/" + x + "/" + z;
+    }
+}
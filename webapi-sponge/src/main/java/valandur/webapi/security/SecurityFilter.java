@@ -50,7 +50,7 @@ public class SecurityFilter implements ContainerRequestFilter {
 
     @Override
     public void filter(ContainerRequestContext context) {
-        String addr = getRealAddr(request);
+        String addr = srv.getRealAddr(request);
         String target = context.getUriInfo().getPath();
 
         request.setAttribute("ip", addr);
@@ -58,6 +58,7 @@ public class SecurityFilter implements ContainerRequestFilter {
         response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_ORIGIN, ACCESS_CONTROL_ORIGIN);
         response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_METHODS, ACCESS_CONTROL_METHODS);
         response.setHeader(HttpHeaders.ACCESS_CONTROL_ALLOW_HEADERS, ACCESS_CONTROL_HEADERS);
+        response.setHeader(HttpHeaders.ACCESS_CONTROL_EXPOSE_HEADERS, ACCESS_CONTROL_EXPOSE_HEADERS);
 
         // Exit early on options requests
         if (HttpMethod.OPTIONS.asString().equalsIgnoreCase(context.getMethod())) {
@@ -152,38 +153,4 @@ public class SecurityFilter implements ContainerRequestFilter {
                 securityContext.setEndpointPerms(methodPerms);
         }
     }
-
-    private String getRealAddr(HttpServletRequest request) {
-        final String addr = request.getRemoteAddr();
-        String forwardedFor = request.getHeader(HttpHeaders.X_FORWARDED_FOR);
-        if (forwardedFor == null)
-            return addr;
-
-        // First check the actual IP that we got. If that is not a trusted proxy we're done.
-        if (!srv.containsProxyIP(addr)) {
-            WebAPI.getLogger().warn(addr + " sent " + HttpHeaders.X_FORWARDED_FOR +
-                    " header, but is not a proxy. Header will be ignored!");
-            return addr;
-        }
-
-        String[] ips = forwardedFor.split(",");
-
-        // Traverse the X-Forwarded-For header backwards and take the first IP that we don't trust.
-        for (int i = ips.length - 1; i >= 0; i--) {
-            String ip = ips[i].trim();
-            if (srv.containsProxyIP(ip)) {
-                continue;
-            }
-
-            if (i > 0) {
-                WebAPI.getLogger().warn(ips[i].trim() + " sent " + HttpHeaders.X_FORWARDED_FOR +
-                        " header, but is not a proxy. Header will be ignored!");
-            }
-            return ips[i];
-        }
-
-        // We usually shouldn't get here, but if we don't it means we trusted all proxy ips, so just
-        // return the last one of those.
-        return ips[ips.length - 1];
-    }
 }
@@ -1,5 +1,6 @@
 package valandur.webapi.security;
 
+import com.google.common.net.HttpHeaders;
 import ninja.leaping.configurate.ConfigurationNode;
 import org.slf4j.Logger;
 import valandur.webapi.WebAPI;
@@ -9,6 +10,7 @@ import valandur.webapi.user.UserPermissionStruct;
 import valandur.webapi.util.CIDRAddress;
 import valandur.webapi.util.TreeNode;
 
+import javax.servlet.http.HttpServletRequest;
 import javax.ws.rs.ForbiddenException;
 import java.net.UnknownHostException;
 import java.util.*;
@@ -25,6 +27,7 @@ public class SecurityService {
     public static String ACCESS_CONTROL_ORIGIN = "*";
     public static final String ACCESS_CONTROL_METHODS = "GET,PUT,POST,DELETE,OPTIONS";
     public static final String ACCESS_CONTROL_HEADERS = "origin, content-type, x-webapi-key";
+    public static final String ACCESS_CONTROL_EXPOSE_HEADERS = "x-total-count, x-next-cursor";
 
     private Set<String> allowedProxyIps = new HashSet<>();
     private Set<CIDRAddress> allowedProxyCidrs = new HashSet<>();
@@ -128,6 +131,46 @@ public class SecurityService {
         });
     }
 
+    /**
+     * Gets the address of the client that sent the request, taking the X-Forwarded-For header of
+     * trusted proxies into account.
+     * @param request The request for which to get the client address.
+     * @return The address of the client.
+     */
+    public String getRealAddr(HttpServletRequest request) {
+        final String addr = request.getRemoteAddr();
+        String forwardedFor = request.getHeader(HttpHeaders.X_FORWARDED_FOR);
+        if (forwardedFor == null)
+            return addr;
+
+        // First check the actual IP that we got. If that is not a trusted proxy we're done.
+        if (!containsProxyIP(addr)) {
+            WebAPI.getLogger().warn(addr + " sent " + HttpHeaders.X_FORWARDED_FOR +
+                    " header, but is not a proxy. Header will be ignored!");
+            return addr;
+        }
+
+        String[] ips = forwardedFor.split(",");
+
+        // Traverse the X-Forwarded-For header backwards and take the first IP that we don't trust.
+        for (int i = ips.length - 1; i >= 0; i--) {
+            String ip = ips[i].trim();
+            if (containsProxyIP(ip)) {
+                continue;
+            }
+
+            if (i > 0) {
+                WebAPI.getLogger().warn(ips[i].trim() + " sent " + HttpHeaders.X_FORWARDED_FOR +
+                        " header, but is not a proxy. Header will be ignored!");
+            }
+            return ips[i];
+        }
+
+        // We usually shouldn't get here, but if we don't it means we trusted all proxy ips, so just
+        // return the last one of those.
+        return ips[ips.length - 1];
+    }
+
     public void addTempKey(String key, UserPermissionStruct user) {
         if (!tempUsersKeyMap.containsKey(user.getName())) {
             tempUsersKeyMap.put(user.getName(), new ArrayList<>());
@@ -4,26 +4,29 @@ import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.SerializerProvider;
 import com.fasterxml.jackson.databind.ser.PropertyWriter;
 import com.fasterxml.jackson.databind.ser.impl.SimpleBeanPropertyFilter;
-import valandur.webapi.WebAPI;
 import valandur.webapi.security.SecurityService;
 import valandur.webapi.util.TreeNode;
 
 import java.util.ArrayList;
 
+/**
+ * The base filter decides which properties of an object are serialized, depending on the "details" flag and the
+ * permissions of the current request. The filter itself is immutable and may be shared by all requests using the
+ * same mapper, all the state of one serialization call is kept in the attributes of the {@link SerializerProvider}.
+ */
 public class BaseFilter extends SimpleBeanPropertyFilter {
 
     public static String ID = "WEBAPI-BASE-FILTER";
 
-    private SecurityService permissionService;
-    private TreeNode perms;
-    private ArrayList<String> path;
-    private boolean details;
+    private static final String ATTR_PATH = "WEBAPI-FILTER-PATH";
+    private static final String ATTR_DETAILS = "WEBAPI-FILTER-DETAILS";
+
+    private final TreeNode perms;
+    private final boolean details;
 
 
     public BaseFilter(boolean details, TreeNode perms) {
-        this.permissionService = WebAPI.getSecurityService();
         this.details = details;
-        this.path = new ArrayList<>();
         this.perms = perms;
     }
 
@@ -31,18 +34,26 @@ public class BaseFilter extends SimpleBeanPropertyFilter {
     public void serializeAsField(Object pojo, JsonGenerator jgen, SerializerProvider provider, PropertyWriter writer)
             throws Exception {
         String key = writer.getName();
-        boolean prevDetails = details;
+
+        // Get the state for this serialization call (attributes are per call, so this is thread safe)
+        ArrayList<String> path = (ArrayList<String>)provider.getAttribute(ATTR_PATH);
+        if (path == null) {
+            path = new ArrayList<>();
+            provider.setAttribute(ATTR_PATH, path);
+        }
+        Boolean currDetails = (Boolean)provider.getAttribute(ATTR_DETAILS);
+        boolean prevDetails = currDetails != null ? currDetails : details;
 
         // Check if we have to skip the field because it is marked as "details" and details is set to false
         // or if we have to turn details off temporarily in case the field is marked as "simple"
         JsonDetails det = writer.getAnnotation(JsonDetails.class);
         if (det != null) {
-            if (!details && det.value()) {
+            if (!prevDetails && det.value()) {
                 return;
             }
 
             if (det.simple()) {
-                details = false;
+                provider.setAttribute(ATTR_DETAILS, false);
             }
         }
 
@@ -51,12 +62,12 @@ public class BaseFilter extends SimpleBeanPropertyFilter {
 
         // Check if the permission service allows access to our path
         // If yes then we want to serialize the rest of our object
-        if (permissionService.permits(perms, path)) {
+        if (SecurityService.permits(perms, path)) {
             super.serializeAsField(pojo, jgen, provider, writer);
         }
 
         // Reset path and details after our object is done
-        path.remove(key);
-        details = prevDetails;
+        path.remove(path.size() - 1);
+        provider.setAttribute(ATTR_DETAILS, prevDetails);
     }
 }
@@ -0,0 +1,90 @@
+package valandur.webapi.serialize;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.hash.Hashing;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.ws.rs.HttpMethod;
+import javax.ws.rs.container.ContainerRequestContext;
+import javax.ws.rs.container.ContainerResponseContext;
+import javax.ws.rs.container.ContainerResponseFilter;
+import javax.ws.rs.core.Context;
+import javax.ws.rs.core.HttpHeaders;
+import javax.ws.rs.core.MediaType;
+import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+
+/**
+ * Adds an ETag header to all successful GET responses that are serialized by the Web-API, and answers with
+ * "304 Not Modified" (without a body) if the client already has the current version.
+ * The body is serialized here, so that it can be hashed, and then passed on as raw bytes. For responses made
+ * up of cached objects the serialized body is usually taken from the response cache.
+ */
+public class ETagFilter implements ContainerResponseFilter {
+
+    @Context
+    private HttpServletRequest request;
+
+
+    @Override
+    public void filter(ContainerRequestContext requestContext, ContainerResponseContext responseContext)
+            throws IOException {
+        if (!HttpMethod.GET.equalsIgnoreCase(requestContext.getMethod()) ||
+                responseContext.getStatus() != Response.Status.OK.getStatusCode() ||
+                responseContext.getHeaders().containsKey(HttpHeaders.ETAG)) {
+            return;
+        }
+
+        Object value = responseContext.getEntity();
+        if (value == null || value instanceof byte[] || value instanceof String || value instanceof File ||
+                value instanceof InputStream || value instanceof Reader || value instanceof StreamingOutput) {
+            return;
+        }
+
+        MediaType mediaType = responseContext.getMediaType();
+        boolean xml = SerializationProvider.isXml(request, mediaType);
+        if (!xml && mediaType != null && !MediaType.APPLICATION_JSON_TYPE.isCompatible(mediaType)) {
+            return;
+        }
+
+        ObjectMapper mapper = SerializationProvider.getMapper(request, xml);
+        byte[] body = SerializationProvider.encode(
+                mapper, value, responseContext.getEntityClass(), responseContext.getEntityType());
+
+        String etag = "\"" + Hashing.murmur3_128().hashBytes(body).toString() + "\"";
+        responseContext.getHeaders().putSingle(HttpHeaders.ETAG, etag);
+
+        if (matches(requestContext.getHeaderString(HttpHeaders.IF_NONE_MATCH), etag)) {
+            responseContext.setStatus(Response.Status.NOT_MODIFIED.getStatusCode());
+            responseContext.setEntity(null);
+            return;
+        }
+
+        // Pass on the already serialized body, so that we don't have to serialize it again
+        String contentType = SerializationProvider.getContentTypeOverride(request);
+        if (contentType != null) {
+            mediaType = MediaType.valueOf(contentType);
+        }
+        responseContext.setEntity(body, responseContext.getEntityAnnotations(), mediaType);
+    }
+
+    private boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/")) {
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -10,6 +10,7 @@ public class SerializationFeature implements Feature {
     @Override
     public boolean configure(FeatureContext context) {
         context.register(SerializationProvider.class, MessageBodyReader.class, MessageBodyWriter.class);
+        context.register(ETagFilter.class);
         return true;
     }
 }
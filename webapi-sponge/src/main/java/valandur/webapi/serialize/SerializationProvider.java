@@ -1,13 +1,17 @@
 package valandur.webapi.serialize;
 
+import com.fasterxml.jackson.databind.JavaType;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.SerializationFeature;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.type.TypeFactory;
 import com.fasterxml.jackson.dataformat.xml.XmlMapper;
 import com.fasterxml.jackson.jaxrs.cfg.JaxRSFeature;
 import com.fasterxml.jackson.jaxrs.json.JacksonJsonProvider;
 import com.fasterxml.jackson.jaxrs.json.JsonEndpointConfig;
 import org.eclipse.jetty.io.EofException;
 import valandur.webapi.WebAPI;
+import valandur.webapi.cache.CachedObject;
+import valandur.webapi.cache.ResponseCache;
 import valandur.webapi.security.SecurityContext;
 import valandur.webapi.security.SecurityService;
 import valandur.webapi.util.TreeNode;
@@ -26,6 +30,7 @@ import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.annotation.Annotation;
 import java.lang.reflect.Type;
+import java.util.List;
 import java.util.Map;
 
 @Provider
@@ -60,28 +65,15 @@ public class SerializationProvider extends JacksonJsonProvider {
 
         // If the mapper was changed with a query parameter, we have to update
         // the content type header to reflect that
-        Map<String, String> queryParams = Util.getQueryParams(request);
-        if (queryParams.containsKey("accept")) {
-            String acc = queryParams.get("accept");
-            if (acc.equalsIgnoreCase("json")) {
-                httpHeaders.putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON);
-            }
-            if (acc.equalsIgnoreCase("xml")) {
-                httpHeaders.putSingle(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_XML);
-            }
+        String contentType = getContentTypeOverride(request);
+        if (contentType != null) {
+            httpHeaders.putSingle(HttpHeaders.CONTENT_TYPE, contentType);
         }
     }
 
     @Override
     public ObjectMapper locateMapper(Class<?> type, MediaType mediaType) {
-        Map<String, String> queryParams = Util.getQueryParams(request);
-        boolean xml = MediaType.APPLICATION_XML_TYPE.isCompatible(mediaType);
-        // Allow override the media type with a header (for better browser debugging)
-        if (queryParams.containsKey("accept")) {
-            String acc = queryParams.get("accept");
-            if (acc.equalsIgnoreCase("json")) xml = false;
-            if (acc.equalsIgnoreCase("xml")) xml = true;
-        }
+        boolean xml = isXml(request, mediaType);
 
         // If we're serializing an error return a normal XML/Object mapper, just in case the error
         // happened while creating the mapper, so that we don't get an infinite recursion
@@ -89,6 +81,53 @@ public class SerializationProvider extends JacksonJsonProvider {
             return xml ? new XmlMapper() : new ObjectMapper();
         }
 
+        return getMapper(request, xml);
+    }
+
+    /**
+     * Gets the content type that was requested with the "accept" query parameter.
+     * @param request The request.
+     * @return The requested content type, or null if the content type was not changed.
+     */
+    static String getContentTypeOverride(HttpServletRequest request) {
+        String acc = Util.getQueryParams(request).get("accept");
+        if (acc == null) {
+            return null;
+        }
+        if (acc.equalsIgnoreCase("json")) {
+            return MediaType.APPLICATION_JSON;
+        }
+        if (acc.equalsIgnoreCase("xml")) {
+            return MediaType.APPLICATION_XML;
+        }
+        return null;
+    }
+
+    /**
+     * Checks if the response to the request should be XML.
+     * @param request The request.
+     * @param mediaType The media type of the response.
+     * @return True if the response should be serialized as XML, false for JSON.
+     */
+    static boolean isXml(HttpServletRequest request, MediaType mediaType) {
+        // Allow override the media type with a query parameter (for better browser debugging)
+        String contentType = getContentTypeOverride(request);
+        if (contentType != null) {
+            return contentType.equals(MediaType.APPLICATION_XML);
+        }
+        return MediaType.APPLICATION_XML_TYPE.isCompatible(mediaType);
+    }
+
+    /**
+     * Gets the mapper used to serialize the response to the request, depending on the permissions, the
+     * "details" and "pretty" flags.
+     * @param request The request.
+     * @param xml True if the response should be XML, false for JSON.
+     * @return The object mapper for the response.
+     */
+    static ObjectMapper getMapper(HttpServletRequest request, boolean xml) {
+        Map<String, String> queryParams = Util.getQueryParams(request);
+
         SecurityContext ctx = (SecurityContext)request.getAttribute("security");
         TreeNode perms = SecurityService.permitAllNode();
         if (ctx != null && ctx.getEndpointPerms() != null) {
@@ -98,18 +137,62 @@ public class SerializationProvider extends JacksonJsonProvider {
         Boolean det = (Boolean)request.getAttribute("details");
         boolean details = (det != null && det) || queryParams.containsKey("details");
 
+        // The mapper is shared with other requests, so we must not change it here
         SerializeService srv = WebAPI.getSerializeService();
-        ObjectMapper mapper = srv.getDefaultObjectMapper(xml, details, perms);
-        if (queryParams.containsKey("pretty"))
-            mapper.enable(SerializationFeature.INDENT_OUTPUT);
-        return mapper;
+        return srv.getDefaultObjectMapper(xml, details, queryParams.containsKey("pretty"), perms);
+    }
+
+    /**
+     * Serializes the value using the mapper. If the value consists of cached objects the result is taken
+     * from (or added to) the response cache.
+     * @param mapper The mapper used to serialize the value.
+     * @param value The value to serialize.
+     * @param type The class of the value.
+     * @param genericType The generic type of the value.
+     * @return The serialized value.
+     * @throws IOException If the value could not be serialized.
+     */
+    static byte[] encode(ObjectMapper mapper, Object value, Class<?> type, Type genericType) throws IOException {
+        List<CachedObject<?>> objects = ResponseCache.getCacheableObjects(value);
+        ResponseCache cache = WebAPI.getCacheService().getResponseCache();
+        if (objects != null) {
+            byte[] body = cache.get(mapper, objects);
+            if (body != null) {
+                return body;
+            }
+        }
+
+        ObjectWriter writer = mapper.writer();
+        if (genericType != null && genericType.getClass() != Class.class) {
+            TypeFactory typeFactory = mapper.getTypeFactory();
+            JavaType rootType = typeFactory.constructSpecializedType(typeFactory.constructType(genericType), type);
+            if (rootType.getRawClass() != Object.class) {
+                writer = writer.forType(rootType);
+            }
+        }
+        byte[] body = writer.writeValueAsBytes(value);
+
+        if (objects != null) {
+            cache.put(mapper, objects, body);
+        }
+        return body;
     }
 
     @Override
     public void writeTo(Object value, Class<?> type, Type genericType, Annotation[] annotations, MediaType mediaType,
                         MultivaluedMap<String, Object> httpHeaders, OutputStream entityStream) {
         try {
-            super.writeTo(value, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+            // Responses made up of cached objects are cached in their encoded form, so we can skip Jackson
+            if (ResponseCache.getCacheableObjects(value) == null) {
+                super.writeTo(value, type, genericType, annotations, mediaType, httpHeaders, entityStream);
+                return;
+            }
+
+            ObjectMapper mapper = locateMapper(type, mediaType);
+            _modifyHeaders(value, type, genericType, annotations, httpHeaders, null);
+
+            byte[] body = encode(mapper, value, type, genericType);
+            entityStream.write(body);
         } catch (IOException e) {
             if (e instanceof EofException) return;
             e.printStackTrace();
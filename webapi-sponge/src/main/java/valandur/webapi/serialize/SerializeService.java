@@ -16,6 +16,7 @@ import org.spongepowered.api.block.BlockState;
 import org.spongepowered.api.block.tileentity.TileEntity;
 import org.spongepowered.api.command.CommandMapping;
 import org.spongepowered.api.command.CommandSource;
+import org.spongepowered.api.data.DataHolder;
 import org.spongepowered.api.data.Property;
 import org.spongepowered.api.data.manipulator.DataManipulator;
 import org.spongepowered.api.data.manipulator.mutable.*;
@@ -127,8 +128,19 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class SerializeService {
 
+    private static final int MAX_CACHED_MAPPERS = 64;
+
     private Map<Class, BaseSerializer> serializers;
+    private Map<MapperKey, ObjectMapper> mappers = Collections.synchronizedMap(
+            new LinkedHashMap<MapperKey, ObjectMapper>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<MapperKey, ObjectMapper> eldest) {
+                    return size() > MAX_CACHED_MAPPERS;
+                }
+            });
     private Map<String, Class<? extends DataManipulator<?, ?>>> supportedData;
+    private Map<Class<?>, Map<String, Class<? extends DataManipulator<?, ?>>>> applicableData =
+            new ConcurrentHashMap<>();
     private Map<Class<? extends Property<?, ?>>, String> supportedProperties;
 
 
@@ -138,6 +150,7 @@ public class SerializeService {
         logger.info("Loading serializers...");
 
         serializers = new ConcurrentHashMap<>();
+        mappers.clear();
 
         // Cached Objects
         registerCache(Advancement.class, CachedAdvancement.class);
@@ -324,6 +337,7 @@ public class SerializeService {
 
         // Data
         supportedData = new ConcurrentHashMap<>();
+        applicableData.clear();
 
         supportedData.put("absorption", AbsorptionData.class);
         //supportedData.put("achievements", AchievementData.class);
@@ -544,6 +558,9 @@ public class SerializeService {
             e.printStackTrace();
         }
         serializers.put(handledClass, new BaseSerializer<>(handledClass, cacheClass));
+
+        // Existing mappers don't know about the new serializer, so we have to build them again
+        mappers.clear();
     }
 
     /**
@@ -574,6 +591,34 @@ public class SerializeService {
         return supportedData;
     }
 
+    /**
+     * Gets the supported DataHolder types that can be applied to the specified holder.
+     * For entities and tile entities support depends on the class alone, so the result is computed once per
+     * class. For all other holders (e.g. item stacks, where support depends on the item type) the supported
+     * data is checked for each holder.
+     * @param holder The holder for which to get the applicable data.
+     * @return A map from json key to DataHolder type, containing only the types supported by the holder.
+     */
+    public Map<String, Class<? extends DataManipulator<?, ?>>> getApplicableData(DataHolder holder) {
+        if (holder instanceof Entity || holder instanceof TileEntity) {
+            return applicableData.computeIfAbsent(holder.getClass(), c -> findApplicableData(holder));
+        }
+        return findApplicableData(holder);
+    }
+
+    private Map<String, Class<? extends DataManipulator<?, ?>>> findApplicableData(DataHolder holder) {
+        Map<String, Class<? extends DataManipulator<?, ?>>> res = new LinkedHashMap<>();
+        for (Map.Entry<String, Class<? extends DataManipulator<?, ?>>> entry : supportedData.entrySet()) {
+            try {
+                if (holder.supports(entry.getValue())) {
+                    res.put(entry.getKey(), entry.getValue());
+                }
+            } catch (IllegalArgumentException | IllegalStateException ignored) {
+            }
+        }
+        return res;
+    }
+
     /**
      * Gets all PropertyHolder types that are supported by the Web-API
      * @return A map from json key to PropertyHolder type
@@ -676,16 +721,51 @@ public class SerializeService {
         return optSer.map(BaseSerializer::getHandledClass);
     }
 
+    /**
+     * Gets an object mapper that serializes objects with the Web-API serializers, using the specified format,
+     * details and permissions. Mappers are cached and shared, so they must not be reconfigured by the caller.
+     * @param xml True if the mapper should produce xml, false for json.
+     * @param details True if the mapper should include details by default, false otherwise.
+     * @param perms The permissions which are used to filter the serialized properties.
+     * @return The (shared) object mapper for the specified parameters.
+     */
     public ObjectMapper getDefaultObjectMapper(boolean xml, boolean details, TreeNode perms) {
+        return getDefaultObjectMapper(xml, details, false, perms);
+    }
+
+    /**
+     * Gets an object mapper that serializes objects with the Web-API serializers, using the specified format,
+     * details and permissions. Mappers are cached and shared, so they must not be reconfigured by the caller.
+     * @param xml True if the mapper should produce xml, false for json.
+     * @param details True if the mapper should include details by default, false otherwise.
+     * @param pretty True if the mapper should indent the output, false otherwise.
+     * @param perms The permissions which are used to filter the serialized properties.
+     * @return The (shared) object mapper for the specified parameters.
+     */
+    public ObjectMapper getDefaultObjectMapper(boolean xml, boolean details, boolean pretty, TreeNode perms) {
         if (perms == null) {
             throw new NullPointerException("Permissions may not be null");
         }
 
+        MapperKey key = new MapperKey(xml, details, pretty, perms);
+        ObjectMapper om = mappers.get(key);
+        if (om == null) {
+            // Two threads may build the same mapper at the same time, but that's harmless
+            om = createObjectMapper(xml, details, pretty, perms);
+            mappers.put(key, om);
+        }
+        return om;
+    }
+
+    private ObjectMapper createObjectMapper(boolean xml, boolean details, boolean pretty, TreeNode perms) {
         ObjectMapper om = xml ? new XmlMapper() : new ObjectMapper();
         if (xml) {
             ((XmlMapper)om).configure(ToXmlGenerator.Feature.WRITE_XML_DECLARATION, true);
         }
         om.setSerializationInclusion(JsonInclude.Include.NON_NULL);
+        if (pretty) {
+            om.enable(com.fasterxml.jackson.databind.SerializationFeature.INDENT_OUTPUT);
+        }
 
         SimpleModule mod = new SimpleModule();
         for (Map.Entry<Class, BaseSerializer> entry : serializers.entrySet()) {
@@ -708,4 +788,55 @@ public class SerializeService {
 
         return om;
     }
+
+    /**
+     * Identifies a cached object mapper. Permission trees are compared by their content, because most
+     * requests build their own (but equal) permission tree.
+     */
+    private static class MapperKey {
+        private final boolean xml;
+        private final boolean details;
+        private final boolean pretty;
+        private final String perms;
+
+        private MapperKey(boolean xml, boolean details, boolean pretty, TreeNode perms) {
+            this.xml = xml;
+            this.details = details;
+            this.pretty = pretty;
+            StringBuilder sb = new StringBuilder();
+            appendTree(sb, perms);
+            this.perms = sb.toString();
+        }
+
+        private static void appendTree(StringBuilder sb, TreeNode node) {
+            sb.append(node.getValue() ? '+' : '-');
+            if (node.getChildren().isEmpty()) {
+                return;
+            }
+
+            List<TreeNode> children = new ArrayList<>(node.getChildren());
+            children.sort(Comparator.comparing(TreeNode::getKey, Comparator.nullsFirst(String::compareTo)));
+            sb.append('{');
+            for (TreeNode child : children) {
+                sb.append(child.getKey()).append(':');
+                appendTree(sb, child);
+                sb.append(',');
+            }
+            sb.append('}');
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            MapperKey other = (MapperKey) o;
+            return xml == other.xml && details == other.details && pretty == other.pretty &&
+                    perms.equals(other.perms);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(xml, details, pretty, perms);
+        }
+    }
 }
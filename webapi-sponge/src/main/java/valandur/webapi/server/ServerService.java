@@ -6,6 +6,9 @@ import org.spongepowered.api.scheduler.Task;
 import valandur.webapi.WebAPI;
 import valandur.webapi.config.BaseConfig;
 import valandur.webapi.config.ServerConfig;
+import valandur.webapi.server.StatsStore.Metric;
+import valandur.webapi.server.StatsStore.Resolution;
+import valandur.webapi.util.TimeSeries;
 
 import java.io.File;
 import java.io.IOException;
@@ -14,9 +17,9 @@ import java.nio.charset.Charset;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -25,6 +28,10 @@ import java.util.concurrent.TimeUnit;
 public class ServerService {
 
     private final static String configFileName = "server.conf";
+    private final static String statsFileName = "stats.dat";
+
+    // The maximum amount of values returned per stat when the resolution is picked automatically
+    private final static int MAX_STATS_POINTS = 500;
 
     // Record every 5 seconds. (17280 entries = 24 hours, 4320 entries = 6 hours)
     private static int STATS_INTERVAL = 5;
@@ -34,12 +41,14 @@ public class ServerService {
     private Map<String, ServerProperty> properties = new ConcurrentHashMap<>();
     private Map<String, ServerProperty> newProperties = new ConcurrentHashMap<>();
 
-    private Queue<ServerStat<Double>> averageTps = new ConcurrentLinkedQueue<>();
-    private Queue<ServerStat<Integer>> onlinePlayers = new ConcurrentLinkedQueue<>();
-    private Queue<ServerStat<Double>> cpuLoad = new ConcurrentLinkedQueue<>();
-    private Queue<ServerStat<Double>> memoryLoad = new ConcurrentLinkedQueue<>();
-    private Queue<ServerStat<Double>> diskUsage = new ConcurrentLinkedQueue<>();
+    // Replaced when the capacity changes, and read by the stats task and the servlet threads
+    private volatile TimeSeries averageTps = new TimeSeries(MAX_STATS_ENTRIES);
+    private volatile TimeSeries onlinePlayers = new TimeSeries(MAX_STATS_ENTRIES);
+    private volatile TimeSeries cpuLoad = new TimeSeries(MAX_STATS_ENTRIES);
+    private volatile TimeSeries memoryLoad = new TimeSeries(MAX_STATS_ENTRIES);
+    private volatile TimeSeries diskUsage = new TimeSeries(MAX_STATS_ENTRIES);
 
+    private StatsStore statsStore;
     private Task statTask;
 
 
@@ -53,6 +62,31 @@ public class ServerService {
         STATS_INTERVAL = config.statsInterval;
         MAX_STATS_ENTRIES = config.maxStats;
 
+        if (averageTps.getCapacity() != MAX_STATS_ENTRIES) {
+            averageTps = averageTps.withCapacity(MAX_STATS_ENTRIES);
+            onlinePlayers = onlinePlayers.withCapacity(MAX_STATS_ENTRIES);
+            cpuLoad = cpuLoad.withCapacity(MAX_STATS_ENTRIES);
+            memoryLoad = memoryLoad.withCapacity(MAX_STATS_ENTRIES);
+            diskUsage = diskUsage.withCapacity(MAX_STATS_ENTRIES);
+        }
+
+        int[] capacities = { MAX_STATS_ENTRIES, config.statsMinutes, config.statsQuarterHours, config.statsHours };
+        if (statsStore != null && !Arrays.equals(statsStore.getCapacities(), capacities)) {
+            statsStore.close();
+            statsStore = null;
+        }
+        if (statsStore == null) {
+            StatsStore store = new StatsStore(WebAPI.getConfigPath().resolve(statsFileName).normalize(), capacities);
+            try {
+                store.open();
+                statsStore = store;
+                loadStats();
+            } catch (IOException e) {
+                WebAPI.getLogger().error("Could not open stats file: " + e.getMessage());
+                WebAPI.sentryCapture(e);
+            }
+        }
+
         try {
             List<String> lines = Files.readAllLines(Paths.get("./server.properties"));
             for (String line : lines) {
@@ -97,25 +131,59 @@ public class ServerService {
         long maxMem = Runtime.getRuntime().maxMemory();
         long usedMem = (Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory());
 
+        long now = System.currentTimeMillis();
+
         // Stuff accessing sponge needs to be run on the server main thread
-        WebAPI.runOnMain(() -> {
-            averageTps.add(new ServerStat<>(Sponge.getServer().getTicksPerSecond()));
-            onlinePlayers.add(new ServerStat<>(Sponge.getServer().getOnlinePlayers().size()));
+        double[] values = WebAPI.runOnMain(() -> new double[] {
+                Sponge.getServer().getTicksPerSecond(),
+                Sponge.getServer().getOnlinePlayers().size(),
+                0, 0, 0,
         });
-        cpuLoad.add(new ServerStat<>(systemMXBean.getProcessCpuLoad()));
-        memoryLoad.add(new ServerStat<>(usedMem / (double)maxMem));
-        diskUsage.add(new ServerStat<>((total - free) / (double)total));
-
-        while (averageTps.size() > MAX_STATS_ENTRIES)
-            averageTps.poll();
-        while (onlinePlayers.size() > MAX_STATS_ENTRIES)
-            onlinePlayers.poll();
-        while (cpuLoad.size() > MAX_STATS_ENTRIES)
-            cpuLoad.poll();
-        while (memoryLoad.size() > MAX_STATS_ENTRIES)
-            memoryLoad.poll();
-        while (diskUsage.size() > MAX_STATS_ENTRIES)
-            diskUsage.poll();
+        values[2] = systemMXBean.getProcessCpuLoad();
+        values[3] = usedMem / (double)maxMem;
+        values[4] = (total - free) / (double)total;
+
+        averageTps.add(now, values[0]);
+        onlinePlayers.add(now, values[1]);
+        cpuLoad.add(now, values[2]);
+        memoryLoad.add(now, values[3]);
+        diskUsage.add(now, values[4]);
+
+        if (statsStore != null) {
+            statsStore.add(now / 1000, values);
+        }
+    }
+
+    private void loadStats() {
+        // Fill the in-memory history with the raw samples from the stats file
+        if (averageTps.size() > 0) {
+            return;
+        }
+
+        for (ServerStat<Double> stat : getStats(Metric.TPS, Resolution.RAW, Long.MIN_VALUE, Long.MAX_VALUE, 0))
+            averageTps.add(stat.getTimestamp().toEpochMilli(), stat.getValue());
+        for (ServerStat<Double> stat : getStats(Metric.PLAYERS, Resolution.RAW, Long.MIN_VALUE, Long.MAX_VALUE, 0))
+            onlinePlayers.add(stat.getTimestamp().toEpochMilli(), stat.getValue());
+        for (ServerStat<Double> stat : getStats(Metric.CPU, Resolution.RAW, Long.MIN_VALUE, Long.MAX_VALUE, 0))
+            cpuLoad.add(stat.getTimestamp().toEpochMilli(), stat.getValue());
+        for (ServerStat<Double> stat : getStats(Metric.MEMORY, Resolution.RAW, Long.MIN_VALUE, Long.MAX_VALUE, 0))
+            memoryLoad.add(stat.getTimestamp().toEpochMilli(), stat.getValue());
+        for (ServerStat<Double> stat : getStats(Metric.DISK, Resolution.RAW, Long.MIN_VALUE, Long.MAX_VALUE, 0))
+            diskUsage.add(stat.getTimestamp().toEpochMilli(), stat.getValue());
+    }
+
+    /**
+     * Stops recording stats and writes the stats file to disk.
+     */
+    public void stop() {
+        if (statTask != null) {
+            statTask.cancel();
+            statTask = null;
+        }
+        if (statsStore != null) {
+            statsStore.close();
+            statsStore = null;
+        }
     }
 
     /**
@@ -132,7 +200,15 @@ public class ServerService {
      * @return A list containing measurements of the TPS.
      */
     public List<ServerStat<Double>> getAverageTps() {
-        return new ArrayList<>(averageTps);
+        return getAverageTps(0);
+    }
+    /**
+     * Gets the latest measurements of the average TPS of the minecraft server.
+     * @param limit The maximum amount of measurements to return, or 0 to return all of them.
+     * @return A list containing measurements of the TPS.
+     */
+    public List<ServerStat<Double>> getAverageTps(int limit) {
+        return averageTps.get(Long.MIN_VALUE, Long.MAX_VALUE, limit, ServerService::toStat);
     }
 
     /**
@@ -140,7 +216,15 @@ public class ServerService {
      * @return A list containing measurements of the amount of players online.
      */
     public List<ServerStat<Integer>> getOnlinePlayers() {
-        return new ArrayList<>(onlinePlayers);
+        return getOnlinePlayers(0);
+    }
+    /**
+     * Gets the latest measurements of the amount of players that were online on the minecraft server.
+     * @param limit The maximum amount of measurements to return, or 0 to return all of them.
+     * @return A list containing measurements of the amount of players online.
+     */
+    public List<ServerStat<Integer>> getOnlinePlayers(int limit) {
+        return onlinePlayers.get(Long.MIN_VALUE, Long.MAX_VALUE, limit, (t, v) -> toStat(t, (int)v));
     }
 
     /**
@@ -148,7 +232,15 @@ public class ServerService {
      * @return A list containing the measurements of the average load of the cpu.
      */
     public List<ServerStat<Double>> getCpuLoad() {
-        return new ArrayList<>(cpuLoad);
+        return getCpuLoad(0);
+    }
+    /**
+     * Gets the latest measurements of the average load of the cpu.
+     * @param limit The maximum amount of measurements to return, or 0 to return all of them.
+     * @return A list containing the measurements of the average load of the cpu.
+     */
+    public List<ServerStat<Double>> getCpuLoad(int limit) {
+        return cpuLoad.get(Long.MIN_VALUE, Long.MAX_VALUE, limit, ServerService::toStat);
     }
 
     /**
@@ -156,7 +248,15 @@ public class ServerService {
      * @return A list containing the measurements of the average memory load.
      */
     public List<ServerStat<Double>> getMemoryLoad() {
-        return new ArrayList<>(memoryLoad);
+        return getMemoryLoad(0);
+    }
+    /**
+     * Gets the latest measurements of the average memory load.
+     * @param limit The maximum amount of measurements to return, or 0 to return all of them.
+     * @return A list containing the measurements of the average memory load.
+     */
+    public List<ServerStat<Double>> getMemoryLoad(int limit) {
+        return memoryLoad.get(Long.MIN_VALUE, Long.MAX_VALUE, limit, ServerService::toStat);
     }
 
     /**
@@ -164,7 +264,67 @@ public class ServerService {
      * @return A list containing measurements of the average disk usage.
      */
     public List<ServerStat<Double>> getDiskUsage() {
-        return new ArrayList<>(diskUsage);
+        return getDiskUsage(0);
+    }
+    /**
+     * Gets the latest measurements of the average disk usage.
+     * @param limit The maximum amount of measurements to return, or 0 to return all of them.
+     * @return A list containing measurements of the average disk usage.
+     */
+    public List<ServerStat<Double>> getDiskUsage(int limit) {
+        return diskUsage.get(Long.MIN_VALUE, Long.MAX_VALUE, limit, ServerService::toStat);
+    }
+
+    /**
+     * Gets the history of a stat in the specified time range, at the specified resolution. Resolutions other than
+     * raw return the average value of each time span, together with the minimum and maximum.
+     * @param metric The stat to get.
+     * @param resolution The resolution of the returned values.
+     * @param from The minimum epoch timestamp in seconds (inclusive).
+     * @param to The maximum epoch timestamp in seconds (inclusive).
+     * @param limit The maximum amount of values to return, or 0 to return all of them.
+     * @return A list containing the values of the stat.
+     */
+    public List<ServerStat<Double>> getStats(Metric metric, Resolution resolution, long from, long to, int limit) {
+        if (statsStore == null) {
+            return new ArrayList<>();
+        }
+        return statsStore.get(resolution, metric, from, to, limit);
+    }
+
+    /**
+     * Picks the finest resolution at which the specified time range is stored and can be returned in a
+     * reasonable amount of values.
+     * @param from The minimum epoch timestamp in seconds.
+     * @param to The maximum epoch timestamp in seconds.
+     * @return The resolution that should be used for the time range.
+     */
+    public Resolution getResolution(long from, long to) {
+        Resolution[] resolutions = Resolution.values();
+        Resolution best = null;
+        long bestOldest = Long.MAX_VALUE;
+        for (Resolution res : resolutions) {
+            long step = res == Resolution.RAW ? STATS_INTERVAL : res.getSeconds();
+            if ((to - from) / Math.max(1, step) > MAX_STATS_POINTS) {
+                continue;
+            }
+
+            long oldest = statsStore != null ? statsStore.getOldest(res) : Long.MAX_VALUE;
+            if (oldest <= from) {
+                return res;
+            }
+
+            // Otherwise prefer the resolution that goes back the furthest
+            if (best == null || oldest < bestOldest) {
+                best = res;
+                bestOldest = oldest;
+            }
+        }
+        return best != null ? best : resolutions[resolutions.length - 1];
+    }
+
+    private static <V> ServerStat<V> toStat(long timestamp, V value) {
+        return new ServerStat<>(Instant.ofEpochMilli(timestamp), value);
     }
 
     public Collection<ServerProperty> getProperties() {
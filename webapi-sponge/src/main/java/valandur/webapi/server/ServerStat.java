@@ -20,9 +20,31 @@ public class ServerStat<V> {
         return value;
     }
 
+    private V min;
+    @ApiModelProperty(value = "The minimum value in the time span of this statistic, if it summarizes multiple values", dataType = "number")
+    public V getMin() {
+        return min;
+    }
+
+    private V max;
+    @ApiModelProperty(value = "The maximum value in the time span of this statistic, if it summarizes multiple values", dataType = "number")
+    public V getMax() {
+        return max;
+    }
+
 
     public ServerStat(V value) {
         this.timestamp = Instant.now();
         this.value = value;
     }
+    public ServerStat(Instant timestamp, V value) {
+        this.timestamp = timestamp;
+        this.value = value;
+    }
+    public ServerStat(Instant timestamp, V value, V min, V max) {
+        this.timestamp = timestamp;
+        this.value = value;
+        this.min = min;
+        this.max = max;
+    }
 }
@@ -0,0 +1,400 @@
+package valandur.webapi.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Stores the history of the server stats in a memory-mapped file, so that it survives restarts.
+ * Raw samples are rolled up into buckets of one minute, 15 minutes and one hour, which keep the minimum,
+ * average and maximum of the samples. Each resolution is a fixed capacity ring of records in the file.
+ */
+public class StatsStore {
+
+    private static final int MAGIC = 0x57415354;    // "WAST"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    /**
+     * The resolutions at which the stats are stored.
+     */
+    public enum Resolution {
+        RAW(0), MINUTE(60), QUARTER_HOUR(15 * 60), HOUR(60 * 60);
+
+        private final long seconds;
+
+        Resolution(long seconds) {
+            this.seconds = seconds;
+        }
+
+        /**
+         * Gets the length of the buckets of this resolution.
+         * @return The length of one bucket in seconds, or 0 for raw samples.
+         */
+        public long getSeconds() {
+            return seconds;
+        }
+    }
+
+    /**
+     * The stats that are recorded.
+     */
+    public enum Metric {
+        TPS, PLAYERS, CPU, MEMORY, DISK
+    }
+
+    private static final int METRICS = Metric.values().length;
+
+    private final Path path;
+    private final int[] capacities;
+    private final Level[] levels = new Level[Resolution.values().length];
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+
+
+    /**
+     * Creates a new store, which has to be opened before use.
+     * @param path The path of the file the stats are stored in.
+     * @param capacities The amount of records kept for each {@link Resolution}.
+     */
+    public StatsStore(Path path, int[] capacities) {
+        this.path = path;
+        this.capacities = new int[capacities.length];
+        for (int i = 0; i < capacities.length; i++) {
+            this.capacities[i] = Math.max(1, capacities[i]);
+        }
+    }
+
+    /**
+     * Gets the path of the file the stats are stored in.
+     * @return The path of the file.
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Gets the amount of records kept for each resolution.
+     * @return The capacities of the resolutions.
+     */
+    public int[] getCapacities() {
+        return capacities.clone();
+    }
+
+    /**
+     * Opens the file and loads the stats. If the file was written with other capacities, the newest records
+     * are carried over to the new layout.
+     * @throws IOException If the file can't be opened.
+     */
+    public synchronized void open() throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+
+        long size = HEADER_SIZE;
+        for (Resolution res : Resolution.values()) {
+            size += (long)capacities[res.ordinal()] * recordSize(res);
+        }
+
+        // Check if we can use the existing file as is, otherwise read what we can from it
+        boolean valid = false;
+        List<List<double[]>> oldRecords = Collections.emptyList();
+        if (channel.size() >= HEADER_SIZE) {
+            MappedByteBuffer old = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (old.getInt(0) == MAGIC && old.getInt(4) == VERSION) {
+                valid = matchesLayout(old);
+                if (!valid) {
+                    oldRecords = readAll(old);
+                }
+            }
+        }
+
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+
+        long offset = HEADER_SIZE;
+        for (Resolution res : Resolution.values()) {
+            levels[res.ordinal()] = new Level(res, capacities[res.ordinal()], offset);
+            offset += (long)capacities[res.ordinal()] * recordSize(res);
+        }
+
+        if (!valid) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(4, VERSION);
+            for (Level level : levels) {
+                buffer.putInt(headerOffset(level.res), level.capacity);
+                level.setHead(0);
+            }
+            for (int i = 0; i < oldRecords.size() && i < levels.length; i++) {
+                List<double[]> recs = oldRecords.get(i);
+                int start = Math.max(0, recs.size() - levels[i].capacity);
+                for (double[] rec : recs.subList(start, recs.size())) {
+                    levels[i].write(rec);
+                }
+            }
+        }
+
+        // Restore the partial buckets from the raw samples that haven't been rolled up yet
+        Level raw = levels[Resolution.RAW.ordinal()];
+        for (long i = raw.first(); i < raw.head; i++) {
+            double[] rec = raw.read(i);
+            for (Level level : levels) {
+                if (level.res != Resolution.RAW && level.bucketOf((long)rec[0]) > level.lastTimestamp()) {
+                    level.accumulate((long)rec[0], rec);
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all changes to disk and closes the file.
+     */
+    public synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+
+        buffer.force();
+        try {
+            channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        channel = null;
+        buffer = null;
+    }
+
+    /**
+     * Adds a raw sample, and rolls it up into the buckets of the other resolutions.
+     * @param timestamp The epoch timestamp in seconds when the sample was recorded.
+     * @param values The value of each {@link Metric}.
+     */
+    public synchronized void add(long timestamp, double[] values) {
+        if (buffer == null) {
+            return;
+        }
+
+        double[] rec = new double[1 + METRICS];
+        rec[0] = timestamp;
+        System.arraycopy(values, 0, rec, 1, METRICS);
+        levels[Resolution.RAW.ordinal()].write(rec);
+
+        for (Level level : levels) {
+            if (level.res != Resolution.RAW) {
+                level.accumulate(timestamp, rec);
+            }
+        }
+    }
+
+    /**
+     * Gets the oldest timestamp that is stored at the specified resolution.
+     * @param res The resolution.
+     * @return The epoch timestamp in seconds of the oldest record, or {@link Long#MAX_VALUE} if there are none.
+     */
+    public synchronized long getOldest(Resolution res) {
+        if (buffer == null) {
+            return Long.MAX_VALUE;
+        }
+        Level level = levels[res.ordinal()];
+        long first = level.first();
+        return first < level.head ? level.timestamp(first) : Long.MAX_VALUE;
+    }
+
+    /**
+     * Gets the stored values of a metric in the specified time range, from oldest to newest.
+     * @param res The resolution at which the values are returned.
+     * @param metric The metric to get.
+     * @param from The minimum epoch timestamp in seconds (inclusive).
+     * @param to The maximum epoch timestamp in seconds (inclusive).
+     * @param limit The maximum amount of values, the newest values are returned. Use 0 for no limit.
+     * @return The values of the metric. For resolutions other than raw the value is the average, and the
+     * minimum and maximum are included.
+     */
+    public synchronized List<ServerStat<Double>> get(Resolution res, Metric metric, long from, long to, int limit) {
+        List<ServerStat<Double>> list = new ArrayList<>();
+        if (buffer == null) {
+            return list;
+        }
+
+        Level level = levels[res.ordinal()];
+        long start = level.search(from, false);
+        long end = level.search(to, true);
+        if (limit > 0) {
+            start = Math.max(start, end - limit);
+        }
+
+        for (long i = start; i < end; i++) {
+            double[] rec = level.read(i);
+            Instant ts = Instant.ofEpochSecond((long)rec[0]);
+            if (res == Resolution.RAW) {
+                list.add(new ServerStat<>(ts, rec[1 + metric.ordinal()]));
+            } else {
+                int o = 1 + metric.ordinal() * 3;
+                list.add(new ServerStat<>(ts, rec[o + 1], rec[o], rec[o + 2]));
+            }
+        }
+        return list;
+    }
+
+    private boolean matchesLayout(ByteBuffer buf) {
+        for (Resolution res : Resolution.values()) {
+            if (buf.getInt(headerOffset(res)) != capacities[res.ordinal()]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<List<double[]>> readAll(ByteBuffer buf) {
+        List<List<double[]>> res = new ArrayList<>();
+        long offset = HEADER_SIZE;
+        for (Resolution r : Resolution.values()) {
+            int cap = buf.getInt(headerOffset(r));
+            long head = buf.getLong(headerOffset(r) + 4);
+            int size = recordSize(r);
+            if (cap <= 0 || offset + (long)cap * size > buf.capacity()) {
+                break;
+            }
+
+            List<double[]> recs = new ArrayList<>();
+            for (long i = Math.max(0, head - cap); i < head; i++) {
+                int pos = (int)(offset + (i % cap) * size);
+                double[] rec = new double[size / 8];
+                for (int j = 0; j < rec.length; j++) {
+                    rec[j] = buf.getDouble(pos + j * 8);
+                }
+                recs.add(rec);
+            }
+            res.add(recs);
+            offset += (long)cap * size;
+        }
+        return res;
+    }
+
+    private static int headerOffset(Resolution res) {
+        return 8 + res.ordinal() * 12;
+    }
+
+    private static int recordSize(Resolution res) {
+        // The timestamp, then the value of each metric, or the min, avg and max of each metric for rollups
+        return 8 * (1 + (res == Resolution.RAW ? METRICS : METRICS * 3));
+    }
+
+    private class Level {
+        private final Resolution res;
+        private final int capacity;
+        private final long offset;
+        private final int size;
+        private long head;
+
+        // The bucket that is currently being filled
+        private long bucket = Long.MIN_VALUE;
+        private int count;
+        private double[] min = new double[METRICS];
+        private double[] sum = new double[METRICS];
+        private double[] max = new double[METRICS];
+
+        private Level(Resolution res, int capacity, long offset) {
+            this.res = res;
+            this.capacity = capacity;
+            this.offset = offset;
+            this.size = recordSize(res);
+            this.head = buffer.getLong(headerOffset(res) + 4);
+        }
+
+        private void setHead(long head) {
+            this.head = head;
+            buffer.putLong(headerOffset(res) + 4, head);
+        }
+
+        private long first() {
+            return Math.max(0, head - capacity);
+        }
+
+        private int position(long i) {
+            return (int)(offset + (i % capacity) * size);
+        }
+
+        private long timestamp(long i) {
+            return (long)buffer.getDouble(position(i));
+        }
+
+        private long lastTimestamp() {
+            return head > 0 ? timestamp(head - 1) : Long.MIN_VALUE;
+        }
+
+        private long bucketOf(long timestamp) {
+            return timestamp - Math.floorMod(timestamp, res.seconds);
+        }
+
+        private double[] read(long i) {
+            int pos = position(i);
+            double[] rec = new double[size / 8];
+            for (int j = 0; j < rec.length; j++) {
+                rec[j] = buffer.getDouble(pos + j * 8);
+            }
+            return rec;
+        }
+
+        private void write(double[] rec) {
+            int pos = position(head);
+            for (int j = 0; j < rec.length; j++) {
+                buffer.putDouble(pos + j * 8, rec[j]);
+            }
+            setHead(head + 1);
+        }
+
+        private void accumulate(long timestamp, double[] raw) {
+            long b = bucketOf(timestamp);
+            if (b != bucket) {
+                flush();
+                bucket = b;
+                count = 0;
+            }
+
+            for (int m = 0; m < METRICS; m++) {
+                double v = raw[1 + m];
+                min[m] = count == 0 ? v : Math.min(min[m], v);
+                max[m] = count == 0 ? v : Math.max(max[m], v);
+                sum[m] = count == 0 ? v : sum[m] + v;
+            }
+            count++;
+        }
+
+        private void flush() {
+            if (count == 0) {
+                return;
+            }
+
+            double[] rec = new double[1 + METRICS * 3];
+            rec[0] = bucket;
+            for (int m = 0; m < METRICS; m++) {
+                rec[1 + m * 3] = min[m];
+                rec[2 + m * 3] = sum[m] / count;
+                rec[3 + m * 3] = max[m];
+            }
+            write(rec);
+            count = 0;
+        }
+
+        /**
+         * Finds the first record with a timestamp greater than (or equal to, if not inclusive) the timestamp.
+         */
+        private long search(long timestamp, boolean inclusive) {
+            long lo = first();
+            long hi = head;
+            while (lo < hi) {
+                long mid = (lo + hi) >>> 1;
+                long t = timestamp(mid);
+                if (t < timestamp || (inclusive && t == timestamp)) lo = mid + 1;
+                else hi = mid;
+            }
+            return lo;
+        }
+    }
+}
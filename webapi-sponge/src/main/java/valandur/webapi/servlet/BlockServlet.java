@@ -6,15 +6,20 @@ import org.spongepowered.api.block.BlockState;
 import valandur.webapi.block.BlockChangeOperation;
 import valandur.webapi.block.BlockGetOperation;
 import valandur.webapi.block.BlockOperation;
+import valandur.webapi.block.BlockQuery;
+import valandur.webapi.block.BlockQueryOperation;
 import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.serialize.view.block.BlockStateView;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.ExplicitDetails;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.PaletteArray;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.StreamingOutput;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.*;
@@ -57,7 +62,7 @@ public class BlockServlet extends BaseServlet {
     @ApiOperation(
             value = "Create a block operation",
             response = BlockOperation.class,
-            notes = "Start a request to get or change blocks on the server.")
+            notes = "Start a request to get, change or search blocks on the server.")
     public Response createBlockOperation(CreateBlockOperationRequest req)
             throws BadRequestException, NotAcceptableException, URISyntaxException {
 
@@ -86,7 +91,11 @@ public class BlockServlet extends BaseServlet {
 
         // Calculate volume size
         Vector3i size = max.sub(min).add(1, 1, 1);
-        int numBlocks = size.getX() * size.getY() * size.getZ();
+        long volume = (long)size.getX() * size.getY() * size.getZ();
+        if (volume > Integer.MAX_VALUE) {
+            throw new NotAcceptableException("Size is " + volume + " blocks, which is too large");
+        }
+        int numBlocks = (int)volume;
 
         BlockOperation op;
         if (req.getType() == BlockOperation.BlockOperationType.GET) {
@@ -106,57 +115,65 @@ public class BlockServlet extends BaseServlet {
                         blockService.getMaxUpdateBlocks() + " blocks");
             }
 
-            // Collect a list of blocks we want to update
-            Map<Vector3i, BlockState> blocks = new HashMap<>();
+            // Collect the blocks we want to update. Filling the volume with one block doesn't need any index data.
+            PaletteArray<BlockState> blocks;
 
             if (req.getBlock() != null) {
-                try {
-                    BlockState state = req.getBlock();
-
-                    for (int x = min.getX(); x <= max.getX(); x++) {
-                        for (int y = min.getY(); y <= max.getY(); y++) {
-                            for (int z = min.getZ(); z <= max.getZ(); z++) {
-                                blocks.put(new Vector3i(x, y, z), state);
-                            }
-                        }
-                    }
-                } catch (Exception e) {
-                    throw new BadRequestException("Could not process block state: " + e.getMessage());
-                }
+                blocks = new PaletteArray<>(numBlocks, req.getBlock());
             } else {
                 if (req.getBlocks() == null) {
                     throw new BadRequestException("Either 'block' or 'blocks' has to be defined on each area");
                 }
 
-                for (int x = 0; x < size.getX(); x++) {
-                    BlockState[][] xBlocks = req.getBlocks()[x];
+                blocks = new PaletteArray<>(numBlocks);
+                BlockState[][][] reqBlocks = req.getBlocks();
+                for (int x = 0; x < size.getX() && x < reqBlocks.length; x++) {
+                    BlockState[][] xBlocks = reqBlocks[x];
 
                     if (xBlocks == null)
                         continue;
 
-                    for (int y = 0; y < size.getY(); y++) {
+                    for (int y = 0; y < size.getY() && y < xBlocks.length; y++) {
                         BlockState[] yBlocks = xBlocks[y];
 
                         if (yBlocks == null)
                             continue;
 
-                        for (int z = 0; z < size.getZ(); z++) {
+                        for (int z = 0; z < size.getZ() && z < yBlocks.length; z++) {
                             BlockState block = yBlocks[z];
 
                             if (block == null)
                                 continue;
 
-                            try {
-                                blocks.put(new Vector3i(min.getX() + x, min.getY() + y, min.getZ() + z), block);
-                            } catch (Exception e) {
-                                throw new BadRequestException("Could not process block state: " + e.getMessage());
-                            }
+                            blocks.set((x * size.getY() + y) * size.getZ() + z, block);
                         }
                     }
                 }
             }
 
-            op = blockService.startBlockOperation(new BlockChangeOperation(req.getWorld().get(), min, max, blocks));
+            op = blockService.startBlockOperation(
+                    new BlockChangeOperation(req.getWorld().get(), min, max, blocks, req.isUndoable()));
+        } else if (req.getType() == BlockOperation.BlockOperationType.QUERY) {
+            // Check volume size
+            if (blockService.getMaxQueryBlocks() > 0 && numBlocks > blockService.getMaxQueryBlocks()) {
+                throw new NotAcceptableException("Size is " + numBlocks +
+                        " blocks, which is larger than the maximum of " +
+                        blockService.getMaxQueryBlocks() + " blocks");
+            }
+
+            if (req.getQuery() == null) {
+                throw new BadRequestException("'query' has to be defined for a QUERY operation");
+            }
+            if (req.getQuery().getLimit() < 0) {
+                throw new BadRequestException("The limit of the query can't be negative");
+            }
+            if (req.getQuery().getLimit() > blockService.getMaxQueryPositions()) {
+                throw new BadRequestException("The limit of the query can't be larger than " +
+                        blockService.getMaxQueryPositions());
+            }
+
+            op = blockService.startBlockOperation(
+                    new BlockQueryOperation(req.getWorld().get(), min, max, req.getQuery()));
         } else {
             throw new BadRequestException("Unknown block operation type");
         }
@@ -182,6 +199,92 @@ public class BlockServlet extends BaseServlet {
         return op.get();
     }
 
+    @GET
+    @Path("/op/{uuid}/data")
+    @Permission({ "op", "data" })
+    @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_OCTET_STREAM })
+    @ApiOperation(
+            value = "Get block operation data",
+            notes = "Streams the blocks of a GET block operation. The blocks are split into sections of at most " +
+                    "16x16x16 blocks, and each section contains a palette of block states and the palette index of " +
+                    "each block, indexed by x, then y, then z. While the operation is running only the sections " +
+                    "that are complete are returned. Use the binary format for a compact, bit-packed version.")
+    public Response getBlockOperationData(
+            @PathParam("uuid") @ApiParam("The uuid of the block operation") UUID uuid,
+            @QueryParam("format") @ApiParam("The format of the data, either 'json' or 'binary'") String format,
+            @HeaderParam("Accept") String accept)
+            throws NotFoundException {
+        // Check block op
+        Optional<BlockOperation> op = blockService.getBlockOperation(uuid);
+        if (!op.isPresent()) {
+            throw new NotFoundException("Block operation with UUID '" + uuid + "' could not be found");
+        }
+        if (!(op.get() instanceof BlockGetOperation)) {
+            throw new BadRequestException("Block operation with UUID '" + uuid + "' does not return data");
+        }
+
+        BlockGetOperation getOp = (BlockGetOperation)op.get();
+        boolean binary = format != null ? format.equalsIgnoreCase("binary") :
+                accept != null && accept.contains(MediaType.APPLICATION_OCTET_STREAM);
+
+        StreamingOutput stream = output -> {
+            // Keep the data from being removed while we stream it
+            if (!getOp.beginRead()) {
+                throw new NotFoundException("Block operation with UUID '" + uuid + "' could not be found");
+            }
+            try {
+                getOp.writeData(output, binary);
+            } finally {
+                getOp.endRead();
+            }
+        };
+        return Response.ok(stream, binary ? MediaType.APPLICATION_OCTET_STREAM_TYPE : MediaType.APPLICATION_JSON_TYPE)
+                .build();
+    }
+
+    @POST
+    @Path("/op/{uuid}/undo")
+    @Permission({ "op", "undo" })
+    @ApiOperation(
+            value = "Undo a block operation",
+            response = BlockOperation.class,
+            notes = "Starts a new block operation that changes all the blocks of a finished CHANGE operation back " +
+                    "to what they were before. The operation must have been created with 'undoable' set to true.")
+    public Response undoBlockOperation(
+            @PathParam("uuid") @ApiParam("The uuid of the block operation") UUID uuid)
+            throws NotFoundException, URISyntaxException {
+        // Check block op
+        Optional<BlockOperation> op = blockService.getBlockOperation(uuid);
+        if (!op.isPresent()) {
+            throw new NotFoundException("Block operation with UUID '" + uuid + "' could not be found");
+        }
+        if (!(op.get() instanceof BlockChangeOperation) || !((BlockChangeOperation)op.get()).isUndoable()) {
+            throw new BadRequestException("Block operation with UUID '" + uuid + "' can not be undone");
+        }
+
+        BlockOperation.BlockOperationStatus status = op.get().getStatus();
+        if (status == BlockOperation.BlockOperationStatus.RUNNING ||
+                status == BlockOperation.BlockOperationStatus.PAUSED) {
+            throw new BadRequestException("Block operation with UUID '" + uuid + "' has to be stopped first");
+        }
+
+        // Keep the saved blocks from being removed while we read them
+        if (!op.get().beginRead()) {
+            throw new NotFoundException("Block operation with UUID '" + uuid + "' could not be found");
+        }
+
+        BlockOperation undoOp;
+        try {
+            undoOp = blockService.startBlockOperation(((BlockChangeOperation)op.get()).createUndo());
+        } catch (IOException e) {
+            throw new InternalServerErrorException("Could not read saved blocks: " + e.getMessage());
+        } finally {
+            op.get().endRead();
+        }
+
+        return Response.created(new URI(null, null, undoOp.getLink(), null)).entity(undoOp).build();
+    }
+
     @PUT
     @Path("/op/{uuid}")
     @Permission({ "op", "modify" })
@@ -217,7 +320,8 @@ public class BlockServlet extends BaseServlet {
     @Permission({ "op", "delete" })
     @ApiOperation(
             value = "Stop a block operation",
-            notes = "Cancel a pending or running block operation. **THIS DOES NOT UNDO THE BLOCK CHANGES**")
+            notes = "Cancel a pending or running block operation. **THIS DOES NOT UNDO THE BLOCK CHANGES**\n\n" +
+                    "If the operation is already done it is removed instead, which frees the data it holds.")
     public BlockOperation deleteBlockOperation(
             @PathParam("uuid") @ApiParam("The uuid of the block operation") UUID uuid)
             throws NotFoundException {
@@ -227,7 +331,13 @@ public class BlockServlet extends BaseServlet {
             throw new NotFoundException("Block operation with UUID '" + uuid + "' could not be found");
         }
 
-        op.get().stop(null);
+        BlockOperation.BlockOperationStatus status = op.get().getStatus();
+        if (status == BlockOperation.BlockOperationStatus.RUNNING ||
+                status == BlockOperation.BlockOperationStatus.PAUSED) {
+            op.get().stop(null);
+        } else {
+            blockService.removeBlockOperation(uuid);
+        }
 
         return op.get();
     }
@@ -271,6 +381,18 @@ public class BlockServlet extends BaseServlet {
         public BlockState[][][] getBlocks() {
             return blocks;
         }
+
+        private boolean undoable;
+        @ApiModelProperty("True to save the previous blocks when using a CHANGE operation, so that it can be undone")
+        public boolean isUndoable() {
+            return undoable;
+        }
+
+        private BlockQuery query;
+        @ApiModelProperty("The conditions that blocks have to meet when using a QUERY operation")
+        public BlockQuery getQuery() {
+            return query;
+        }
     }
 
     @ApiModel("ModifyBlockOperationRequest")
@@ -11,14 +11,16 @@ import valandur.webapi.cache.world.CachedWorld;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.ExplicitDetails;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.Page;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Optional;
 
 @Path("chunk")
@@ -33,21 +35,26 @@ public class ChunkServlet extends BaseServlet {
     @Permission("list")
     @ApiOperation(
             value = "List chunks",
-            notes = "Gets a list of all the loaded chunks for the specified world.")
-    public List<CachedChunk> listChunks(
-            @PathParam("world") @ApiParam("The uuid of the for which to get all chunks") CachedWorld world) {
-        return WebAPI.runOnMain(() -> {
+            response = CachedChunk.class,
+            responseContainer = "List",
+            notes = "Gets a list of all the loaded chunks for the specified world. The chunks are returned in " +
+                    "pages, see the X-Total-Count and X-Next-Cursor headers.")
+    public void listChunks(
+            @PathParam("world") @ApiParam("The uuid of the for which to get all chunks") CachedWorld world,
+            @QueryParam("limit") @ApiParam("The maximum amount of chunks on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor,
+            @Suspended AsyncResponse asyncResponse) {
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
+        runOnMain(asyncResponse, Arrays.asList("chunks", world.getUUID(), after, size), () -> {
             Optional<World> optWorld = world.getLive();
             if (!optWorld.isPresent())
                 throw new InternalServerErrorException("Could not get live world");
 
             World live = optWorld.get();
-            List<CachedChunk> chunks = new ArrayList<>();
-
-            Iterable<Chunk> iterable = live.getLoadedChunks();
-            iterable.forEach(c -> chunks.add(new CachedChunk(c)));
-
-            return chunks;
+            return Page.of(live.getLoadedChunks(), (Chunk c) -> c.getPosition().getX() + "/" + c.getPosition().getZ(),
+                    after, size, CachedChunk::new);
         });
     }
 
@@ -56,12 +63,14 @@ public class ChunkServlet extends BaseServlet {
     @Permission("one")
     @ApiOperation(
             value = "Get a chunk",
+            response = CachedChunk.class,
             notes = "Get detailed information about a chunk")
-    public CachedChunk getChunkAt(
+    public void getChunkAt(
             @PathParam("world") @ApiParam("The uuid of the world in which to get the chunk") CachedWorld world,
             @PathParam("x") @ApiParam("The x-coordinate of the chunk (in chunk coordinates)") int x,
-            @PathParam("z") @ApiParam("The z-coordinate of the chunk (in chunk coordinates)") int z) {
-        return WebAPI.runOnMain(() -> {
+            @PathParam("z") @ApiParam("The z-coordinate of the chunk (in chunk coordinates)") int z,
+            @Suspended AsyncResponse asyncResponse) {
+        runOnMain(asyncResponse, () -> {
             Optional<World> optLive = world.getLive();
             if (!optLive.isPresent())
                 throw new InternalServerErrorException("Could not get live world");
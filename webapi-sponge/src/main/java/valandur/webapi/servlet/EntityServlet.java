@@ -25,11 +25,13 @@ import valandur.webapi.servlet.base.ExplicitDetails;
 import valandur.webapi.servlet.base.Permission;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
@@ -44,16 +46,42 @@ public class EntityServlet extends BaseServlet {
     @GET
     @ExplicitDetails
     @Permission("list")
-    @ApiOperation(value = "List entities", notes = "Get a list of all entities on the server (in all worlds).")
-    public Collection<CachedEntity> listEntities(
+    @ApiOperation(
+            value = "List entities",
+            response = CachedEntity.class,
+            responseContainer = "List",
+            notes = "Get a list of all entities on the server (in all worlds). When searching within a box " +
+                    "(min and max) or a radius, only the chunks in that area are searched. The entities are returned " +
+                    "in pages, see the X-Total-Count and X-Next-Cursor headers.")
+    public void listEntities(
             @QueryParam("world") @ApiParam("The world to filter the entities by") CachedWorld world,
             @QueryParam("type") @ApiParam("The type id of the entities to filter by") String typeId,
             @QueryParam("min") @ApiParam("The minimum coordinates at which the entity must be, min=x|y|z") Vector3i min,
             @QueryParam("max") @ApiParam("The maximum coordinates at which the entity must be, max=x|y|z") Vector3i max,
-            @QueryParam("limit") @ApiParam("The maximum amount of entities returned") int limit) {
+            @QueryParam("center") @ApiParam("The center of the radius within which the entity must be, " +
+                    "center=x|y|z") Vector3i center,
+            @QueryParam("radius") @ApiParam("The maximum distance of the entity from the center") Double radius,
+            @QueryParam("limit") @ApiParam("The maximum amount of entities on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor,
+            @Suspended AsyncResponse asyncResponse) {
         Predicate<Entity> filter = e -> typeId == null || e.getType().getId().equalsIgnoreCase(typeId);
 
-        return cacheService.getEntities(world, min, max, filter, limit);
+        // Only check the distance for entities within the box around the radius
+        Vector3i[] box = getSearchBox(min, max, center, radius);
+        if (radius != null) {
+            Vector3d pos = center.toDouble();
+            double radiusSquared = radius * radius;
+            filter = filter.and(e -> e.getLocation().getPosition().distanceSquared(pos) <= radiusSquared);
+        }
+
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
+        Predicate<Entity> finalFilter = filter;
+        Object key = Arrays.asList("entities", world != null ? world.getUUID() : null, typeId, min, max,
+                center, radius, after, size);
+        runOnMain(asyncResponse, key,
+                () -> cacheService.getEntityPage(world, box[0], box[1], finalFilter, after, size));
     }
 
     @GET
@@ -61,16 +89,20 @@ public class EntityServlet extends BaseServlet {
     @Permission("one")
     @ApiOperation(
             value = "Get entity",
+            response = CachedEntity.class,
             notes = "Get detailed information about an entity.")
-    public CachedEntity getEntity(
-            @PathParam("entity") @ApiParam("The uuid of the entity") UUID uuid)
+    public void getEntity(
+            @PathParam("entity") @ApiParam("The uuid of the entity") UUID uuid,
+            @Suspended AsyncResponse asyncResponse)
             throws NotFoundException {
-        Optional<CachedEntity> optEntity = WebAPI.getCacheService().getEntity(uuid);
-        if (!optEntity.isPresent()) {
-            throw new NotFoundException("Entity with UUID '" + uuid + "' could not be found");
-        }
+        runOnMain(asyncResponse, () -> {
+            Optional<CachedEntity> optEntity = cacheService.getEntity(uuid);
+            if (!optEntity.isPresent()) {
+                throw new NotFoundException("Entity with UUID '" + uuid + "' could not be found");
+            }
 
-        return optEntity.get();
+            return optEntity.get();
+        });
     }
 
     @PUT
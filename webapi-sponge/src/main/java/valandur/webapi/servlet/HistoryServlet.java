@@ -2,6 +2,7 @@ package valandur.webapi.servlet;
 
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import valandur.webapi.cache.command.CachedCommandCall;
 import valandur.webapi.cache.message.CachedMessage;
 import valandur.webapi.servlet.base.BaseServlet;
@@ -12,8 +13,9 @@ import javax.ws.rs.Consumes;
 import javax.ws.rs.GET;
 import javax.ws.rs.Path;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
-import java.util.List;
+import javax.ws.rs.core.Response;
 
 @Path("history")
 @Api(tags = { "History" }, value = "Provides access to the command and chat history.")
@@ -27,9 +29,15 @@ public class HistoryServlet extends BaseServlet {
     @Permission("cmd")
     @ApiOperation(
             value = "Get command history",
-            notes = "View a history of the server commands.")
-    public List<CachedCommandCall> getCommands() {
-        return cacheService.getCommandCalls();
+            response = CachedCommandCall.class,
+            responseContainer = "List",
+            notes = "View a history of the server commands, newest first. The commands are returned in pages, " +
+                    "see the X-Total-Count and X-Next-Cursor headers.")
+    public Response getCommands(
+            @QueryParam("limit") @ApiParam("The maximum amount of commands on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
+        return toResponse(cacheService.getCommandCalls(getPageStart(cursor), getPageSize(limit)));
     }
 
     @GET
@@ -38,8 +46,14 @@ public class HistoryServlet extends BaseServlet {
     @Permission("message")
     @ApiOperation(
             value = "Get message history",
-            notes = "View a history of the server messages.")
-    public List<CachedMessage> getChat() {
-        return cacheService.getMessages();
+            response = CachedMessage.class,
+            responseContainer = "List",
+            notes = "View a history of the server messages, newest first. The messages are returned in pages, " +
+                    "see the X-Total-Count and X-Next-Cursor headers.")
+    public Response getChat(
+            @QueryParam("limit") @ApiParam("The maximum amount of messages on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
+        return toResponse(cacheService.getMessages(getPageStart(cursor), getPageSize(limit)));
     }
 }
@@ -4,6 +4,7 @@ import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiModel;
 import io.swagger.annotations.ApiModelProperty;
 import io.swagger.annotations.ApiOperation;
+import io.swagger.annotations.ApiParam;
 import org.spongepowered.api.Platform;
 import org.spongepowered.api.Server;
 import org.spongepowered.api.Sponge;
@@ -11,14 +12,21 @@ import org.spongepowered.api.resourcepack.ResourcePack;
 import org.spongepowered.api.text.Text;
 import valandur.webapi.WebAPI;
 import valandur.webapi.cache.plugin.CachedPluginContainer;
+import valandur.webapi.hook.WebHookSender;
 import valandur.webapi.server.ServerService;
 import valandur.webapi.server.ServerStat;
+import valandur.webapi.server.StatsStore.Metric;
+import valandur.webapi.server.StatsStore.Resolution;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.MainThreadQueue;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
 import java.net.InetSocketAddress;
+import java.time.Instant;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -33,9 +41,10 @@ public class InfoServlet extends BaseServlet {
     @Permission("info")
     @ApiOperation(
             value = "Server info",
+            response = ServerInfo.class,
             notes = "Get general information about the Minecraft server.")
-    public ServerInfo getInfo() {
-        return WebAPI.runOnMain(ServerInfo::new);
+    public void getInfo(@Suspended AsyncResponse asyncResponse) {
+        runOnMain(asyncResponse, "info", ServerInfo::new);
     }
 
     @GET
@@ -44,12 +53,60 @@ public class InfoServlet extends BaseServlet {
     @ApiOperation(
             value = "Server stats",
             notes = "Get statistical information about the server, such as player count, " +
-                    "cpu and memory usage over time.")
-    public ServerStats getStats(@QueryParam("limit") Integer limit) {
-        if (limit != null) {
-            return new ServerStats(limit);
+                    "cpu and memory usage over time. Use the from, to and resolution parameters to get the values " +
+                    "in a time range, summarized per minute (MINUTE), per 15 minutes (QUARTER_HOUR) or per hour " +
+                    "(HOUR). If only the range is specified a suitable resolution is picked automatically.")
+    public ServerStats getStats(
+            @QueryParam("limit") @ApiParam("The maximum amount of values returned per stat") Integer limit,
+            @QueryParam("from") @ApiParam("The start of the time range as an epoch timestamp in seconds") Long from,
+            @QueryParam("to") @ApiParam("The end of the time range as an epoch timestamp in seconds") Long to,
+            @QueryParam("resolution") @ApiParam("The resolution of the returned values: " +
+                    "RAW, MINUTE, QUARTER_HOUR or HOUR") String resolution) {
+        if (from == null && to == null && resolution == null) {
+            return new ServerStats(limit != null ? limit : 0);
         }
-        return new ServerStats();
+
+        long end = to != null ? to : Instant.now().getEpochSecond();
+        long start = from != null ? from : 0;
+
+        Resolution res;
+        if (resolution != null) {
+            try {
+                res = Resolution.valueOf(resolution.toUpperCase());
+            } catch (IllegalArgumentException e) {
+                throw new BadRequestException("Unknown resolution " + resolution);
+            }
+        } else {
+            res = WebAPI.getServerService().getResolution(start, end);
+        }
+
+        return new ServerStats(res, start, end, limit != null ? limit : 0);
+    }
+
+    @GET
+    @Path("/queue")
+    @Permission("queue")
+    @ApiOperation(
+            value = "Main thread queue stats",
+            notes = "Get information about the queue of Web-API tasks waiting for the main server thread, " +
+                    "such as the queue depth, wait times and the time spent per tick.")
+    public MainThreadStats getQueueStats() {
+        return new MainThreadStats();
+    }
+
+    @GET
+    @Path("/hooks")
+    @Permission("hooks")
+    @ApiOperation(
+            value = "Web hook stats",
+            response = WebHookStats.class,
+            responseContainer = "List",
+            notes = "Get information about the requests sent to each web hook address, such as the queue depth, " +
+                    "failures and latency.")
+    public List<WebHookStats> getHookStats() {
+        return WebAPI.getWebHookService().getSender().getDestinations().stream()
+                .map(WebHookStats::new)
+                .collect(Collectors.toList());
     }
 
     @GET
@@ -171,6 +228,150 @@ public class InfoServlet extends BaseServlet {
         }
     }
 
+    @ApiModel("MainThreadStats")
+    public static class MainThreadStats {
+
+        private int size;
+        @ApiModelProperty(value = "The amount of tasks currently waiting for the main server thread", required = true)
+        public int getSize() {
+            return size;
+        }
+
+        private double budget;
+        @ApiModelProperty(value = "The time in milliseconds per tick that may be spent running tasks", required = true)
+        public double getBudget() {
+            return budget;
+        }
+
+        private double lastTickTime;
+        @ApiModelProperty(value = "The time in milliseconds spent running tasks during the last tick", required = true)
+        public double getLastTickTime() {
+            return lastTickTime;
+        }
+
+        private int lastTickTasks;
+        @ApiModelProperty(value = "The amount of tasks that were run during the last tick", required = true)
+        public int getLastTickTasks() {
+            return lastTickTasks;
+        }
+
+        private double lastWaitTime;
+        @ApiModelProperty(value = "The average time in milliseconds the tasks of the last tick waited", required = true)
+        public double getLastWaitTime() {
+            return lastWaitTime;
+        }
+
+        private double averageWaitTime;
+        @ApiModelProperty(value = "The average time in milliseconds all tasks waited", required = true)
+        public double getAverageWaitTime() {
+            return averageWaitTime;
+        }
+
+        private double maxWaitTime;
+        @ApiModelProperty(value = "The longest time in milliseconds that any task waited", required = true)
+        public double getMaxWaitTime() {
+            return maxWaitTime;
+        }
+
+        private long coalescedTasks;
+        @ApiModelProperty(value = "The total amount of requests that shared the result of another request", required = true)
+        public long getCoalescedTasks() {
+            return coalescedTasks;
+        }
+
+        private long totalTasks;
+        @ApiModelProperty(value = "The total amount of tasks that were run", required = true)
+        public long getTotalTasks() {
+            return totalTasks;
+        }
+
+
+        public MainThreadStats() {
+            MainThreadQueue queue = WebAPI.getMainThreadQueue();
+
+            this.size = queue.getSize();
+            this.budget = queue.getBudget();
+            this.lastTickTime = queue.getLastTickTime();
+            this.lastTickTasks = queue.getLastTickTasks();
+            this.lastWaitTime = queue.getLastWaitTime();
+            this.averageWaitTime = queue.getAverageWaitTime();
+            this.maxWaitTime = queue.getMaxWaitTime();
+            this.totalTasks = queue.getTotalTasks();
+            this.coalescedTasks = queue.getCoalescedTasks();
+        }
+    }
+
+    @ApiModel("WebHookStats")
+    public static class WebHookStats {
+
+        private String address;
+        @ApiModelProperty(value = "The address of the web hook", required = true)
+        public String getAddress() {
+            return address;
+        }
+
+        private int queued;
+        @ApiModelProperty(value = "The amount of requests waiting to be sent", required = true)
+        public int getQueued() {
+            return queued;
+        }
+
+        private int inFlight;
+        @ApiModelProperty(value = "The amount of requests currently being sent", required = true)
+        public int getInFlight() {
+            return inFlight;
+        }
+
+        private long sent;
+        @ApiModelProperty(value = "The total amount of requests that were sent (including failed ones)", required = true)
+        public long getSent() {
+            return sent;
+        }
+
+        private long failed;
+        @ApiModelProperty(value = "The total amount of requests that failed", required = true)
+        public long getFailed() {
+            return failed;
+        }
+
+        private long dropped;
+        @ApiModelProperty(value = "The total amount of requests that were dropped because the queue was full", required = true)
+        public long getDropped() {
+            return dropped;
+        }
+
+        private double lastLatency;
+        @ApiModelProperty(value = "The time in milliseconds the last request took", required = true)
+        public double getLastLatency() {
+            return lastLatency;
+        }
+
+        private double averageLatency;
+        @ApiModelProperty(value = "The average time in milliseconds the requests took", required = true)
+        public double getAverageLatency() {
+            return averageLatency;
+        }
+
+        private double maxLatency;
+        @ApiModelProperty(value = "The longest time in milliseconds any request took", required = true)
+        public double getMaxLatency() {
+            return maxLatency;
+        }
+
+
+        public WebHookStats(WebHookSender.Destination dest) {
+            this.address = dest.getAddress();
+            this.queued = dest.getQueued();
+            this.inFlight = dest.getInFlight();
+            this.sent = dest.getSent();
+            this.failed = dest.getFailed();
+            this.dropped = dest.getDropped();
+            this.lastLatency = dest.getLastLatency();
+            this.averageLatency = dest.getAverageLatency();
+            this.maxLatency = dest.getMaxLatency();
+        }
+    }
+
     @ApiModel("ServerStats")
         public static class ServerStats {
 
@@ -180,9 +381,9 @@ public class InfoServlet extends BaseServlet {
             return tps;
         }
 
-        private List<ServerStat<Integer>> players;
+        private List<? extends ServerStat<? extends Number>> players;
         @ApiModelProperty(value = "Historic values for the number of online players", required = true)
-        public List<ServerStat<Integer>> getPlayers() {
+        public List<? extends ServerStat<? extends Number>> getPlayers() {
             return players;
         }
 
@@ -205,19 +406,34 @@ public class InfoServlet extends BaseServlet {
         }
 
 
+        private Resolution resolution;
+        @ApiModelProperty("The resolution of the values, if a time range was requested")
+        public Resolution getResolution() {
+            return resolution;
+        }
+
+
         public ServerStats() {
-            this(Integer.MAX_VALUE);
+            this(0);
         }
         public ServerStats(int limit) {
             ServerService srv = WebAPI.getServerService();
-            int size = srv.getNumEntries();
-            int l = Math.min(limit, size);
-
-            this.tps = srv.getAverageTps().subList(size - l, size);
-            this.players = srv.getOnlinePlayers().subList(size - l, size);
-            this.cpu = srv.getCpuLoad().subList(size - l, size);
-            this.memory = srv.getMemoryLoad().subList(size - l, size);
-            this.disk = srv.getDiskUsage().subList(size - l, size);
+
+            this.tps = srv.getAverageTps(limit);
+            this.players = srv.getOnlinePlayers(limit);
+            this.cpu = srv.getCpuLoad(limit);
+            this.memory = srv.getMemoryLoad(limit);
+            this.disk = srv.getDiskUsage(limit);
+        }
+        public ServerStats(Resolution resolution, long from, long to, int limit) {
+            ServerService srv = WebAPI.getServerService();
+
+            this.resolution = resolution;
+            this.tps = srv.getStats(Metric.TPS, resolution, from, to, limit);
+            this.players = srv.getStats(Metric.PLAYERS, resolution, from, to, limit);
+            this.cpu = srv.getStats(Metric.CPU, resolution, from, to, limit);
+            this.memory = srv.getStats(Metric.MEMORY, resolution, from, to, limit);
+            this.disk = srv.getStats(Metric.DISK, resolution, from, to, limit);
         }
     }
 }
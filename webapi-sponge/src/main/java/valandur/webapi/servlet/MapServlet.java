@@ -1,54 +1,43 @@
 package valandur.webapi.servlet;
 
-import com.flowpowered.math.vector.Vector3i;
 import io.swagger.annotations.Api;
 import io.swagger.annotations.ApiOperation;
 import io.swagger.annotations.ApiParam;
 import valandur.webapi.WebAPI;
 import valandur.webapi.cache.world.CachedWorld;
-import valandur.webapi.config.BaseConfig;
-import valandur.webapi.config.MapConfig;
+import valandur.webapi.map.MapService;
+import valandur.webapi.map.MapTile;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.Permission;
 
-import javax.imageio.ImageIO;
 import javax.inject.Singleton;
 import javax.ws.rs.*;
-import javax.ws.rs.core.CacheControl;
-import javax.ws.rs.core.MediaType;
-import javax.ws.rs.core.Response;
-import javax.ws.rs.core.StreamingOutput;
-import java.awt.*;
-import java.awt.image.BufferedImage;
-import java.io.File;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
+import javax.ws.rs.core.*;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @Singleton
 @Path("map")
-@Api(tags = { "Map" }, value = "Get maps of the biomes for each world on the server")
+@Api(tags = { "Map" }, value = "Get maps of the biomes and surface for each world on the server")
 @Produces({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
 @Consumes({ MediaType.APPLICATION_JSON, MediaType.APPLICATION_XML })
 public class MapServlet extends BaseServlet {
 
-    private static final String configFileName = "map.conf";
+    // The number of seconds after which clients should ask again for a tile that is still being rendered
+    private static final int RETRY_AFTER = 2;
 
-    private static int TILE_SIZE = 512;
-    private static int HALF_TILE_SIZE = TILE_SIZE / 2;
-    private Map<String, String> biomeColorMap = new ConcurrentHashMap<>();
+    private MapService mapService;
 
 
     public MapServlet() {
-        biomeColorMap.clear();
-
-        java.nio.file.Path configPath = WebAPI.getConfigPath().resolve(configFileName).normalize();
-        MapConfig config = BaseConfig.load(configPath, new MapConfig());
-
-        config.save(); // Save in case we don't have the default values yet
-        biomeColorMap.putAll(config.biomeColors);
+        mapService = WebAPI.getMapService();
     }
 
     @GET
@@ -57,65 +46,86 @@ public class MapServlet extends BaseServlet {
     @Produces("image/png")
     @ApiOperation(
             value = "Get a map tile",
-            notes = "Returns an image representing the biomes of the blocks within the specified tile")
-    public Response getMap(
+            notes = "Returns an image representing the biomes or the surface of the blocks within the " +
+                    "specified tile. If the tile is still being rendered, or too many tiles are being rendered, this returns " +
+                    "202 with a Retry-After header instead.")
+    public void getMap(
             @PathParam("world") @ApiParam("The world to get the map tile from") CachedWorld world,
             @PathParam("x") @ApiParam("The x-coordinate of the tile (is multiplied by the TILE_SIZE)") int x,
-            @PathParam("z") @ApiParam("The z-coordinate of the tile (is multiplied by the TILE_SIZE)") int z) {
-        int bX = TILE_SIZE * x;
-        int bZ = TILE_SIZE * z;
-        Vector3i min = new Vector3i(bX - HALF_TILE_SIZE, 0, bZ - HALF_TILE_SIZE);
-        Vector3i max = new Vector3i(bX + HALF_TILE_SIZE, 0, bZ + HALF_TILE_SIZE);
-
-        String fileName = "tile-x" + x + "z" + z + ".png";
-        java.nio.file.Path filePath = Paths.get("webapi/cache/" + world.getUUID() + "/" + fileName);
-        if (!filePath.getParent().toFile().exists())
-            filePath.getParent().toFile().mkdirs();
-
-        CacheControl cc = new CacheControl();
-        cc.setMaxAge(31536000);
-
-        if (Files.exists(filePath)) {
-            return Response.ok((StreamingOutput) output -> {
-                BufferedImage img = ImageIO.read(filePath.toFile());
-                ImageIO.write(img, "PNG", output);
-            }).cacheControl(cc).build();
+            @PathParam("z") @ApiParam("The z-coordinate of the tile (is multiplied by the TILE_SIZE)") int z,
+            @QueryParam("zoom") @DefaultValue("0")
+            @ApiParam("The zoom level of the tile. Each level covers twice the area of the level below") int zoom,
+            @QueryParam("layer") @DefaultValue("BIOME")
+            @ApiParam("The layer of the map: BIOME or SURFACE") String layer,
+            @Context Request request,
+            @Suspended AsyncResponse asyncResponse) {
+        if (zoom < 0 || zoom > mapService.getMaxZoom()) {
+            throw new BadRequestException("Zoom has to be between 0 and " + mapService.getMaxZoom());
         }
 
-        String[][] biomes = blockService.getBiomes(world, min, max);
-        BufferedImage img = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_INT_ARGB);
-        Graphics2D g2 = img.createGraphics();
-
-        for (int i = 0; i < biomes.length; i++) {
-            for (int j = 0; j < biomes[i].length; j++) {
-                String biome = biomes[i][j];
-                String hexColor = biomeColorMap.get(biome);
-
-                if (hexColor == null)
-                    hexColor = biomeColorMap.get(biome.replace("mutated_", ""));
+        MapTile.Layer mapLayer;
+        try {
+            mapLayer = MapTile.Layer.valueOf(layer.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Unknown layer " + layer);
+        }
 
-                if (hexColor == null) {
-                    WebAPI.getLogger().info("No color for biome: " + biome + ". You can set one in the map.conf file");
+        MapTile tile = new MapTile(world.getUUID(), mapLayer, zoom, x, z);
+        CompletableFuture<java.nio.file.Path> future = mapService.requestTile(world, tile);
 
-                    hexColor = "FFFFFF";
-                    biomeColorMap.put(biome, hexColor);
-                }
+        // The tile keeps rendering when the request times out, so that it is cached when the client retries
+        asyncResponse.setTimeoutHandler(r -> r.resume(retryLater()));
+        asyncResponse.setTimeout(mapService.getRenderTimeout(), TimeUnit.MILLISECONDS);
 
-                g2.setColor(Color.decode("#" + hexColor));
-                g2.fillRect(i * 4, img.getHeight() - j * 4, 4, 4);
+        future.whenComplete((path, err) -> {
+            if (asyncResponse.isDone()) {
+                return;
             }
-        }
 
-        g2.dispose();
+            if (err instanceof RejectedExecutionException) {
+                asyncResponse.resume(retryLater());
+            } else if (err != null) {
+                WebAPI.getLogger().warn("Could not render map tile: " + err.getMessage());
+                asyncResponse.resume(new InternalServerErrorException("Could not render map tile"));
+            } else {
+                asyncResponse.resume(serveTile(request, path));
+            }
+        });
+    }
 
+    /**
+     * Streams the cached tile as it is stored on disk. Tiles are replaced atomically when they are rendered
+     * again, so the ETag is based on the modification time and size of the file.
+     */
+    private Response serveTile(Request request, java.nio.file.Path path) {
+        BasicFileAttributes attrs;
         try {
-            ImageIO.write(img, "PNG", new File(filePath.toString()));
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
         } catch (IOException e) {
-            throw new InternalServerErrorException("Could not save tile image");
+            WebAPI.getLogger().warn("Could not read map tile " + path + ": " + e.getMessage());
+            return Response.serverError().build();
+        }
+
+        Date lastModified = new Date(attrs.lastModifiedTime().toMillis());
+        EntityTag etag = new EntityTag(
+                Long.toHexString(attrs.lastModifiedTime().toMillis()) + "-" + Long.toHexString(attrs.size()));
+
+        CacheControl cc = new CacheControl();
+        cc.setMaxAge(mapService.getTileMaxAge());
+
+        Response.ResponseBuilder notModified = request.evaluatePreconditions(lastModified, etag);
+        if (notModified != null) {
+            return notModified.cacheControl(cc).build();
         }
 
-        return Response.ok((StreamingOutput) output -> {
-            ImageIO.write(img, "PNG", output);
-        }).cacheControl(cc).build();
+        return Response.ok((StreamingOutput) output -> Files.copy(path, output))
+                .lastModified(lastModified)
+                .tag(etag)
+                .cacheControl(cc)
+                .build();
+    }
+
+    private Response retryLater() {
+        return Response.accepted().header(HttpHeaders.RETRY_AFTER, RETRY_AFTER).build();
     }
 }
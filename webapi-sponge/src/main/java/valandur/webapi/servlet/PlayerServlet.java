@@ -19,10 +19,11 @@ import valandur.webapi.serialize.objects.ExecuteMethodResponse;
 import valandur.webapi.servlet.base.BaseServlet;
 import valandur.webapi.servlet.base.ExplicitDetails;
 import valandur.webapi.servlet.base.Permission;
+import valandur.webapi.util.Page;
 
 import javax.ws.rs.*;
 import javax.ws.rs.core.MediaType;
-import java.util.Collection;
+import javax.ws.rs.core.Response;
 import java.util.Optional;
 
 @Path("player")
@@ -36,9 +37,16 @@ public class PlayerServlet extends BaseServlet {
     @Permission("list")
     @ApiOperation(
             value = "List players",
-            notes = "Get a list of all the players on the server.")
-    public Collection<CachedPlayer> listPlayers() {
-        return cacheService.getPlayers();
+            response = CachedPlayer.class,
+            responseContainer = "List",
+            notes = "Get a list of all the players on the server. The players are returned in pages, see the " +
+                    "X-Total-Count and X-Next-Cursor headers.")
+    public Response listPlayers(
+            @QueryParam("limit") @ApiParam("The maximum amount of players on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor) {
+        return toResponse(Page.of(cacheService.getPlayers(), (CachedPlayer p) -> p.getUUID().toString(),
+                getPageStart(cursor), getPageSize(limit), p -> p));
     }
 
     @GET
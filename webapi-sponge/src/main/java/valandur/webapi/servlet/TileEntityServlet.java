@@ -17,8 +17,10 @@ import valandur.webapi.servlet.base.ExplicitDetails;
 import valandur.webapi.servlet.base.Permission;
 
 import javax.ws.rs.*;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.container.Suspended;
 import javax.ws.rs.core.MediaType;
-import java.util.Collection;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Optional;
 import java.util.function.Predicate;
@@ -34,17 +36,41 @@ public class TileEntityServlet extends BaseServlet {
     @Permission("list")
     @ApiOperation(
             value = "List tile entities",
-            notes = "Get a list of all tile entities on the server (in all worlds, unless specified).")
-    public Collection<CachedTileEntity> listTileEntities(
+            response = CachedTileEntity.class,
+            responseContainer = "List",
+            notes = "Get a list of all tile entities on the server (in all worlds, unless specified). When " +
+                    "searching within a box (min and max) or a radius, only the chunks in that area are searched. " +
+                    "The tile entities are returned in pages, see the X-Total-Count and X-Next-Cursor headers.")
+    public void listTileEntities(
             @QueryParam("world") @ApiParam("The world to filter tile entities by") CachedWorld world,
             @QueryParam("type") @ApiParam("The type if of tile entities to filter by") String typeId,
             @QueryParam("min") @ApiParam("The minimum coordinates at which the tile entity must be, min=x|y|z") Vector3i min,
             @QueryParam("max") @ApiParam("The maximum coordinates at which the tile entity must be, max=x|y|z") Vector3i max,
-            @QueryParam("limit") @ApiParam("The maximum amount of tile entities returned") int limit) {
+            @QueryParam("center") @ApiParam("The center of the radius within which the tile entity must be, " +
+                    "center=x|y|z") Vector3i center,
+            @QueryParam("radius") @ApiParam("The maximum distance of the tile entity from the center") Double radius,
+            @QueryParam("limit") @ApiParam("The maximum amount of tile entities on one page") int limit,
+            @QueryParam("cursor") @ApiParam("The cursor of the page, from the X-Next-Cursor header of the " +
+                    "previous page") String cursor,
+            @Suspended AsyncResponse asyncResponse) {
 
         Predicate<TileEntity> filter = te -> typeId == null || te.getType().getId().equalsIgnoreCase(typeId);
 
-        return cacheService.getTileEntities(world, min, max, filter, limit);
+        // Only check the distance for tile entities within the box around the radius
+        Vector3i[] box = getSearchBox(min, max, center, radius);
+        if (radius != null) {
+            double radiusSquared = radius * radius;
+            filter = filter.and(te ->
+                    te.getLocation().getBlockPosition().distanceSquared(center) <= radiusSquared);
+        }
+
+        String after = getPageStart(cursor);
+        int size = getPageSize(limit);
+        Predicate<TileEntity> finalFilter = filter;
+        Object key = Arrays.asList("tile-entities", world != null ? world.getUUID() : null, typeId, min, max,
+                center, radius, after, size);
+        runOnMain(asyncResponse, key,
+                () -> cacheService.getTileEntityPage(world, box[0], box[1], finalFilter, after, size));
     }
 
     @GET
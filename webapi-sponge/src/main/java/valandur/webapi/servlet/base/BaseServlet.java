@@ -1,12 +1,28 @@
 package valandur.webapi.servlet.base;
 
+import com.flowpowered.math.vector.Vector3d;
+import com.flowpowered.math.vector.Vector3i;
 import valandur.webapi.WebAPI;
 import valandur.webapi.block.BlockService;
 import valandur.webapi.cache.CacheService;
 import valandur.webapi.message.InteractiveMessageService;
+import valandur.webapi.util.Page;
+
+import javax.ws.rs.BadRequestException;
+import javax.ws.rs.ServiceUnavailableException;
+import javax.ws.rs.container.AsyncResponse;
+import javax.ws.rs.core.Response;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 public abstract class BaseServlet {
 
+    public static final String TOTAL_COUNT_HEADER = "X-Total-Count";
+    public static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+
     protected BlockService blockService;
     protected CacheService cacheService;
     protected InteractiveMessageService messageService;
@@ -19,4 +35,131 @@ public abstract class BaseServlet {
         messageService = WebAPI.getMessageService();
         servletService = WebAPI.getServletService();
     }
+
+    /**
+     * Runs the supplier on the main server thread and resumes the suspended request with the result. This
+     * doesn't block the request thread while the main thread is busy. The result is serialized on an
+     * async thread, not on the main server thread. A {@link Page} is sent as described in
+     * {@link #toResponse(Page)}.
+     * @param asyncResponse The suspended response of the request.
+     * @param supplier The supplier which is run on the main server thread.
+     * @param <T> The type of the result.
+     */
+    protected <T> void runOnMain(AsyncResponse asyncResponse, Supplier<T> supplier) {
+        runOnMain(asyncResponse, null, supplier);
+    }
+
+    /**
+     * Same as {@link #runOnMain(AsyncResponse, Supplier)}, but concurrent requests with an equal key share
+     * the result of one execution of the supplier. Use this for read-only requests, and make sure the key
+     * contains all the parameters that affect the result.
+     * @param asyncResponse The suspended response of the request.
+     * @param key The key identifying the result.
+     * @param supplier The supplier which is run on the main server thread.
+     * @param <T> The type of the result.
+     */
+    protected <T> void runOnMain(AsyncResponse asyncResponse, Object key, Supplier<T> supplier) {
+        CompletableFuture<T> future = WebAPI.runOnMainAsync(key, supplier);
+
+        asyncResponse.setTimeoutHandler(r -> {
+            future.cancel(false);
+            r.resume(new ServiceUnavailableException("Timed out waiting for the main server thread"));
+        });
+        asyncResponse.setTimeout(WebAPI.getMainThreadTimeout(), TimeUnit.MILLISECONDS);
+
+        future.whenCompleteAsync((res, err) -> {
+            // The request might have timed out already
+            if (future.isCancelled() || asyncResponse.isDone()) {
+                return;
+            }
+
+            if (err != null) {
+                asyncResponse.resume(WebAPI.asWebApplicationException(err));
+            } else {
+                asyncResponse.resume(res instanceof Page ? toResponse((Page<?>)res) : res);
+            }
+        }, WebAPI.getAsyncExecutor());
+    }
+
+    /**
+     * Gets the amount of objects on a page, for the limit requested by the client.
+     * @param limit The limit requested by the client, or 0 if no limit was requested.
+     * @return The amount of objects on the page, which is at most the configured maximum page size.
+     */
+    protected int getPageSize(int limit) {
+        int max = WebAPI.getMaxPageSize();
+        return limit > 0 ? Math.min(limit, max) : max;
+    }
+
+    /**
+     * Gets the key after which the page starts, from the cursor sent by the client.
+     * @param cursor The cursor from the {@value #NEXT_CURSOR_HEADER} header of the previous page, or {@code null}.
+     * @return The key after which the page starts, or {@code null} for the first page.
+     * @throws BadRequestException If the cursor is invalid.
+     */
+    protected String getPageStart(String cursor) throws BadRequestException {
+        if (cursor == null || cursor.isEmpty()) {
+            return null;
+        }
+
+        try {
+            return new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            throw new BadRequestException("Invalid cursor: " + cursor);
+        }
+    }
+
+    /**
+     * Gets the box that has to be searched for objects within the bounds and radius requested by the client.
+     * The bounds are sorted first, so that min is smaller than max on every axis. When a radius is given the box
+     * is limited to the box around the radius, which is computed with doubles so that a big radius doesn't
+     * overflow the coordinates. Objects in the box still have to be checked against the radius.
+     * @param min The minimum coordinates requested by the client, or {@code null}.
+     * @param max The maximum coordinates requested by the client, or {@code null}.
+     * @param center The center of the radius, or {@code null}.
+     * @param radius The radius around the center, or {@code null} to search without a radius.
+     * @return An array containing the minimum and maximum coordinates of the box, each of which might be
+     * {@code null} if the box is unbounded in that direction.
+     * @throws BadRequestException If the radius is invalid, or given without a center.
+     */
+    protected Vector3i[] getSearchBox(Vector3i min, Vector3i max, Vector3i center, Double radius)
+            throws BadRequestException {
+        Vector3i boxMin = min != null && max != null ? min.min(max) : min;
+        Vector3i boxMax = min != null && max != null ? min.max(max) : max;
+        if (radius == null) {
+            return new Vector3i[] { boxMin, boxMax };
+        }
+
+        if (center == null) {
+            throw new BadRequestException("Center is required when searching within a radius");
+        }
+        if (radius.isNaN() || radius.isInfinite() || radius < 0) {
+            throw new BadRequestException("Radius must be a finite number that isn't negative");
+        }
+
+        Vector3d c = center.toDouble();
+        Vector3i rMin = c.sub(radius, radius, radius).floor().toInt();
+        Vector3i rMax = c.add(radius, radius, radius).ceil().toInt();
+        return new Vector3i[] {
+                boxMin != null ? boxMin.max(rMin) : rMin,
+                boxMax != null ? boxMax.min(rMax) : rMax,
+        };
+    }
+
+    /**
+     * Creates the response for a page. The body is the list of objects on the page, the total amount of objects
+     * is sent in the {@value #TOTAL_COUNT_HEADER} header, and the cursor of the next page in the
+     * {@value #NEXT_CURSOR_HEADER} header, which is missing on the last page.
+     * @param page The page.
+     * @return The response.
+     */
+    protected Response toResponse(Page<?> page) {
+        Response.ResponseBuilder builder = Response.ok(page.getItems())
+                .header(TOTAL_COUNT_HEADER, page.getTotal());
+        if (page.getNextKey() != null) {
+            builder.header(NEXT_CURSOR_HEADER, Base64.getUrlEncoder().withoutPadding()
+                    .encodeToString(page.getNextKey().getBytes(StandardCharsets.UTF_8)));
+        }
+        return builder.build();
+    }
 }
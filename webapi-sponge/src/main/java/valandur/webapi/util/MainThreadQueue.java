@@ -0,0 +1,298 @@
+package valandur.webapi.util;
+
+import org.spongepowered.api.scheduler.Task;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Collects all the work that the Web-API has to do on the main server thread, and runs it once per tick.
+ * Each tick only runs tasks until the configured time budget is used up, the remaining tasks are carried over
+ * to the next tick. At least one task is run per tick, so the queue always makes progress.
+ * Tasks submitted with a key are coalesced: while a task with the same key is waiting, further submissions
+ * share its result instead of adding another task.
+ */
+public class MainThreadQueue {
+
+    private Queue<QueuedTask<?>> queue = new ConcurrentLinkedQueue<>();
+    private Map<Object, QueuedTask<?>> pending = new ConcurrentHashMap<>();
+    private AtomicInteger size = new AtomicInteger();
+    private AtomicLong coalescedTasks = new AtomicLong();
+    private long budgetNanos = TimeUnit.MILLISECONDS.toNanos(5);
+    private Task task;
+
+    // Metrics (only written from the main thread)
+    private volatile long lastTickNanos;
+    private volatile int lastTickTasks;
+    private volatile long lastWaitNanos;
+    private volatile long maxWaitNanos;
+    private volatile long totalTasks;
+    private volatile long totalWaitNanos;
+
+
+    /**
+     * Starts draining the queue once per tick.
+     * @param plugin The plugin that owns the scheduled task.
+     */
+    public void start(Object plugin) {
+        if (task != null) {
+            task.cancel();
+        }
+
+        task = Task.builder().execute(this::drain)
+                .intervalTicks(1)
+                .name("Web-API - Main thread queue")
+                .submit(plugin);
+    }
+
+    /**
+     * Sets the maximum amount of time per tick that is spent running tasks of this queue.
+     * @param budget The time budget.
+     * @param unit The unit of the time budget.
+     */
+    public void setBudget(long budget, TimeUnit unit) {
+        this.budgetNanos = unit.toNanos(budget);
+    }
+
+    /**
+     * Adds the supplier to the queue. It is run on the main server thread during one of the next ticks.
+     * Cancelling the returned future before the task was started removes the task from the queue.
+     * @param supplier The supplier to run on the main server thread.
+     * @param <T> The type of the result.
+     * @return A future that completes with the result of the supplier.
+     */
+    public <T> CompletableFuture<T> submit(Supplier<T> supplier) {
+        QueuedTask<T> task = new QueuedTask<>(null, supplier);
+        enqueue(task);
+        return task.future;
+    }
+
+    /**
+     * Adds the supplier to the queue, unless a task with an equal key is already waiting, in which case the
+     * result of that task is shared. The key must identify the result completely (e.g. all the parameters
+     * of the request), and the result must be safe to share between threads. Cancelling the returned future
+     * does not affect other callers, the task is only removed from the queue once all its callers cancelled.
+     * @param key The key which identifies the result of the supplier, or null to never share the result.
+     * @param supplier The supplier to run on the main server thread.
+     * @param <T> The type of the result.
+     * @return A future that completes with the result of the supplier.
+     */
+    public <T> CompletableFuture<T> submit(Object key, Supplier<T> supplier) {
+        if (key == null) {
+            return submit(supplier);
+        }
+
+        while (true) {
+            QueuedTask<T> task = new QueuedTask<>(key, supplier);
+            QueuedTask<T> existing = (QueuedTask<T>)pending.putIfAbsent(key, task);
+            if (existing != null) {
+                task = existing;
+            } else {
+                enqueue(task);
+            }
+
+            // The last caller of the task might have cancelled it just now, in which case we need a new one
+            if (!task.addWaiter()) {
+                pending.remove(key, task);
+                continue;
+            }
+            if (existing != null) {
+                coalescedTasks.incrementAndGet();
+            }
+
+            // Each caller gets it's own future, so that one caller cancelling doesn't cancel the others
+            QueuedTask<T> t = task;
+            CompletableFuture<T> future = task.future.thenApply(Function.identity());
+            future.whenComplete((res, err) -> {
+                if (future.isCancelled()) {
+                    t.removeWaiter();
+                }
+            });
+            return future;
+        }
+    }
+
+    private void enqueue(QueuedTask<?> task) {
+        size.incrementAndGet();
+        queue.add(task);
+
+        // Cancelled tasks leave the queue right away, so they don't count towards the size of the queue
+        task.future.whenComplete((res, err) -> {
+            if (task.future.isCancelled()) {
+                if (task.key != null) {
+                    pending.remove(task.key, task);
+                }
+                if (queue.remove(task)) {
+                    size.decrementAndGet();
+                }
+            }
+        });
+    }
+
+    private void drain() {
+        Timings.MAIN_THREAD_QUEUE.startTiming();
+
+        long start = System.nanoTime();
+        int tasks = 0;
+        long waitSum = 0;
+        long waitMax = maxWaitNanos;
+
+        QueuedTask<?> next;
+        while ((next = queue.poll()) != null) {
+            size.decrementAndGet();
+            if (next.key != null) {
+                // Callers arriving from now on must wait for a new snapshot
+                pending.remove(next.key, next);
+            }
+
+            // Skip tasks that were cancelled (e.g. because the request timed out)
+            if (next.future.isDone()) {
+                continue;
+            }
+
+            long wait = System.nanoTime() - next.queuedAt;
+            waitSum += wait;
+            waitMax = Math.max(waitMax, wait);
+            tasks++;
+
+            next.run();
+
+            if (System.nanoTime() - start >= budgetNanos) {
+                break;
+            }
+        }
+
+        lastTickNanos = System.nanoTime() - start;
+        lastTickTasks = tasks;
+        if (tasks > 0) {
+            lastWaitNanos = waitSum / tasks;
+            maxWaitNanos = waitMax;
+            totalTasks += tasks;
+            totalWaitNanos += waitSum;
+        }
+
+        Timings.MAIN_THREAD_QUEUE.stopTiming();
+    }
+
+    /**
+     * Gets the amount of tasks currently waiting to be run.
+     * @return The amount of waiting tasks.
+     */
+    public int getSize() {
+        return size.get();
+    }
+
+    /**
+     * Gets the time budget per tick.
+     * @return The time budget per tick in milliseconds.
+     */
+    public double getBudget() {
+        return budgetNanos / 1000000.0;
+    }
+
+    /**
+     * Gets the time spent running tasks during the last tick.
+     * @return The time spent during the last tick in milliseconds.
+     */
+    public double getLastTickTime() {
+        return lastTickNanos / 1000000.0;
+    }
+
+    /**
+     * Gets the amount of tasks that were run during the last tick.
+     * @return The amount of tasks run during the last tick.
+     */
+    public int getLastTickTasks() {
+        return lastTickTasks;
+    }
+
+    /**
+     * Gets the average time that the tasks run during the last tick waited in the queue.
+     * @return The average wait time in milliseconds.
+     */
+    public double getLastWaitTime() {
+        return lastWaitNanos / 1000000.0;
+    }
+
+    /**
+     * Gets the average time that all tasks waited in the queue.
+     * @return The average wait time in milliseconds.
+     */
+    public double getAverageWaitTime() {
+        long total = totalTasks;
+        return total > 0 ? totalWaitNanos / (double)total / 1000000.0 : 0;
+    }
+
+    /**
+     * Gets the longest time that any task waited in the queue.
+     * @return The maximum wait time in milliseconds.
+     */
+    public double getMaxWaitTime() {
+        return maxWaitNanos / 1000000.0;
+    }
+
+    /**
+     * Gets the total amount of tasks that were run.
+     * @return The total amount of tasks.
+     */
+    public long getTotalTasks() {
+        return totalTasks;
+    }
+
+    /**
+     * Gets the total amount of submissions that shared the result of an already waiting task.
+     * @return The total amount of coalesced submissions.
+     */
+    public long getCoalescedTasks() {
+        return coalescedTasks.get();
+    }
+
+    private static class QueuedTask<T> {
+        private final Object key;
+        private final Supplier<T> supplier;
+        private final CompletableFuture<T> future = new CompletableFuture<>();
+        private final long queuedAt = System.nanoTime();
+        // The amount of callers waiting for a keyed task, or -1 once the task was cancelled
+        private final AtomicInteger waiters = new AtomicInteger();
+
+        private QueuedTask(Object key, Supplier<T> supplier) {
+            this.key = key;
+            this.supplier = supplier;
+        }
+
+        private boolean addWaiter() {
+            int w;
+            do {
+                w = waiters.get();
+                if (w < 0) {
+                    return false;
+                }
+            } while (!waiters.compareAndSet(w, w + 1));
+            return true;
+        }
+
+        private void removeWaiter() {
+            if (waiters.decrementAndGet() == 0 && waiters.compareAndSet(0, -1)) {
+                future.cancel(false);
+            }
+        }
+
+        private void run() {
+            Timings.RUN_ON_MAIN.startTiming();
+            try {
+                future.complete(supplier.get());
+            } catch (Throwable t) {
+                future.completeExceptionally(t);
+            }
+            Timings.RUN_ON_MAIN.stopTiming();
+        }
+    }
+}
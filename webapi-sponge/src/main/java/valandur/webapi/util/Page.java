@@ -0,0 +1,151 @@
+package valandur.webapi.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * One page of a collection. The objects of the collection are ordered by a unique string key, and each page
+ * contains the objects following the last key of the previous page. This keeps the pages stable while objects
+ * are added to or removed from the collection, unlike pages based on an offset.
+ * @param <T> The type of objects on the page.
+ */
+public class Page<T> {
+
+    private final List<T> items;
+    private final int total;
+    private final String nextKey;
+
+
+    public Page(List<T> items, int total, String nextKey) {
+        this.items = items;
+        this.total = total;
+        this.nextKey = nextKey;
+    }
+
+    /**
+     * Gets the objects on this page, ordered by their key.
+     * @return The objects on this page.
+     */
+    public List<T> getItems() {
+        return items;
+    }
+
+    /**
+     * Gets the total amount of objects in the collection, on all pages.
+     * @return The total amount of objects.
+     */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Gets the key after which the next page starts.
+     * @return The key of the last object on this page, or {@code null} if this is the last page.
+     */
+    public String getNextKey() {
+        return nextKey;
+    }
+
+    /**
+     * Gets one page of the specified collection.
+     * @param source The objects of the collection.
+     * @param key The function that returns the unique key of an object.
+     * @param after The key after which the page starts, or {@code null} for the first page.
+     * @param limit The maximum amount of objects on the page.
+     * @param snapshot The function that is called for each object on the page, to get the object that is returned.
+     * @param <S> The type of objects in the collection.
+     * @param <T> The type of objects on the page.
+     * @return The page.
+     */
+    public static <S, T> Page<T> of(Iterable<? extends S> source, Function<S, String> key, String after, int limit,
+                                    Function<S, T> snapshot) {
+        Builder<S> builder = new Builder<>(key, after, limit);
+        for (S obj : source) {
+            builder.add(obj);
+        }
+        return builder.build(snapshot);
+    }
+
+    /**
+     * Gets a key for a non-negative number, which orders bigger numbers before smaller numbers. Use this to order
+     * collections newest first by a sequence number.
+     * @param value The number.
+     * @return The key for the number.
+     */
+    public static String descendingKey(long value) {
+        return String.format("%016x", Long.MAX_VALUE - value);
+    }
+
+
+    /**
+     * Collects the objects of one page, while keeping only as many objects as fit on the page.
+     * @param <S> The type of objects in the collection.
+     */
+    public static class Builder<S> {
+
+        private final Function<S, String> key;
+        private final String after;
+        private final int limit;
+
+        // The objects with the smallest keys after the start of the page, with the biggest key at the head
+        private final PriorityQueue<Map.Entry<String, S>> items;
+        private int total;
+        private int remaining;
+
+
+        /**
+         * Creates a new page builder.
+         * @param key The function that returns the unique key of an object.
+         * @param after The key after which the page starts, or {@code null} for the first page.
+         * @param limit The maximum amount of objects on the page.
+         */
+        public Builder(Function<S, String> key, String after, int limit) {
+            this.key = key;
+            this.after = after;
+            this.limit = Math.max(1, limit);
+            this.items = new PriorityQueue<>(Math.min(this.limit, 1024) + 1,
+                    Map.Entry.<String, S>comparingByKey().reversed());
+        }
+
+        /**
+         * Adds an object of the collection. Objects that aren't on this page are only counted.
+         * @param obj The object to add.
+         */
+        public void add(S obj) {
+            total++;
+
+            String k = key.apply(obj);
+            if (after != null && k.compareTo(after) <= 0) {
+                return;
+            }
+
+            remaining++;
+            if (items.size() < limit) {
+                items.add(new AbstractMap.SimpleImmutableEntry<>(k, obj));
+            } else if (k.compareTo(items.peek().getKey()) < 0) {
+                items.poll();
+                items.add(new AbstractMap.SimpleImmutableEntry<>(k, obj));
+            }
+        }
+
+        /**
+         * Builds the page. The snapshot function is only called for the objects on the page.
+         * @param snapshot The function that is called for each object on the page, to get the object that is
+         *                 returned.
+         * @param <T> The type of objects on the page.
+         * @return The page.
+         */
+        public <T> Page<T> build(Function<S, T> snapshot) {
+            List<Map.Entry<String, S>> entries = new ArrayList<>(items);
+            entries.sort(Map.Entry.comparingByKey());
+
+            List<T> res = new ArrayList<>(entries.size());
+            for (Map.Entry<String, S> entry : entries) {
+                res.add(snapshot.apply(entry.getValue()));
+            }
+
+            String nextKey = remaining > entries.size() ? entries.get(entries.size() - 1).getKey() : null;
+            return new Page<>(res, total, nextKey);
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package valandur.webapi.util;
+
+import java.util.*;
+import java.util.function.Function;
+
+/**
+ * A fixed size array which stores each distinct value only once in a palette, and the palette index of each
+ * entry in a bit-packed long array (similar to the block storage of minecraft chunk sections).
+ * As long as all entries have the same value no index array is allocated at all.
+ * @param <T> The type of values.
+ */
+public class PaletteArray<T> {
+
+    private final int size;
+    private final List<T> palette;
+    private final Map<T, Integer> ids;
+    private int bits;
+    private long[] data;
+
+
+    /**
+     * Creates a new array where all entries are null.
+     * @param size The amount of entries.
+     */
+    public PaletteArray(int size) {
+        this(size, null);
+    }
+
+    /**
+     * Creates a new array where all entries are set to the specified value.
+     * @param size The amount of entries.
+     * @param fill The initial value of all the entries.
+     */
+    public PaletteArray(int size, T fill) {
+        this.size = size;
+        this.palette = new ArrayList<>();
+        this.ids = new HashMap<>();
+        this.palette.add(fill);
+        this.ids.put(fill, 0);
+    }
+
+    /**
+     * Creates a new array from an existing palette and packed index data.
+     * @param size The amount of entries.
+     * @param palette The palette of values.
+     * @param bits The amount of bits used per entry.
+     * @param data The packed palette indices.
+     */
+    public PaletteArray(int size, List<T> palette, int bits, long[] data) {
+        this.size = size;
+        this.palette = new ArrayList<>(palette);
+        this.ids = new HashMap<>();
+        for (int i = 0; i < this.palette.size(); i++) {
+            this.ids.putIfAbsent(this.palette.get(i), i);
+        }
+        this.bits = bits;
+        this.data = bits > 0 ? data : null;
+    }
+
+    /**
+     * Gets the amount of entries in this array.
+     * @return The size of this array.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the distinct values in this array.
+     * @return The palette of this array.
+     */
+    public List<T> getPalette() {
+        return Collections.unmodifiableList(palette);
+    }
+
+    /**
+     * Gets the amount of bits used to store the palette index of each entry.
+     * @return The amount of bits per entry, or 0 if all entries have the same value.
+     */
+    public int getBits() {
+        return bits;
+    }
+
+    /**
+     * Gets the packed palette indices. Each long holds 64 / bits entries, starting at the lowest bits.
+     * Entries never span two longs.
+     * @return The packed palette indices, or an empty array if all entries have the same value.
+     */
+    public long[] getData() {
+        return data != null ? data : new long[0];
+    }
+
+    /**
+     * Gets the value of the specified entry.
+     * @param index The index of the entry.
+     * @return The value of the entry.
+     */
+    public T get(int index) {
+        return palette.get(getPaletteIndex(index));
+    }
+
+    /**
+     * Gets the palette index of the specified entry.
+     * @param index The index of the entry.
+     * @return The index into the palette of the value of the entry.
+     */
+    public int getPaletteIndex(int index) {
+        if (bits == 0) {
+            return 0;
+        }
+        int perLong = 64 / bits;
+        return (int)((data[index / perLong] >>> ((index % perLong) * bits)) & ((1L << bits) - 1));
+    }
+
+    /**
+     * Sets the value of the specified entry.
+     * @param index The index of the entry.
+     * @param value The new value of the entry.
+     */
+    public void set(int index, T value) {
+        Integer id = ids.get(value);
+        if (id == null) {
+            id = palette.size();
+            palette.add(value);
+            ids.put(value, id);
+            if (id >= (1 << bits)) {
+                resize(32 - Integer.numberOfLeadingZeros(id));
+            }
+        }
+
+        if (bits == 0) {
+            return;
+        }
+        int perLong = 64 / bits;
+        int shift = (index % perLong) * bits;
+        long mask = ((1L << bits) - 1) << shift;
+        data[index / perLong] = (data[index / perLong] & ~mask) | (((long)id << shift) & mask);
+    }
+
+    /**
+     * Creates a copy of this array with each value of the palette mapped to a new value.
+     * The index data is shared with this array, so it should not be changed afterwards.
+     * @param mapper The function that maps the values.
+     * @param <R> The type of the new values.
+     * @return The mapped array.
+     */
+    public <R> PaletteArray<R> map(Function<T, R> mapper) {
+        List<R> newPalette = new ArrayList<>(palette.size());
+        for (T value : palette) {
+            newPalette.add(mapper.apply(value));
+        }
+        return new PaletteArray<>(size, newPalette, bits, data);
+    }
+
+    private void resize(int newBits) {
+        long[] newData = new long[(size + (64 / newBits) - 1) / (64 / newBits)];
+        int newPerLong = 64 / newBits;
+        for (int i = 0; i < size; i++) {
+            long id = getPaletteIndex(i);
+            newData[i / newPerLong] |= id << ((i % newPerLong) * newBits);
+        }
+        bits = newBits;
+        data = newData;
+    }
+}
@@ -0,0 +1,87 @@
+package valandur.webapi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed capacity buffer that overwrites the oldest entries once it is full. Adding an entry is O(1).
+ * Reading holds the same lock as adding, so that readers never see an entry that is only partly replaced.
+ * Reading only copies the references, so the writer is blocked for a short time only.
+ * @param <T> The type of entries.
+ */
+public class RingBuffer<T> {
+
+    private final Object[] items;
+    private long head;
+
+
+    public RingBuffer(int capacity) {
+        this.items = new Object[Math.max(1, capacity)];
+    }
+
+    /**
+     * Gets the maximum amount of entries this buffer holds.
+     * @return The capacity of this buffer.
+     */
+    public int getCapacity() {
+        return items.length;
+    }
+
+    /**
+     * Gets the amount of entries currently in the buffer.
+     * @return The amount of entries.
+     */
+    public synchronized int size() {
+        return (int)Math.min(head, items.length);
+    }
+
+    /**
+     * Adds an entry to the buffer, replacing the oldest entry if the buffer is full.
+     * @param item The entry to add.
+     */
+    public synchronized void add(T item) {
+        long h = head;
+        items[(int)(h % items.length)] = item;
+        head = h + 1;
+    }
+
+    /**
+     * Gets the entries of the buffer, from oldest to newest.
+     * @return A list of the entries.
+     */
+    public List<T> toList() {
+        return toList(0);
+    }
+
+    /**
+     * Gets the newest entries of the buffer, from oldest to newest.
+     * @param limit The maximum amount of entries to return, or 0 to return all of them.
+     * @return A list of the entries.
+     */
+    public synchronized List<T> toList(int limit) {
+        long end = head;
+        long start = Math.max(0, end - items.length);
+        if (limit > 0) {
+            start = Math.max(start, end - limit);
+        }
+
+        List<Object> res = new ArrayList<>((int)(end - start));
+        for (long i = start; i < end; i++) {
+            res.add(items[(int)(i % items.length)]);
+        }
+        return (List<T>)res;
+    }
+
+    /**
+     * Creates a new buffer with the specified capacity, containing the newest entries of this buffer.
+     * @param capacity The capacity of the new buffer.
+     * @return The new buffer.
+     */
+    public RingBuffer<T> withCapacity(int capacity) {
+        RingBuffer<T> res = new RingBuffer<>(capacity);
+        for (T item : toList(capacity)) {
+            res.add(item);
+        }
+        return res;
+    }
+}
@@ -0,0 +1,141 @@
+package valandur.webapi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A fixed capacity buffer of timestamped values, which overwrites the oldest entries once it is full. The
+ * timestamps and values are kept in primitive arrays, integer values are stored exactly as doubles.
+ * Adding an entry is O(1). Reading holds the same lock as adding, so that readers never see an entry that is
+ * only partly written, and only copies the primitive values, so the writer is blocked for a short time only.
+ * Entries have to be added in order of their timestamps.
+ */
+public class TimeSeries {
+
+    private final int capacity;
+    private final long[] timestamps;
+    private final double[] values;
+    private long head;
+
+
+    public TimeSeries(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.timestamps = new long[this.capacity];
+        this.values = new double[this.capacity];
+    }
+
+    /**
+     * Gets the maximum amount of entries this buffer holds.
+     * @return The capacity of this buffer.
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Gets the amount of entries currently in the buffer.
+     * @return The amount of entries.
+     */
+    public synchronized int size() {
+        return (int)Math.min(head, capacity);
+    }
+
+    /**
+     * Adds an entry, replacing the oldest entry if the buffer is full.
+     * @param timestamp The timestamp of the entry.
+     * @param value The value of the entry.
+     */
+    public synchronized void add(long timestamp, double value) {
+        timestamps[index(head)] = timestamp;
+        values[index(head)] = value;
+        head++;
+    }
+
+    /**
+     * Gets the entries with a timestamp in the specified range, from oldest to newest.
+     * @param from The minimum timestamp (inclusive).
+     * @param to The maximum timestamp (inclusive).
+     * @param limit The maximum amount of entries, the newest entries are returned. Use 0 for no limit.
+     * @param mapper The function that turns each entry into the returned object.
+     * @param <R> The type of returned objects.
+     * @return A list of the entries.
+     */
+    public <R> List<R> get(long from, long to, int limit, Mapper<R> mapper) {
+        long[] ts;
+        double[] vs;
+        synchronized (this) {
+            long[] range = findRange(from, to, limit);
+            int n = (int)(range[1] - range[0]);
+            ts = new long[n];
+            vs = new double[n];
+            for (int i = 0; i < n; i++) {
+                ts[i] = timestamps[index(range[0] + i)];
+                vs[i] = values[index(range[0] + i)];
+            }
+        }
+
+        // Map the entries outside of the lock, so that the writer isn't blocked by the mapper
+        List<R> res = new ArrayList<>(ts.length);
+        for (int i = 0; i < ts.length; i++) {
+            res.add(mapper.map(ts[i], vs[i]));
+        }
+        return res;
+    }
+
+    /**
+     * Creates a new buffer with the specified capacity, containing the newest entries of this buffer.
+     * @param capacity The capacity of the new buffer.
+     * @return The new buffer.
+     */
+    public TimeSeries withCapacity(int capacity) {
+        TimeSeries res = new TimeSeries(capacity);
+        get(Long.MIN_VALUE, Long.MAX_VALUE, capacity, (t, v) -> {
+            res.add(t, v);
+            return null;
+        });
+        return res;
+    }
+
+    private int index(long i) {
+        return (int)(i % capacity);
+    }
+
+    /**
+     * Finds the entries with a timestamp in the specified range. This has to be called while holding the lock.
+     * @param from The minimum timestamp (inclusive).
+     * @param to The maximum timestamp (inclusive).
+     * @param limit The maximum amount of entries, the newest entries are kept. Use 0 for no limit.
+     * @return The start (inclusive) and end (exclusive) index of the entries.
+     */
+    private long[] findRange(long from, long to, int limit) {
+        long end = head;
+        long start = Math.max(0, end - capacity);
+
+        long lo = start;
+        long hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (timestamps[index(mid)] < from) lo = mid + 1;
+            else hi = mid;
+        }
+        start = lo;
+
+        hi = end;
+        while (lo < hi) {
+            long mid = (lo + hi) >>> 1;
+            if (timestamps[index(mid)] <= to) lo = mid + 1;
+            else hi = mid;
+        }
+        end = lo;
+
+        if (limit > 0) {
+            start = Math.max(start, end - limit);
+        }
+        return new long[] { start, end };
+    }
+
+    @FunctionalInterface
+    public interface Mapper<R> {
+        R map(long timestamp, double value);
+    }
+}
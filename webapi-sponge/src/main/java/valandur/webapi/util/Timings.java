@@ -6,6 +6,8 @@ import valandur.webapi.WebAPI;
 public class Timings {
     public static final Timing RUN_ON_MAIN =
             co.aikar.timings.Timings.of(WebAPI.getInstance(), "Run on main");
+    public static final Timing MAIN_THREAD_QUEUE =
+            co.aikar.timings.Timings.of(WebAPI.getInstance(), "Main thread queue");
     public static final Timing STARTUP =
             co.aikar.timings.Timings.of(WebAPI.getInstance(), "Startup");
     public static final Timing CACHE_WORLD =